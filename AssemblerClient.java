@@ -0,0 +1,139 @@
+package edu.ttu.drewmitchell;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands files to a running AssemblerDaemon and reports what came back, the same way batch mode
+ * does. Only loads a handful of classes itself so it starts quickly, especially from a class
+ * data sharing archive. Exits 0 if everything assembled cleanly, 1 if not, 2 if there's no daemon.
+ */
+public class AssemblerClient {
+	/**
+	 * @return The directory the daemon keeps its socket and token in
+	 */
+	static File home() {
+		return new File(System.getProperty("user.home"), ".msp430faux");
+	}
+
+	/**
+	 * @return Where the daemon listens unless told otherwise
+	 */
+	static String defaultSocket() {
+		return new File(home(), "assembler.sock").getPath();
+	}
+
+	/**
+	 * @return Where a daemon on a TCP port leaves the token connections have to AUTH with
+	 */
+	static File tokenFile() {
+		return new File(home(), "token");
+	}
+
+	/**
+	 * AssemblerClient [--socket=path | --port=N] (file.s43 ... | - | --ping | --stop)
+	 * "-" sends stdin as the source and writes stdin.lst and its object files here.
+	 */
+	public static void main(String[] args) throws IOException {
+		SocketAddress address = UnixDomainSocketAddress.of(defaultSocket());
+		List<String> requests = new ArrayList<String>();
+		for(String arg : args) {
+			if(arg.startsWith("--port=")) address = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(arg.substring("--port=".length())));
+			else if(arg.startsWith("--socket=")) address = UnixDomainSocketAddress.of(arg.substring("--socket=".length()));
+			else requests.add(arg);
+		}
+		if(requests.isEmpty()) {
+			System.out.println("Usage: AssemblerClient [--socket=path | --port=N] (file.s43 ... | - | --ping | --stop)");
+			System.exit(2);
+		}
+
+		SocketChannel channel;
+		try {
+			channel = SocketChannel.open(address);
+		} catch (IOException e) {
+			System.err.println("ERROR - no assembler daemon at " + address + ", start one with AssemblerPhase3 --daemon");
+			System.exit(2);
+			return;
+		}
+		boolean clean = true;
+		try (InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+				OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel))) { // Closing either closes the channel
+			if(address instanceof InetSocketAddress) {
+				String token;
+				try {
+					token = new String(Files.readAllBytes(tokenFile().toPath()), StandardCharsets.ISO_8859_1).trim();
+				} catch (IOException e) {
+					System.err.println("ERROR - can't read the daemon's token from " + tokenFile());
+					System.exit(2);
+					return;
+				}
+				AssemblerDaemon.write(out, "AUTH " + token + "\n");
+				out.flush();
+				String status = AssemblerDaemon.readLine(in);
+				AssemblerDaemon.readLine(in); // END
+				if(!"STATUS OK".equals(status)) {
+					System.err.println("ERROR - daemon refused the token" + (status == null ? "" : ": " + status));
+					System.exit(2);
+				}
+			}
+			for(String request : requests) {
+				String name = request;
+				if(request.equals("--ping")) AssemblerDaemon.write(out, "PING\n");
+				else if(request.equals("--stop")) AssemblerDaemon.write(out, "STOP\n");
+				else if(request.equals("-")) {
+					byte[] source = System.in.readAllBytes();
+					name = "stdin";
+					AssemblerDaemon.write(out, "SOURCE " + source.length + " " + name + " " + new File(".").getAbsolutePath() + "\n");
+					out.write(source);
+				}
+				else AssemblerDaemon.write(out, "ASSEMBLE " + new File(request).getAbsolutePath() + "\n");
+				out.flush();
+				clean &= reply(in, name);
+			}
+		}
+		System.exit(clean ? 0 : 1);
+	}
+
+	/**
+	 * Reads one reply, printing its status and diagnostics and writing any files it carries.
+	 * @return Whether it was clean
+	 */
+	private static boolean reply(InputStream in, String name) throws IOException {
+		String status = null;
+		for(String line; (line = AssemblerDaemon.readLine(in)) != null && !line.equals("END"); ) {
+			if(line.startsWith("STATUS ")) status = line.substring("STATUS ".length());
+			else if(line.startsWith("DIAG ")) System.err.println(name + ": " + line.substring("DIAG ".length()));
+			else if(line.startsWith("LISTING ")) save(in, name + ".lst", line.substring("LISTING ".length()));
+			else if(line.startsWith("OBJECT ")) {
+				String[] parts = line.split(" ");
+				save(in, name + parts[1], parts[2]);
+			}
+		}
+		if(status == null) status = "FAILED - daemon closed the connection";
+		if(status.equals("ERRORS")) status = "ERRORS, see listing";
+		System.out.println(name + ": " + status);
+		return status.equals("OK");
+	}
+
+	private static void save(InputStream in, String file, String length) throws IOException {
+		byte[] bytes = in.readNBytes(Integer.parseInt(length));
+		try (OutputStream out = new FileOutputStream(file)) {
+			out.write(bytes);
+		}
+	}
+}
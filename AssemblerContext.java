@@ -0,0 +1,134 @@
+package edu.ttu.drewmitchell;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Everything the assembler tracks while working through one source file. Each file gets its
+ * own context, so several files can be assembled at once without stepping on each other.
+ */
+public class AssemblerContext {
+	SymbolTable symbolTable = new SymbolTable();
+	int line = 0; // Source line being assembled, symbols remember where they were defined
+	int addressCounter = 0x0200; // Default value
+	boolean errorOccurred = false;
+	boolean optimize = AssemblerPhase3.optimize; // Peephole rewrites, and every jump kept as a fixup so they can be threaded
+	CycleBudget budget = AssemblerPhase3.timing ? new CycleBudget() : null; // Cycles in the listing, null unless asked for
+	ModuleObject module = AssemblerPhase3.relocatable ? new ModuleObject() : null; // Sections, exports and imports, null unless assembling a module
+
+	ObjectImage image = new ObjectImage(addressCounter);
+	List<Fixup> fixups = new ArrayList<Fixup>(); // Words left for the second pass, in output order
+	Lexer lexer = new Lexer(); // Reused for every line
+	Preprocessor preprocessor = new Preprocessor(); // INCLUDE, macros and conditionals
+	IncrementalAssembler.Line recording; // Line whose effects are being noted down for reuse, null outside incremental mode
+	Set<String> misses; // Symbols looked up while still undefined, only kept when assembling by segment
+	Set<String> immediates; // Same for immediates, which are only shorter if the value's one the constant generator makes
+	Set<String> literals = new HashSet<String>(); // Constants EQU'd to a number, their value doesn't depend on where anything is
+	Map<String, Integer> ahead; // Those constants' values from an earlier try at the first pass, when it's being run again
+	AssemblerStats stats = new AssemblerStats("");
+	OperandCache operands = new OperandCache(stats); // Per file, so nothing's shared between threads
+
+	/**
+	 * Adds data to the object image.
+	 * @param data - Bytes, in memory order
+	 */
+	void bufferObj(byte[] data) {
+		if(recording != null) recording.obj.add(data);
+		image.put(data);
+	}
+
+	/**
+	 * Adds an encoded instruction to the object image, and its fixups to the table pointed at where they sit in it.
+	 * @param assembled - The instruction's words
+	 */
+	void bufferObj(Encoding assembled) {
+		for(int n = 0; n < assembled.fixupCount(); n++) {
+			Fixup fixup = assembled.fixup(n);
+			fixup.objOffset = image.length() + fixup.slot * 2;
+			fixups.add(fixup);
+		}
+		stats.deferred += assembled.fixupCount();
+		if(recording != null) recording.obj.add(assembled);
+		for(int n = 0; n < assembled.length(); n++) {
+			image.putWord(assembled.word(n));
+		}
+	}
+
+	/**
+	 * Writes a resolved fixup into the object image.
+	 * @param fixup - Fixup that's been through the second pass
+	 */
+	void patchObj(Fixup fixup) {
+		if(fixup.objOffset >= 0) image.patchWord((int) fixup.objOffset, fixup.getValue());
+	}
+
+	/**
+	 * Symbol lookup for the first pass, noted down when the line is being recorded.
+	 * @param symbol - Label or constant name
+	 * @return Its ID in the symbol table if it's defined (yet), otherwise -1
+	 */
+	int lookup(String symbol) {
+		int id = lookupDeferred(symbol);
+		if(misses != null && id < 0) misses.add(symbol);
+		return id;
+	}
+
+	/**
+	 * Symbol lookup for an operand, where a miss just leaves a fixup that the second pass resolves the
+	 * same whether the symbol came before or after. Those aren't counted as misses.
+	 * @param symbol - Label or constant name
+	 * @return Its ID in the symbol table if it's defined (yet), otherwise -1
+	 */
+	int lookupDeferred(String symbol) {
+		int id = symbolTable.lookup(symbol);
+		if(recording != null) recording.reads.put(symbol, id < 0 ? null : symbolTable.value(id));
+		return id;
+	}
+
+	/**
+	 * @param symbol - Label or constant name
+	 * @param value - Address or value it stands for
+	 */
+	void define(String symbol, int value) {
+		symbolTable.define(symbol, value, line);
+		if(module != null) module.defined(symbol);
+		Log.trace(Log.Category.SYMBOLS, () -> "Defined " + symbol + " = " + AssemblerPhase3.hexForm(value) + " on line " + line);
+		if(recording != null) recording.defines.put(symbol, value);
+	}
+
+	/**
+	 * Defines a constant given as a number rather than relative to $.
+	 * @param symbol - Constant name
+	 * @param value - Its value
+	 */
+	void defineLiteral(String symbol, int value) {
+		define(symbol, value);
+		literals.add(symbol);
+		if(recording != null) recording.literals.add(symbol);
+	}
+
+	public String error(String errMsg) {
+		errorOccurred = true;
+		stats.errors++;
+		return errMsg;
+	}
+
+	public SymbolTable getSymbolTable() {
+		return symbolTable;
+	}
+
+	public AssemblerStats getStats() {
+		return stats;
+	}
+
+	public int getAddressCounter() {
+		return addressCounter;
+	}
+
+	public boolean hasErrors() {
+		return errorOccurred;
+	}
+}
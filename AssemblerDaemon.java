@@ -0,0 +1,342 @@
+package edu.ttu.drewmitchell;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps one JVM around to assemble files on request, so each file doesn't pay for starting
+ * Java, loading classes, compiling the patterns and a cold JIT. Listens on a Unix domain socket
+ * (default ~/.msp430faux/assembler.sock) or a loopback TCP port, AssemblerClient is the other end.
+ *
+ * Requests and replies are lines of ISO-8859-1 text, any number of requests per connection:
+ *   ASSEMBLE path                     assemble a file, listing and object file are written next to it
+ *   SOURCE length name dir            the next length bytes are source, INCLUDEs are looked for in dir,
+ *                                     the listing and object files come back in the reply
+ *   PING / STOP
+ *   AUTH token                        must come first on a TCP connection, see below
+ * A reply is "STATUS OK", "STATUS ERRORS" or "STATUS FAILED - why", then a "DIAG" line for each
+ * listing line with an ERROR on it, then for SOURCE "LISTING length" and "OBJECT extension length"
+ * each followed by that many bytes, then "END".
+ *
+ * The Unix socket is only reachable by its owner, its directory is 0700 and the socket 0600. Any
+ * local user can connect to a loopback port though, so on TCP the daemon writes a random token
+ * to ~/.msp430faux/token (0600) and drops any connection that doesn't open with it.
+ *
+ * For a fast cold start of the client (or the daemon), record a class data sharing archive once
+ * with -XX:ArchiveClassesAtExit and start with -XX:SharedArchiveFile from then on, see the README.
+ */
+public class AssemblerDaemon {
+	static final int WARMUP_LINES = 20000; // Enough generated source for the JIT to compile the hot paths
+	static final int MAX_SOURCE = 16 << 20; // Bytes one SOURCE request may send
+
+	private final ServerSocketChannel server;
+	private final ExecutorService pool = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "msp430-daemon");
+		t.setDaemon(true);
+		return t;
+	});
+	private final String token; // What a TCP connection has to AUTH with, null on a Unix socket
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param address - A UnixDomainSocketAddress, or an InetSocketAddress on loopback
+	 */
+	public AssemblerDaemon(SocketAddress address) throws IOException {
+		if(address instanceof UnixDomainSocketAddress) {
+			Path path = ((UnixDomainSocketAddress) address).getPath().toAbsolutePath();
+			Path dir = path.getParent();
+			boolean own = !Files.isDirectory(dir) || dir.equals(AssemblerClient.home().toPath().toAbsolutePath());
+			Files.createDirectories(dir);
+			if(own) restrict(dir, "rwx------"); // Not an existing directory given with --socket=, like /tmp
+			Files.deleteIfExists(path); // Left over from a daemon that didn't shut down cleanly
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			server.bind(address);
+			restrict(path, "rw-------");
+			token = null;
+		}
+		else {
+			byte[] random = new byte[32];
+			new SecureRandom().nextBytes(random);
+			token = HexFormat.of().formatHex(random);
+			Path dir = AssemblerClient.home().toPath();
+			Files.createDirectories(dir);
+			restrict(dir, "rwx------");
+			Path file = AssemblerClient.tokenFile().toPath();
+			Files.deleteIfExists(file);
+			Files.createFile(file);
+			restrict(file, "rw-------"); // Before the token goes in
+			Files.write(file, token.getBytes(StandardCharsets.ISO_8859_1));
+			server = ServerSocketChannel.open(StandardProtocolFamily.INET);
+			server.bind(address);
+		}
+	}
+
+	/**
+	 * Sets permissions where the file system has them, set explicitly rather than left to the umask.
+	 * @param perms - e.g. "rwx------"
+	 */
+	private static void restrict(Path path, String perms) throws IOException {
+		if(path.getFileSystem().supportedFileAttributeViews().contains("posix")) Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(perms));
+	}
+
+	/**
+	 * Takes connections until a STOP request comes in, each on its own thread.
+	 */
+	public void serve() throws IOException {
+		Log.info(Log.Category.OUTPUT, () -> "Daemon listening on " + describe());
+		while(!stopped) {
+			SocketChannel client;
+			try {
+				client = server.accept();
+			} catch (IOException e) {
+				if(stopped) break; // STOP closed the socket under us
+				throw e;
+			}
+			pool.execute(() -> handle(client));
+		}
+		pool.shutdown();
+	}
+
+	private String describe() {
+		try {
+			return String.valueOf(server.getLocalAddress());
+		} catch (IOException e) {
+			return "?";
+		}
+	}
+
+	/**
+	 * Answers one connection's requests until it closes.
+	 */
+	private void handle(SocketChannel client) {
+		try (SocketChannel channel = client;
+				InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+				OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel))) {
+			if(token != null && !authorized(readLine(in))) {
+				write(out, "STATUS FAILED - ERROR - not authorized, send AUTH with the token first\nEND\n");
+				return;
+			}
+			if(token != null) {
+				write(out, "STATUS OK\nEND\n");
+				out.flush();
+			}
+			for(String request; (request = readLine(in)) != null; ) {
+				boolean more;
+				try {
+					more = request(request, in, out);
+				} catch (RuntimeException e) { // Still answer, the stream may be anywhere so close it after
+					String failed = request;
+					write(out, "STATUS FAILED - ERROR - " + e + "\nEND\n");
+					Log.error(Log.Category.OUTPUT, () -> "Daemon request '" + failed + "' failed: " + e);
+					more = false;
+				}
+				out.flush();
+				if(!more) break;
+			}
+		} catch (IOException e) {
+			Log.warn(Log.Category.OUTPUT, () -> "Daemon connection dropped: " + e.getMessage());
+		}
+	}
+
+	private boolean authorized(String request) {
+		if(request == null || !request.startsWith("AUTH ")) return false;
+		return MessageDigest.isEqual(request.substring("AUTH ".length()).getBytes(StandardCharsets.ISO_8859_1), token.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * @return false once the connection should be closed
+	 */
+	private boolean request(String request, InputStream in, OutputStream out) throws IOException {
+		String[] parts = request.split(" ", 4);
+		switch(parts[0]) {
+		case "PING":
+			write(out, "STATUS OK\nEND\n");
+			return true;
+		case "STOP":
+			write(out, "STATUS OK\nEND\n");
+			out.flush();
+			stopped = true;
+			server.close();
+			return false;
+		case "ASSEMBLE": {
+			if(parts.length < 2) break;
+			File source = new File(request.substring("ASSEMBLE ".length()));
+			Reply reply = new Reply();
+			try {
+				AssemblerContext ctx = AssemblerPhase3.outputList(source);
+				reply.errors = ctx.hasErrors();
+				reply.diagnostics(Files.readAllBytes(new File(source.getAbsoluteFile().getParentFile(), source.getName().substring(0, source.getName().lastIndexOf(".")) + ".lst").toPath()));
+			} catch (IOException | RuntimeException e) {
+				reply.failure = e.getMessage() == null ? e.toString() : e.getMessage();
+			}
+			reply.write(out, false);
+			return true;
+		}
+		case "SOURCE": {
+			if(parts.length < 4) break;
+			int length;
+			try {
+				length = Integer.parseInt(parts[1]);
+			} catch (NumberFormatException e) {
+				length = -1;
+			}
+			if(length < 0 || length > MAX_SOURCE) { // Can't tell where the next request starts, so give up on the connection
+				write(out, "STATUS FAILED - ERROR - bad length '" + parts[1] + "', must be 0 to " + MAX_SOURCE + "\nEND\n");
+				return false;
+			}
+			Reply reply;
+			try {
+				reply = assemble(in.readNBytes(length), parts[2], new File(parts[3]));
+			} catch (IOException | RuntimeException e) {
+				reply = new Reply();
+				reply.failure = e.getMessage() == null ? e.toString() : e.getMessage();
+			}
+			reply.write(out, true);
+			return true;
+		}
+		default:
+		}
+		write(out, "STATUS FAILED - ERROR - bad request '" + request + "'\nEND\n");
+		return false;
+	}
+
+	/**
+	 * What one assemble request gave.
+	 */
+	static class Reply {
+		boolean errors;
+		String failure; // Set if it couldn't be assembled at all
+		List<String> diagnostics = new ArrayList<String>();
+		byte[] listing;
+		List<String> extensions = new ArrayList<String>();
+		List<byte[]> objects = new ArrayList<byte[]>();
+
+		/**
+		 * Picks the lines with errors on them out of a listing.
+		 */
+		void diagnostics(byte[] listing) {
+			for(String line : new String(listing, StandardCharsets.ISO_8859_1).split("\n")) {
+				if(line.contains("ERROR - ")) diagnostics.add(line);
+			}
+		}
+
+		void write(OutputStream out, boolean files) throws IOException {
+			if(failure != null) {
+				AssemblerDaemon.write(out, "STATUS FAILED - " + failure.replace('\n', ' ') + "\nEND\n");
+				return;
+			}
+			AssemblerDaemon.write(out, errors ? "STATUS ERRORS\n" : "STATUS OK\n");
+			for(String line : diagnostics) {
+				AssemblerDaemon.write(out, "DIAG " + line + "\n");
+			}
+			if(files) {
+				AssemblerDaemon.write(out, "LISTING " + listing.length + "\n");
+				out.write(listing);
+				for(int n = 0; n < objects.size(); n++) {
+					AssemblerDaemon.write(out, "OBJECT " + extensions.get(n) + " " + objects.get(n).length + "\n");
+					out.write(objects.get(n));
+				}
+			}
+			AssemblerDaemon.write(out, "END\n");
+		}
+	}
+
+	/**
+	 * Same as AssemblerPhase3.outputList, but the listing and object files are kept in memory.
+	 * @param source - The source's bytes
+	 * @param name - What the source is called, for stats and messages
+	 * @param dir - Where INCLUDE looks
+	 */
+	static Reply assemble(byte[] source, String name, File dir) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(source.length * 2);
+		AssemblerContext ctx = AssemblerPhase3.assemble(SourceReader.read(new ByteArrayInputStream(source)), dir, name, out);
+
+		Reply reply = new Reply();
+		reply.errors = ctx.hasErrors();
+		reply.listing = out.toByteArray();
+		reply.diagnostics(reply.listing);
+		if(!ctx.errorOccurred) {
+			AssemblerStats.PhaseEvent phase = ctx.stats.beginPhase();
+			for(String format : AssemblerPhase3.objectFormats) {
+				ByteArrayOutputStream obj = new ByteArrayOutputStream();
+				ctx.image.emit(ObjectEmitter.forName(format, obj));
+				reply.extensions.add(ObjectEmitter.extension(format));
+				reply.objects.add(obj.toByteArray());
+			}
+			ctx.stats.endPhase(phase, AssemblerStats.OBJECT);
+		}
+		ctx.stats.commit();
+		return reply;
+	}
+
+	/**
+	 * Runs generated source through the assembler a few times so the first real request finds the JIT warm.
+	 */
+	static void warmUp() throws IOException {
+		StringBuilder source = new StringBuilder();
+		new CorpusGenerator(430).generate(WARMUP_LINES, source);
+		byte[] bytes = source.toString().getBytes(StandardCharsets.ISO_8859_1);
+		for(int n = 0; n < 3; n++) {
+			assemble(bytes, "warmup", new File("."));
+		}
+	}
+
+	static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		for(int c; (c = in.read()) != '\n'; ) {
+			if(c < 0) return line.length() == 0 ? null : line.toString();
+			if(c != '\r') line.append((char) c);
+		}
+		return line.toString();
+	}
+
+	static void write(OutputStream out, String text) throws IOException {
+		out.write(text.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * @param args - "--port=N" to listen on loopback TCP with a token, or "--socket=path", plus --format=, --device=, --log=, --optimize, --timing and --relocatable
+	 * the same as batch mode
+	 */
+	public static void main(String[] args) throws IOException {
+		SocketAddress address = UnixDomainSocketAddress.of(AssemblerClient.defaultSocket());
+		List<String> batch = new ArrayList<String>();
+		for(String arg : args) {
+			if(arg.startsWith("--port=")) address = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(arg.substring("--port=".length())));
+			else if(arg.startsWith("--socket=")) address = UnixDomainSocketAddress.of(arg.substring("--socket=".length()));
+			else batch.add(arg);
+		}
+		if(!batch.isEmpty()) AssemblerPhase3.assembleBatch(batch.toArray(new String[0])); // Just the settings, there are no files
+		AssemblerDaemon daemon = new AssemblerDaemon(address);
+		warmUp();
+		daemon.serve();
+		if(address instanceof UnixDomainSocketAddress) Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+		else Files.deleteIfExists(AssemblerClient.tokenFile().toPath());
+		Log.flush();
+	}
+}
@@ -1,16 +1,23 @@
 package edu.ttu.drewmitchell;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
-import java.util.TreeMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Drew Mitchell, Junior, Texas Tech University
@@ -35,44 +42,36 @@ import java.util.regex.Pattern;
  */
 
 public class AssemblerPhase3 {
-	static Map<String, Integer> symbolTable = new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER);
-	public static int addressCounter = 0x0200; // Default value
-	public static int prevAddrCount = addressCounter;
-	public static int checkSum = 0;
-	static boolean debugEnabled = true;
-	static boolean errorOccurred = false;
-	
-	static final String addrSeg = "FF00AA55";
-	static String obj = "CaseyMitchell00";
-	static List<String> objBuffer = new ArrayList<String>();
-
-	////// BEGIN PATTERNS
-	static final Pattern blankLine = Pattern.compile("^\\s*?$");
-	static Matcher blankMatch = null;
-	
-	static final Pattern commentEnd = Pattern.compile("^\\s*?(?:end|;).*$", Pattern.CASE_INSENSITIVE);
-	static Matcher comMatch = null;
-	
-	static final Pattern constantDecl = Pattern.compile("^(.+?)" + "\\s+?" + "EQU" + "\\s+?" + "(%[01]{8}|0x[a-fA-F\\d]+|\\$\\s+?-\\s+?[\\w\\d]+)" + "(?:\\s*?$|\\s*?;.*?$)");
-	static Matcher constMatch = null;
-	
-	static final Pattern defDir = Pattern.compile("^(?:(\\s*[\\w\\d?*&^%$#@!()]+?):?\\s*)?" + "\\s*" + "(DB|DS|DW)" + "\\s+" + "('[\\w\\d-]'|\"[\\w\\d-]+?\"|\\d|[\\w\\d-]+)" + "(?:\\s*?$|\\s*?;.*?$)");
-	static Matcher defMatch = null;
-	
-	static final Pattern orgDir = Pattern.compile("^(?:\\s+)?([\\w]+)?:?(?:\\s+)?" + "ORG" + "\\s+" + "(0x[\\dA-Fa-f]{1,4})" + "(?:\\s*?$|\\s*?;.*?$)");
-	static Matcher orgMatch = null;
-	
-	static final Pattern labelOnly = Pattern.compile("^(?:\\s*([\\w\\d?*&^%$#@!()]+?):?\\s*)?" + "(?:\\s*?$|\\s*?;.*?$)");
-	static Matcher labelMatch = null;
-	
-	static final Pattern doubleOp = Pattern.compile("^(?:(\\s*[\\w\\d?*&^%$#@!()]+?):?\\s*)?" + "\\s+?" + "([a-zA-Z]{2,4}(?:\\.\\w)?)" + "\\s+?" + "((?:@R\\d{1,2}\\+?)|(?:\\d+?\\(R\\d{1,2}\\))|(?:#?(?:0x)?[\\dA-Fa-f]{1,4})|(?:[#&]?[\\w\\d\\+]+))?" + ",\\s*?" + "((?:R[\\d]{1,2})|(?:\\d+?\\(R\\d{1,2}\\))|(?:0x[\\da-fA-F]{1,4})|(?:&?[\\w\\+]+))?" + "(?:\\s*?$|\\s*?;.*?$)");
-	static Matcher doubleOpMatch = null;
-	
-	static final Pattern singleOp = Pattern.compile("^(?:(\\s*[\\w\\d?*&^%$#@!()]+?):?\\s*)?" + "\\s+?" + "([a-zA-Z]{2,4}(?:\\.\\w)?)" + "\\s+?" + "((?:@?R\\d{1,2}\\+?)|(?:\\d+?\\(R`\\d{1,2}\\))|(?:#?0x[\\dA-Fa-f]{1,4})|(?:[#&]?[\\w\\d\\+]+))?" + "(?:\\s*?$|\\s*?;.*?$)");
-	static Matcher singleOpMatch = null;
-	////// END PATTERNS
+	static String[] objectFormats = {"faux"}; // See ObjectEmitter.forName
+	static boolean optimize = false; // See Peephole
+	static boolean timing = false; // See CycleBudget
+	static boolean relocatable = false; // See ModuleObject
 	
 	public static void main(String[] args) throws IOException {
+		if(args.length == 2 && args[0].equals("--watch")) { // Reassemble on every save, only redoing what changed
+			IncrementalAssembler.watch(new File(args[1]));
+			return;
+		}
+		if(args.length > 0 && args[0].equals("--link")) { // Put modules assembled with --relocatable together, see Linker
+			boolean linked = Linker.main(Arrays.copyOfRange(args, 1, args.length));
+			Log.flush();
+			System.exit(linked ? 0 : 1);
+		}
+		if(args.length > 0 && args[0].equals("--daemon")) { // Stay up and assemble for AssemblerClient, see AssemblerDaemon
+			AssemblerDaemon.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if(args.length == 1 && args[0].equals("-")) { // Piped source, the listing and object file land here as stdin.lst/.txt
+			boolean errors = outputList(SourceReader.read(System.in), new File("."), "stdin").hasErrors();
+			Log.flush();
+			System.exit(errors ? 1 : 0);
+		}
+		if(args.length > 0) { // Batch mode, assemble whatever we were handed
+			boolean clean = assembleBatch(args);
+			Log.flush();
+			System.exit(clean ? 0 : 1);
+		}
+		
 		File source = new File("TestSourceCodeA.s43");
 		File sourceERR = new File("TestSourceCodeA_E.s43");
 		File sourceB = new File("TestSourceCodeB.s43");
@@ -81,384 +80,669 @@ public class AssemblerPhase3 {
 		File sourceE = new File("TestSourceCodeE.s43");
 		//File sourceG = new File("TestSourceCodeG.s43");
 		
-		outputList(source);
-		resetInitialAssyConditions();
+		outputList(source); // Every file gets a fresh context, nothing to reset between them
 		outputList(sourceERR);
-		resetInitialAssyConditions();
 		outputList(sourceB);
-		resetInitialAssyConditions();
 		outputList(sourceC);
-		resetInitialAssyConditions();
 		outputList(sourceD);
-		resetInitialAssyConditions();
 		outputList(sourceE);
-		//resetInitialAssyConditions();
 		//outputList(sourceG);
+		Log.flush();
 	}
 	
-	public static void resetInitialAssyConditions() {
-		obj = "CaseyMitchell00";
-		errorOccurred = false;
-		addressCounter = 0x200;
-		prevAddrCount = addressCounter;
-		checkSum = 0;
-		objBuffer.clear();
-		symbolTable.clear();  // Must reset this so we don't receive duplicate error labels everywhere running the 2nd file through
+	/**
+	 * Assembles every .s43 file named, or found in a named directory, spread across a work-stealing pool.
+	 * @param args - Source files and directories, optionally led by "-j N" to set the number of workers,
+	 * "--format=..." to pick object formats, "--device=..." to name the device's header files and
+	 * "--stats=json" to print each file's AssemblerStats as JSON (statuses then go to stderr),
+	 * "--log=..." to turn on diagnostics (see Log), "--parallel-org" to also split each file at its ORGs
+	 * (see SegmentedAssembler), "--optimize" to rewrite instructions into cheaper ones (see Peephole), "--timing"
+	 * to list each instruction's cycles and each label's size and cycles (see CycleBudget) and "--relocatable" to
+	 * write each file as a module for the linker (see ModuleObject)
+	 * @return true if every file assembled without errors
+	 */
+	public static boolean assembleBatch(String[] args) throws IOException {
+		int workers = Runtime.getRuntime().availableProcessors();
+		List<File> sources = new ArrayList<File>();
+		boolean json = false, parallelOrg = false;
+		for(int a = 0; a < args.length; a++) {
+			if(args[a].equals("-j") && a + 1 < args.length) {
+				workers = Integer.parseInt(args[++a]);
+				continue;
+			}
+			if(args[a].startsWith("--format=")) { // e.g. --format=faux,titxt,ihex,raw
+				objectFormats = args[a].substring("--format=".length()).split(",");
+				continue;
+			}
+			if(args[a].startsWith("--log=")) { // e.g. --log=debug or --log=encoder=trace
+				Log.configure(args[a].substring("--log=".length()));
+				continue;
+			}
+			if(args[a].equals("--parallel-org")) {
+				parallelOrg = true;
+				continue;
+			}
+			if(args[a].equals("--optimize")) {
+				optimize = true;
+				continue;
+			}
+			if(args[a].equals("--timing")) {
+				timing = true;
+				continue;
+			}
+			if(args[a].equals("--relocatable")) {
+				relocatable = true;
+				continue;
+			}
+			if(args[a].startsWith("--stats=")) {
+				if(!args[a].equals("--stats=json")) throw new IllegalArgumentException("ERROR - unknown stats format '" + args[a].substring("--stats=".length()) + "'");
+				json = true;
+				continue;
+			}
+			if(args[a].startsWith("--device=")) { // e.g. --device=msp430g2553.h,msp430g2553.cmd
+				String[] headers = args[a].substring("--device=".length()).split(",");
+				File[] files = new File[headers.length];
+				for(int h = 0; h < headers.length; h++) {
+					files[h] = new File(headers[h]);
+				}
+				InstructionFactory.registers = DeviceRegisters.open(files, new File(System.getProperty("user.home"), ".msp430faux"));
+				continue;
+			}
+			File f = new File(args[a]);
+			if(f.isDirectory()) {
+				File[] found = f.listFiles((dir, name) -> name.toLowerCase().endsWith(".s43"));
+				Arrays.sort(found);
+				sources.addAll(Arrays.asList(found));
+			}
+			else sources.add(f);
+		}
+		
+		ExecutorService pool = Executors.newWorkStealingPool(workers);
+		List<Future<AssemblerContext>> results = new ArrayList<Future<AssemblerContext>>();
+		for(File source : sources) {
+			boolean split = parallelOrg;
+			results.add(pool.submit(() -> split ? SegmentedAssembler.outputList(source, pool) : outputList(source)));
+		}
+		
+		boolean clean = true;
+		AssemblerStats total = new AssemblerStats("total");
+		StringBuilder stats = new StringBuilder("{\"files\": [");
+		for(int n = 0; n < sources.size(); n++) { // Report in the order we were given
+			String status;
+			try {
+				AssemblerContext ctx = results.get(n).get();
+				status = ctx.hasErrors() ? "ERRORS, see listing" : "OK";
+				ctx.stats.file = sources.get(n).getPath();
+				total.add(ctx.stats);
+				stats.append(stats.charAt(stats.length() - 1) == '[' ? "\n  " : ",\n  ").append(ctx.stats.toJson());
+			} catch (InterruptedException | ExecutionException e) {
+				Throwable cause = e;
+				while(cause.getCause() != null) cause = cause.getCause(); // The pool wraps whatever the file threw
+				status = "FAILED - " + cause.getMessage();
+			}
+			clean &= status.equals("OK");
+			(json ? System.err : System.out).println(sources.get(n).getPath() + ": " + status);
+		}
+		pool.shutdown();
+		if(json) System.out.println(stats.append("\n], \"total\": ").append(total.toJson()).append("}"));
+		return clean;
 	}
 	
-	public static void outputList(File source) throws IOException {
-		debug("\nBeginning output of " + source.getName() + "!\n");
-		Scanner input = new Scanner(new FileInputStream(source));
-		
-		File output = new File(source.getName().substring(0, source.getName().lastIndexOf(".")) +".lst");
-		File object = new File(source.getName().substring(0, source.getName().lastIndexOf(".")) +".txt");
+	/**
+	 * Assembles one source file, writing its listing and (if there were no errors) object file next to it.
+	 * @param source - .s43 file to assemble
+	 * @return The context the file was assembled in
+	 */
+	public static AssemblerContext outputList(File source) throws IOException {
+		try (SourceReader input = SourceReader.open(source)) {
+			return outputList(input, source.getAbsoluteFile().getParentFile(), source.getName().substring(0, source.getName().lastIndexOf(".")));
+		}
+	}
+	
+	/**
+	 * @param input - Source to assemble, read to its end
+	 * @param dir - Where the listing and object file go
+	 * @param name - What they're called, less the extension
+	 * @return The context the source was assembled in
+	 */
+	public static AssemblerContext outputList(SourceReader input, File dir, String name) throws IOException {
+		Log.debug(Log.Category.OUTPUT, () -> "Beginning output of " + name);
+		AssemblerContext fresh = new AssemblerContext();
+		fresh.stats.file = name;
+		fresh.preprocessor.dir = dir;
 		
-		FileOutputStream fos = new FileOutputStream(output);
-		String fullWrite = "";
+		File output = new File(dir, name + ".lst");
 		
-		// Object file will be handled in a global scope per-file, reset upon each new file.
+		// Lines are streamed to disk as they're produced, we only hold on to the fixups that still need a second pass.
+		// Object file is built up in the context, one per file.
 		
 		// BEGIN FIRST PASS
-		for(int lineNum = 1; input.hasNextLine(); lineNum++) { // Output the file, for the most part.
-			debug(lineNum);
-			String line = input.nextLine();
-			String toWrite = String.format("%4d", lineNum) + "  " + parseLine(line) + "\n";
-			fullWrite += toWrite; // Compile all the lines into one String object.
-		}
+		AssemblerStats.PhaseEvent phase = fresh.stats.beginPhase();
+		AssemblerContext ctx = firstPass(fresh, input, () -> new BufferedOutputStream(new FileOutputStream(output)));
+		ctx.stats.endPhase(phase, AssemblerStats.PASS1);
 
-		int maxLen = Integer.MIN_VALUE; // We have to loop through once to format the symbol table with uniform formatting
-		for(String s : symbolTable.keySet()) {
-			if(s.length() > maxLen) maxLen = s.length();
-		}
-		// Write out our symbol table at the very bottom
-		fullWrite += String.format("%-" + (maxLen + 4) + "s", "\nLabel:") + "     Value:\n";
-		for(String symbol : symbolTable.keySet()) {
-			fullWrite += String.format("%-" + (maxLen + 4) + "s", symbol) + "     " + hexForm(symbolTable.get(symbol)) + "\n";
-		}
-
-		debug("First pass done");
+		Log.debug(Log.Category.OUTPUT, () -> name + ": first pass done, " + ctx.fixups.size() + " fixups");
 		// END FIRST PASS
 		
 		// BEGIN SECOND PASS
-		for(String key : symbolTable.keySet()) { // TODO Single ops with placeholders have extra spaces
-			String replace = InstructionFactory.listByteOrder(hexForm(symbolTable.get(key))); // We need to calculate differences
-			while(replace.length() < ("%'"+key+"'%").length() - 2) {
-				replace += " ";
+		phase = ctx.stats.beginPhase();
+		StringBuilder trailer = new StringBuilder(); // Unresolved words get reported after the listing, the slot itself is just marked
+		if(ctx.optimize && ctx.module == null) Peephole.threadJumps(ctx.fixups, ctx.symbolTable, ctx.image); // A module's jumps may end up anywhere
+		try (RandomAccessFile list = new RandomAccessFile(output, "rw")) {
+			for(Fixup fixup : ctx.fixups) { // One sweep, every entry already knows where it lands
+				list.seek(fixup.listOffset);
+				list.write(secondPass(ctx, ctx.symbolTable, fixup, trailer).getBytes(StandardCharsets.ISO_8859_1));
 			}
-			fullWrite = fullWrite.replace("%'"+key+"'%", replace);
 		}
 		
-		fullWrite = fullWrite.replaceAll("^.*%'([A-Za-z][\\w\\d]+?)'%.*$", "ERROR - UNDEFINED LABEL '$1'"); // This covers the error case where we encountered a symbol without a value after first pass
+		appendSymbolTable(ctx, trailer); // Write out our symbol table at the very bottom
+		if(ctx.budget != null) ctx.budget.appendTo(trailer);
+		try (OutputStream fos = new FileOutputStream(output, true)) {
+			fos.write(trailer.toString().getBytes(StandardCharsets.ISO_8859_1)); // Same as the first pass wrote the listing in
+		}
+		ctx.stats.endPhase(phase, AssemblerStats.PASS2);
 		
-		debug("Second pass done");
+		Log.debug(Log.Category.OUTPUT, () -> name + ": second pass done");
 		// END SECOND PASS
-		fos.write(fullWrite.getBytes());
-		fos.close();
 		
 		// Write (hopefully) fully compiled object file if no error occurred
-		if(!errorOccurred) {
-			fos = new FileOutputStream(object);
-			obj += "FFAA5500"; // Terminator Sequence, I'll be back.
-			checkSum = checkSum % (2*Math.abs(Short.MIN_VALUE));
-			obj += hexForm(checkSum);
-			for(String key : symbolTable.keySet()) { // TODO Single ops with placeholders have extra spaces
-				String replace = InstructionFactory.listByteOrder(hexForm(symbolTable.get(key))); // We need to calculate differences
-				while(replace.length() < ("%'"+key+"'%").length() - 2) {
-					replace += " ";
-				}
-				obj = obj.replace("%'"+key+"'%", replace);
-			}
-			fos.write(obj.getBytes());
-			fos.close();
+		if(!ctx.errorOccurred) {
+			phase = ctx.stats.beginPhase();
+			writeObj(ctx, dir, name);
+			ctx.stats.endPhase(phase, AssemblerStats.OBJECT);
 		}
+		ctx.stats.commit();
 		
-		input.close();
+		return ctx;
+	}
+	
+	/**
+	 * Same as outputList, but the listing's kept in memory and no object file is written.
+	 * @param input - Source to assemble, read to its end
+	 * @param dir - Where INCLUDE looks
+	 * @param name - What the source is called, for stats and messages
+	 * @param listing - Where the finished listing goes
+	 * @return The context the source was assembled in, its image holds the object code
+	 */
+	public static AssemblerContext assemble(SourceReader input, File dir, String name, ByteArrayOutputStream listing) throws IOException {
+		AssemblerContext ctx = new AssemblerContext();
+		ctx.stats.file = name;
+		ctx.preprocessor.dir = dir;
+		
+		AssemblerStats.PhaseEvent phase = ctx.stats.beginPhase();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ctx = firstPass(ctx, input, () -> {
+			out.reset();
+			return out;
+		});
+		byte[] bytes = out.toByteArray();
+		ctx.stats.endPhase(phase, AssemblerStats.PASS1);
+		
+		phase = ctx.stats.beginPhase();
+		StringBuilder trailer = new StringBuilder();
+		if(ctx.optimize && ctx.module == null) Peephole.threadJumps(ctx.fixups, ctx.symbolTable, ctx.image);
+		for(Fixup fixup : ctx.fixups) {
+			byte[] resolved = secondPass(ctx, ctx.symbolTable, fixup, trailer).getBytes(StandardCharsets.ISO_8859_1);
+			System.arraycopy(resolved, 0, bytes, (int) fixup.listOffset, resolved.length);
+		}
+		appendSymbolTable(ctx, trailer);
+		if(ctx.budget != null) ctx.budget.appendTo(trailer);
+		listing.write(bytes);
+		listing.write(trailer.toString().getBytes(StandardCharsets.ISO_8859_1));
+		ctx.stats.endPhase(phase, AssemblerStats.PASS2);
+		return ctx;
+	}
+	
+	/**
+	 * Where the first pass writes its listing lines, opened again if the pass is run again.
+	 */
+	interface Listing {
+		OutputStream open() throws IOException;
+	}
+	
+	/**
+	 * First pass over a whole source. If an immediate named a constant that's only EQU'd further down and
+	 * turns out to be one the constant generator makes, the pass is run again knowing its value, so the
+	 * instruction comes out a word shorter and every address after it moves up to match.
+	 * @param ctx - Fresh context for the source
+	 * @param input - Source to assemble, from its start
+	 * @param listing - Opened for each run and closed after it
+	 * @return The context of the run that stands
+	 */
+	static AssemblerContext firstPass(AssemblerContext ctx, SourceReader input, Listing listing) throws IOException {
+		try (OutputStream out = listing.open()) {
+			firstPass(ctx, input, 1, out);
+		}
+		AssemblerContext again = retry(ctx);
+		if(again == null) return ctx;
+		Log.debug(Log.Category.SYMBOLS, () -> ctx.stats.file + ": constants used before they were defined fit the constant generator, first pass again");
+		try (OutputStream out = listing.open()) {
+			firstPass(again, input.slice(0, input.position()), 1, out);
+		}
+		return again;
+	}
+	
+	/**
+	 * @return A context to run the first pass again in, with the constants EQU'd after immediates that could have
+	 * used the constant generator known up front, or null if no immediate would come out any shorter
+	 */
+	static AssemblerContext retry(AssemblerContext ctx) {
+		Map<String, Integer> ahead = constantsAhead(ctx.fixups, ctx.symbolTable, ctx.literals);
+		if(ahead == null) return null;
+		AssemblerContext again = new AssemblerContext();
+		again.stats = ctx.stats; // The work done twice is counted twice
+		again.operands = ctx.operands;
+		again.preprocessor.dir = ctx.preprocessor.dir;
+		again.ahead = ahead;
+		again.optimize = ctx.optimize;
+		again.budget = ctx.budget == null ? null : new CycleBudget();
+		again.module = ctx.module == null ? null : new ModuleObject();
+		return again;
+	}
+	
+	/**
+	 * @param fixups - What the first pass left
+	 * @param symbols - Everything it defined
+	 * @param literals - Which of those are constants EQU'd to a number, their value won't change when addresses do
+	 * @return Every such constant's value, or null if none of the fixups is an immediate of them alone that the
+	 * constant generator makes
+	 */
+	static Map<String, Integer> constantsAhead(List<Fixup> fixups, SymbolTable symbols, Set<String> literals) {
+		boolean shorter = false;
+		for(Fixup fixup : fixups) {
+			if(fixup.getKind() != Fixup.Kind.IMMEDIATE || fixup.resolve(symbols) != null || InstructionFactory.constantGenerator(fixup.getValue()) < 0) continue;
+			boolean constant = true;
+			for(String term : fixup.getSymbol().split("\\+")) {
+				constant &= literals.contains(term);
+			}
+			if(constant) {
+				shorter = true;
+				break;
+			}
+		}
+		if(!shorter) return null;
+		Map<String, Integer> ahead = new HashMap<String, Integer>();
+		for(String name : literals) {
+			int id = symbols.lookup(name);
+			if(id >= 0) ahead.put(name, symbols.value(id));
+		}
+		return ahead;
+	}
+	
+	/**
+	 * Assembles lines until the input runs out, writing each one's listing line as it goes.
+	 * @param input - Source to assemble
+	 * @param firstLine - Line number of the first line read
+	 * @param out - Where the listing lines go, fixups get their offsets relative to the start of it
+	 * @return Bytes written to out
+	 */
+	static long firstPass(AssemblerContext ctx, SourceReader input, int firstLine, OutputStream out) throws IOException {
+		long offset = 0; // Byte position of the next line in the listing
+		Preprocessor preprocessor = ctx.preprocessor;
+		for(int lineNum = firstLine - 1; ; ) { // Output the file, for the most part.
+			CharSequence line; // Only good until the next line is read
+			String numbered;
+			if(preprocessor.hasPending()) { // Included and expanded lines go under the line that asked for them, marked with a +
+				line = preprocessor.nextLine();
+				numbered = String.format("%4d", lineNum) + "+ ";
+			}
+			else if(input.hasNextLine()) {
+				line = input.nextLine();
+				ctx.line = ++lineNum;
+				numbered = String.format("%4d", lineNum) + "  ";
+			}
+			else break;
+			Log.trace(Log.Category.PARSER, () -> "Line " + ctx.line);
+			int mark = ctx.fixups.size();
+			String parsed = parseLine(ctx, line);
+			for(int n = mark; n < ctx.fixups.size(); n++) { // Encoding sits right after the address column
+				Fixup fixup = ctx.fixups.get(n);
+				fixup.line = lineNum;
+				fixup.listOffset = offset + numbered.length() + parsed.indexOf(' ') + 1 + fixup.slot * 4;
+			}
+			byte[] bytes = (numbered + parsed + "\n").getBytes(StandardCharsets.ISO_8859_1); // One byte per char, same as the source
+			out.write(bytes);
+			offset += bytes.length;
+		}
+		String unfinished = preprocessor.finish(ctx);
+		if(unfinished != null) {
+			byte[] bytes = ("      " + unfinished + "\n").getBytes(StandardCharsets.ISO_8859_1);
+			out.write(bytes);
+			offset += bytes.length;
+		}
+		return offset;
+	}
+	
+	/**
+	 * Resolves one fixup and patches it into the object image, one that can't be resolved is reported in the trailer.
+	 * @param symbols - The whole file's symbols
+	 * @param trailer - End of the listing
+	 * @return What goes in the fixup's slot in the listing
+	 */
+	static String secondPass(AssemblerContext ctx, SymbolTable symbols, Fixup fixup, StringBuilder trailer) {
+		String failed = ctx.module != null ? ctx.module.relocate(ctx.image, symbols, fixup) : null;
+		if(ModuleObject.LINKED.equals(failed)) return failed; // The linker fills it in
+		if(failed == null) failed = fixup.resolve(symbols);
+		if(failed != null) {
+			ctx.stats.unresolved++;
+			trailer.append(String.format("%4d", fixup.line)).append("  ").append(ctx.error(failed)).append("\n");
+			return "????";
+		}
+		ctx.patchObj(fixup);
+		String threaded = Peephole.report(fixup);
+		if(threaded != null) trailer.append(threaded);
+		return Encoding.hexWord(fixup.getValue());
+	}
+	
+	/**
+	 * @param trailer - End of the listing, the symbol table is added to it
+	 */
+	static void appendSymbolTable(AssemblerContext ctx, StringBuilder trailer) {
+		if(ctx.module != null) ctx.module.check(ctx, trailer);
+		int[] sorted = ctx.symbolTable.sorted(); // Only place the table is ever put in order
+		int maxLen = 0; // We have to loop through once to format the symbol table with uniform formatting
+		for(int id : sorted) {
+			if(ctx.symbolTable.name(id).length() > maxLen) maxLen = ctx.symbolTable.name(id).length();
+		}
+		trailer.append(String.format("%-" + (maxLen + 4) + "s", "\nLabel:")).append("     Value:\n");
+		for(int id : sorted) {
+			trailer.append(String.format("%-" + (maxLen + 4) + "s", ctx.symbolTable.name(id))).append("     ").append(hexForm(ctx.symbolTable.value(id))).append("\n");
+		}
+	}
+	
+	/**
+	 * Writes the object image out once in each of the object formats asked for.
+	 * @param dir - Where the object files go
+	 * @param name - What they're called, less the extension
+	 */
+	static void writeObj(AssemblerContext ctx, File dir, String name) throws IOException {
+		if(ctx.module != null) { // Addresses in a section mean nothing until it's linked
+			ctx.module.write(ctx, name, new File(dir, name + ".rel"));
+			return;
+		}
+		for(String format : objectFormats) {
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(dir, name + ObjectEmitter.extension(format))))) {
+				ctx.image.emit(ObjectEmitter.forName(format, out));
+			}
+		}
 	}
 	
 	/**
 	 * @param line - A line of assembly language input
 	 * @return A properly formatted line complete with address counting, errors, values, encoded instructions as memory would view them, and the original input line
 	 */
-	public static String parseLine(String line) {
-		String parsedLine = hexForm(addressCounter) + " "; // Centralized baseline format
+	public static String parseLine(AssemblerContext ctx, CharSequence line) {
+		String parsedLine = hexForm(ctx.addressCounter) + " "; // Centralized baseline format
+		Lexer lexer = ctx.lexer;
+		long lexStart = System.nanoTime();
+		Lexer.Token token = ctx.preprocessor.takeToken(); // Included lines were lexed when the include was first read
+		Lexer.Kind kind = token != null ? lexer.load(token) : lexer.lex(line); // One scan, then straight to the right handler
+		ctx.stats.lexed(kind, System.nanoTime() - lexStart);
 		
-		blankMatch = blankLine.matcher(line);
+		// BEGIN PREPROCESSOR
+		if(kind == Lexer.Kind.DIRECTIVE || ctx.preprocessor.isHolding()) {
+			String handled = ctx.preprocessor.process(ctx, line);
+			if(handled != null) return handled.isEmpty() ? parsedLine + formatAssy(null) + line : handled;
+		}
+		if(ctx.preprocessor.hasMacros() && (kind == Lexer.Kind.LABEL || kind == Lexer.Kind.DOUBLE_OP || kind == Lexer.Kind.SINGLE_OP || kind == Lexer.Kind.UNRECOGNIZED)) {
+			String expanded = ctx.preprocessor.expand(ctx, line);
+			if(expanded != null) return expanded.isEmpty() ? parsedLine + formatAssy(null) + line : expanded;
+		}
+		// END PREPROCESSOR
 		
-		if(blankMatch.find()) { // Blank line, give a space to write.
+		if(kind == Lexer.Kind.BLANK) { // Blank line, give a space to write.
 			return parsedLine.trim();
 		}
 		
-		comMatch = commentEnd.matcher(line);
-		if(comMatch.find()) { // We're dealing with a comment/end statement at its root.
+		if(kind == Lexer.Kind.COMMENT) { // We're dealing with a comment/end statement at its root.
 			return parsedLine += formatAssy(null) + line;
 		}
 		// Not a comment, take it seriously.
 		
 		// BEGIN CONSTANT HANDLING / DIRECTIVES
-		constMatch = constantDecl.matcher(line);
-		if(constMatch.find()) { // We're dealing with a constant.
-			String label = constMatch.group(1);
-			String value = constMatch.group(2);
-			String isInvalid = checkValidLabelCase(label, addressCounter);
+		if(kind == Lexer.Kind.CONSTANT) { // We're dealing with a constant.
+			String label = lexer.label();
+			String value = lexer.value();
+			String isInvalid = checkValidLabelCase(ctx, label, ctx.addressCounter);
 			if(isInvalid != null) return isInvalid;
 			
 			int hexValue = 0;
 			if(value.startsWith("$")) { // Handle addressCounter-relative declaration
-				String relativeVar = value.replaceAll("\\$\\s+-\\s+", ""); // Strip the $ -
-				if(symbolTable.containsKey(relativeVar)) { // We can define the address value now
-					hexValue = addressCounter - symbolTable.get(relativeVar);
+				String relativeVar = lexer.relativeLabel(); // Lexer already stripped the $ -
+				int relative = ctx.lookup(relativeVar);
+				if(ctx.module != null && relative >= 0 && ctx.module.sectionOf(relativeVar) != ctx.module.section) {
+					return ctx.error("ERROR - '" + relativeVar + "' must be in the same section as a '$ -' declaration");
 				}
-				else {
-					return "%'"+label+"'%" + "    " + line; // Must save symbolTable and const value for 2nd pass, no way to lookahead
+				if(relative >= 0) { // We can define the address value now
+					hexValue = ctx.addressCounter - ctx.symbolTable.value(relative);
+				}
+				else { // No way to lookahead, the label has to come first
+					return ctx.error("ERROR - '" + relativeVar + "' must be defined before it's used in a '$ -' declaration");
 				}
 			}
-			else if(value.startsWith("%")) { // Parse out binary
-				hexValue = Integer.parseUnsignedInt(value.replace("%", ""), 2); // Parse out bits
+			else try {
+				if(value.startsWith("%")) { // Parse out binary
+					hexValue = Integer.parseUnsignedInt(value.substring(1), 2); // Parse out bits
+				}
+				else hexValue = Integer.decode(value).intValue(); // Parse out hex values
+			} catch (NumberFormatException e) {
+				return ctx.error("ERROR - invalid constant value '" + value + "'");
 			}
-			else hexValue = Integer.decode(value).intValue(); // Parse out hex values
-			symbolTable.put(label, hexValue);
+			if(value.startsWith("$")) ctx.define(label, hexValue);
+			else ctx.defineLiteral(label, hexValue);
+			if(ctx.module != null) ctx.module.constant(label);
 			return hexForm(hexValue) + " " + formatAssy(null) + line;
 		}
 
-		defMatch = defDir.matcher(line);
-		if(defMatch.find()) {
-			String label = defMatch.group(1);
-			String dir = defMatch.group(2);
-			String data = defMatch.group(3);
+		if(kind == Lexer.Kind.DEFINE) {
+			String label = lexer.label();
+			String dir = lexer.mnemonic();
+			String data = lexer.value();
 			String snapshot = parsedLine + formatAssy(null) + line;
 
-			debug("Directive: " + addressCounter + " " + label + " " + dir + " " + data);  // DEBUG
-			String isInvalid = checkValidLabelCase(label, addressCounter);
+			Log.debug(Log.Category.PARSER, () -> "Directive: " + hexForm(ctx.addressCounter) + " " + label + " " + dir + " " + data);
+			String isInvalid = checkValidLabelCase(ctx, label, ctx.addressCounter);
 			if(isInvalid != null) return isInvalid;
 			
 			if(dir.equals("DB")) {
 				if(data.startsWith("\"")) { //Handling defining bytespace for multiple characters
-					addressCounter += data.replace("\"", "").length() + 1; // Add one to compensate for 0-base
-					for(char c : data.replace("\"", "").toCharArray()) {
-						objBuffer.add(String.format("%02X", (int) c));
+					String text = data.substring(1, data.length() - 1);
+					byte[] bytes = new byte[text.length() + 1]; // Strings get a 0 on the end
+					for(int i = 0; i < text.length(); i++) {
+						bytes[i] = (byte) text.charAt(i);
 					}
-				}
-				else if(data.matches("^\\d$")) {
-					addressCounter++;
-					objBuffer.add(String.format("%02X", Integer.parseInt(data)));
+					ctx.addressCounter += bytes.length;
+					ctx.bufferObj(bytes);
 				}
 				else if(data.startsWith("'")) {
-					addressCounter++;
-					objBuffer.add(String.format("%02X", (int) data.replace("'", "").charAt(0)));
+					ctx.addressCounter++;
+					ctx.bufferObj(new byte[] {(byte) data.charAt(1)});
+				}
+				else {
+					int value;
+					try {
+						value = Integer.decode(data);
+					} catch (NumberFormatException e) {
+						return ctx.error("ERROR - invalid byte value '" + data + "'");
+					}
+					if(value < -0x80 || value > 0xFF) return ctx.error("ERROR - byte value '" + data + "' out of range");
+					ctx.addressCounter++;
+					ctx.bufferObj(new byte[] {(byte) value});
 				}
 			}
 			else if(dir.equals("DW")) {
-				addressCounter += 2;
-				objBuffer.add("00");
+				Encoding word = new Encoding();
+				if(data.startsWith("'")) word.add(data.charAt(1));
+				else if(Character.isDigit(data.charAt(0)) || data.charAt(0) == '-') {
+					int value;
+					try {
+						value = Integer.decode(data);
+					} catch (NumberFormatException e) {
+						return ctx.error("ERROR - invalid word value '" + data + "'");
+					}
+					if(value < -0x8000 || value > 0xFFFF) return ctx.error("ERROR - word value '" + data + "' out of range");
+					word.add(value);
+				}
+				else InstructionFactory.extensionWord(ctx, word, data, Fixup.Kind.ABSOLUTE); // A label, maybe one that's still to come
+				ctx.bufferObj(word);
+				ctx.addressCounter += 2;
+				snapshot = parsedLine + formatAssy(word.toHex()) + line;
 			}
 			else if(dir.equals("DS")) {
-				addressCounter += Integer.parseInt(data);
-				for(int i = 0; i < Integer.parseInt(data); i++) {
-					objBuffer.add("00");
+				int size;
+				try {
+					size = Integer.parseInt(data);
+				} catch (NumberFormatException e) {
+					size = -1;
 				}
+				if(size < 0 || size > 0x10000) return ctx.error("ERROR - invalid space size '" + data + "'");
+				ctx.addressCounter += size;
+				ctx.bufferObj(new byte[size]);
 			}
 			return snapshot;
 		}
 
-		orgMatch = orgDir.matcher(line);
-		if(orgMatch.find()) {
+		if(kind == Lexer.Kind.ORG) {
 			//TODO Symbol table for labeled ORG? - unlikely so far
-			String hexAddr = orgMatch.group(2);
-			if(prevAddrCount != addressCounter) { // We must write the data we've collected if this isn't the initial run.
-				obj += String.format("%04d", (addressCounter-prevAddrCount)); // Must be bytes that are encoded as BCD for some reason
-				for(String buff : objBuffer) {
-					obj += buff;
-				}
-				objBuffer.clear();
-				prevAddrCount = addressCounter;
-			}
-			addressCounter = Integer.decode(hexAddr).intValue();
-			obj += addrSeg + hexForm(addressCounter);
+			String hexAddr = lexer.value();
+			if(ctx.module != null) ctx.module.org(ctx);
+			ctx.addressCounter = Integer.decode(hexAddr).intValue();
+			ctx.image.org(ctx.addressCounter); // New segment starts here
+			if(ctx.budget != null) ctx.budget.org();
 			return parsedLine += formatAssy(null) + line;
 		}
 		// END CONSTANT HANDLING / DIRECTIVES
 
 		// Label-only case, followed by potential label cases
-		labelMatch = labelOnly.matcher(line);
-		if(labelMatch.find()) {
-			String label = labelMatch.group(1);
-			debug("Label: " + label);
+		if(kind == Lexer.Kind.LABEL) {
+			String label = lexer.label();
+			Log.debug(Log.Category.SYMBOLS, () -> "Label: " + label);
 			
 			// Single-op no source special case
-			boolean byteOp = label.toLowerCase().contains(".b");
-			String baseInstruction = label.substring(0, label.contains(".") ? label.lastIndexOf('.') : label.length());
-			Instruction i = InstructionFactory.getInstruction(baseInstruction);
+			Instruction i = InstructionFactory.getInstruction(label);
 			if(i != null) { // We're parsing something such as 'ret' or 'reti'
-				String assembled = InstructionFactory.assemble(i, byteOp, null); // Pass in null to trip the edge case in the assemble for single-ops
-				
-				if(assembled.startsWith("ERROR")) { // ERROR Invalid format, the assemble method will give us the output we need
-					//We can remove the symbolTable key here if we failed if necessary
-					return error(assembled);
-				}
-				
-				String correction = assembled;
-				if(correction.matches(".*%'[A-Za-z][\\w\\d]+'%.*")) { // Needed to have sensible values for addressCounter
-					//debug("matched!");
-					correction = correction.replaceAll("%'[A-Za-z][\\w\\d]+'%", "0000");
-				}
-				//debug(assembled + "    " + correction);
-				objBuffer.add(assembled);
-				String snapshot = parsedLine + formatAssy(assembled) + line;
-				addressCounter += correction.length() / 2;
-				return snapshot;
+				return assembleLine(ctx, parsedLine, line, i, false, null, null);
 			}
 			// End single-op special case
 			
-			String isInvalid = checkValidLabelCase(label, addressCounter);
+			String isInvalid = checkValidLabelCase(ctx, label, ctx.addressCounter);
 			if(isInvalid != null) return isInvalid;
+			if(ctx.budget != null) ctx.budget.label(label, ctx.addressCounter);
 			
 			return parsedLine += formatAssy(null) + line;
 		}
 		
-		doubleOpMatch = doubleOp.matcher(line);
-		if(doubleOpMatch.find()) {
-			String label = doubleOpMatch.group(1);
-			String operator = doubleOpMatch.group(2).toLowerCase();
-			String source = doubleOpMatch.group(3);
-			String dst = doubleOpMatch.group(4);
+		if(kind == Lexer.Kind.DOUBLE_OP || kind == Lexer.Kind.SINGLE_OP) {
+			String label = lexer.label();
+			String operator = lexer.mnemonic().toLowerCase();
+			String source = lexer.source();
+			String dst = lexer.destination();
 			
-			debug("DoubleOp: " + addressCounter + " " + label + " " + operator + " " + source + " " + dst);  // DEBUG
+			String ops = source + " " + dst;
+			Log.debug(Log.Category.PARSER, () -> "Op: " + hexForm(ctx.addressCounter) + " " + label + " " + operator + " " + ops);
 
-			if(operator == null) return error("ERROR - opcode is missing");
-			else if(!operator.matches("^[a-zA-Z]{2,4}(?:\\.[wbWB])?$")) {
-				return error("ERROR - invalid opcode format, perhaps incorrect word/byte operation?");
-			}
-			if(source == null) return error("ERROR - source parameter is missing");
-			if(dst == null) return error("ERROR - destination parameter is missing");
-			
-			String isInvalid = checkValidLabelCase(label, addressCounter);
-			if(isInvalid != null) return isInvalid;
-			
-			boolean byteOp = operator.toLowerCase().contains(".b");
-			String baseInstruction = operator.substring(0, operator.contains(".") ? operator.lastIndexOf('.') : operator.length());
-			Instruction i = InstructionFactory.getInstruction(baseInstruction);
-			if(i == null) { // ERROR Undefined instruction
-				return error("ERROR - unknown instruction '" + baseInstruction + "'");
-			}
-			
-			String assembled = InstructionFactory.assemble(i, byteOp, source, dst);
-					
-			if(assembled.startsWith("ERROR")) { // ERROR Invalid format, the assemble method will give us the output we need
-				//We can remove the symbolTable key here if we failed if necessary
-				return error(assembled);
-			}
-			
-			String correction = assembled;
-			if(correction.matches(".*%'[A-Za-z][\\w\\d]+'%.*")) { // Needed to have sensible values for addressCounter
-				//debug("matched!");
-				correction = correction.replaceAll("%'[A-Za-z][\\w\\d]+'%", "0000");
-			}
-			objBuffer.add(assembled);
-			//debug(assembled + "    " + correction);
-			String snapshot = parsedLine + formatAssy(assembled) + line;
-			addressCounter += correction.length() / 2;
-			return snapshot;
-		}
-		
-		singleOpMatch = singleOp.matcher(line);
-		if(singleOpMatch.find()) {
-			String label = singleOpMatch.group(1);
-			String operator = singleOpMatch.group(2).toLowerCase();
-			String source = singleOpMatch.group(3);
-			
-			debug("Single OP: " + hexForm(addressCounter) + " " + label + " " + operator + " " + source);
-			
-			if(operator == null) return error("ERROR - opcode is missing");
-			else if(!operator.matches("^[a-zA-Z]{2,4}(?:\\.[wbWB])?$")) {
-				return error("ERROR - invalid opcode format, perhaps incorrect word/byte operation?");
+			char suffix = lexer.suffix();
+			if(suffix != 0 && suffix != 'w' && suffix != 'b' && suffix != 'W' && suffix != 'B') {
+				return ctx.error("ERROR - invalid opcode format, perhaps incorrect word/byte operation?");
 			}
-			
-			
-			if(source == null) {
-				return error("ERROR - source parameter is missing");
+			if(kind == Lexer.Kind.DOUBLE_OP) {
+				if(source == null) return ctx.error("ERROR - source parameter is missing");
+				if(dst == null) return ctx.error("ERROR - destination parameter is missing");
 			}
 			
-			String isInvalid = checkValidLabelCase(label, addressCounter);
+			String isInvalid = checkValidLabelCase(ctx, label, ctx.addressCounter);
 			if(isInvalid != null) return isInvalid;
+			if(ctx.budget != null && label != null) ctx.budget.label(label, ctx.addressCounter);
 			
-			boolean byteOp = operator.contains(".b");
-			String baseInstruction = operator.substring(0, operator.contains(".") ? operator.lastIndexOf('.') : operator.length());
-			Instruction i = InstructionFactory.getInstruction(baseInstruction);
+			Instruction i = InstructionFactory.getInstruction(lexer.baseMnemonic());
 			if(i == null) { // ERROR Undefined instruction
-				return error("ERROR - unknown instruction '" + baseInstruction + "'");
+				return ctx.error("ERROR - unknown instruction '" + lexer.baseMnemonic().toString().toLowerCase() + "'");
 			}
 			
-			String assembled = InstructionFactory.assemble(i, byteOp, source);
-					
-			if(assembled.startsWith("ERROR")) { // ERROR Invalid format, the assemble method will give us the output we need
-				//We can remove the symbolTable key here if we failed if necessary
-				return error(assembled);
-			}
-			objBuffer.add(assembled);
-			String correction = assembled;
-			if(correction.matches(".*%'[A-Za-z][\\w\\d]+?'%.*")) { // Needed to have sensible values for addressCounter
-				correction = correction.replaceAll("%'[A-Za-z][\\w\\d]+?'%", "0000");
-			}
-			String snapshot = parsedLine + formatAssy(assembled) + line;
-			addressCounter += correction.length() / 2;
-			return snapshot;
+			return assembleLine(ctx, parsedLine, line, i, suffix == 'b' || suffix == 'B', source, dst);
 		}
 //		if(line.matches("^\\s+?(?:([A-Za-z][\\w\\d]+)(?:\\.[wb])?:?)\\s+(?:[&#]?[\\w\\d\\+]+\\s*|[&#]?[\\w\\d\\+]+\\s*,\\s*[&#]?[\\w\\d\\+]+)[^,]*$")) { // ERROR Label not in leftmost column
 //			// TODO Edge case: Verify it's not a direct instruction.
 //			Instruction test = InstructionFactory.getInstruction(line.replaceAll("^\\s+?(?:([A-Za-z][\\w\\d]+):?).*$", "$1"));
 //			if(test == null) {
-//				return error("ERROR - labels can only start in the leftmost column (first character of line)");
+//				return ctx.error("ERROR - labels can only start in the leftmost column (first character of line)");
 //			}
-//			debug("Instruction found: " + test.getOperator());
+//			Log.trace(Log.Category.ENCODER, () -> "Instruction found: " + test.getOperator());
 //			return parsedLine += formatAssy(null) + line;
 //		}
-		return error("ERROR - Unrecognized syntax; check your formatting");
+		return ctx.error("ERROR - Unrecognized syntax; check your formatting");
 	}
 	
 	/**
 	 * @param label - Label passed in to check for validity.
-	 * @param addressCount - Value by assocation for taking care of symbolTable.
+	 * @param addressCount - Value by assocation for taking care of ctx.symbolTable.
 	 * @return null if valid, ERROR message if invalid.
 	 */
-	public static String checkValidLabelCase(String label, int addressCount) {
+	public static String checkValidLabelCase(AssemblerContext ctx, String label, int addressCount) {
 		if(label == null) return null;
-		if(label.matches("^([A-Za-z][\\w\\d]+)$")) { // Valid label, return null.
-			if(symbolTable.containsKey(label)) { // ERROR DUPLICATE LABEL
-				return error("ERROR - duplicate definition of label '" + label + "'.");
+		int n = label.length();
+		int word = 0; // Length of the run of word characters at the start
+		while(word < n && Lexer.isWordChar(label.charAt(word))) word++;
+		boolean alpha = n > 0 && Lexer.isLetter(label.charAt(0));
+		if(alpha && word == n) { // Valid label, return null.
+			if(ctx.lookup(label) >= 0) { // ERROR DUPLICATE LABEL
+				return ctx.error("ERROR - duplicate definition of label '" + label + "'.");
 			}
-			symbolTable.put(label, addressCounter); // Will be inserted regardless of further failure, could remove it though
+			ctx.define(label, ctx.addressCounter); // Will be inserted regardless of further failure, could remove it though
 			return null;
 		}
-		else if(label.matches("^\\s+?([A-Za-z][\\w\\d]+).*$")) {
-			return error("ERROR - labels can only start in the leftmost column (first character of line)");
+		int indent = 0;
+		while(indent < n && Lexer.isSpace(label.charAt(indent))) indent++;
+		if(indent > 0 && indent + 1 < n && Lexer.isLetter(label.charAt(indent)) && Lexer.isWordChar(label.charAt(indent + 1))) {
+			return ctx.error("ERROR - labels can only start in the leftmost column (first character of line)");
 		}
-		else if(label.matches("^[^A-Za-z].*$")) { // ERROR Line/label started with a non-alphabetic character
-			return error("ERROR - labels can only start with alphabetic characters");
+		else if(n > 0 && !alpha) { // ERROR Line/label started with a non-alphabetic character
+			return ctx.error("ERROR - labels can only start with alphabetic characters");
 		}
-		else if(label.matches("^([a-zA-Z]{2,4}(?:\\.[wbWB])?\\s+.*$")) {
-			return error("ERROR - opcodes must not be in the leftmost column.");
+		int letters = 0;
+		while(letters < n && Lexer.isLetter(label.charAt(letters))) letters++;
+		int after = letters;
+		if(after + 1 < n && label.charAt(after) == '.' && "wbWB".indexOf(label.charAt(after + 1)) >= 0) after += 2;
+		if(letters >= 2 && letters <= 4 && after < n && Lexer.isSpace(label.charAt(after))) {
+			return ctx.error("ERROR - opcodes must not be in the leftmost column.");
 		}
-		else if(label.matches("^.*[^\\w\\d]+.*$")) {
-			return error("ERROR - Invalid label format (must be alphanumeric with underscores)");
+		else if(word < n) {
+			return ctx.error("ERROR - Invalid label format (must be alphanumeric with underscores)");
 		}
 		return null;
 	}
 	
+	/**
+	 * Assembles one instruction and queues it for the object file.
+	 * @param parsedLine - Address column already formatted for the listing
+	 * @param line - The source line as written
+	 * @return The listing line, or an ERROR message
+	 */
+	private static String assembleLine(AssemblerContext ctx, String parsedLine, CharSequence line, Instruction i, boolean byteOp, String source, String dst) {
+		Encoding assembled = InstructionFactory.assemble(ctx, i, byteOp, source, dst);
+		
+		if(assembled.isError()) { // ERROR Invalid format, the assemble method will give us the output we need
+			//We can remove the symbolTable key here if we failed if necessary
+			return ctx.error(assembled.getError());
+		}
+		
+		String rewritten = ctx.optimize ? Peephole.optimize(ctx.addressCounter, assembled) : null; // Before the address moves on, labels after it follow
+		ctx.bufferObj(assembled);
+		String snapshot = parsedLine + formatAssy(assembled.toHex()) + line;
+		if(ctx.budget != null && assembled.length() > 0) {
+			int cycles = ctx.budget.instruction(ctx.addressCounter, assembled);
+			snapshot += "  ; " + cycles + (cycles == 1 ? " cycle" : " cycles");
+		}
+		if(rewritten != null) snapshot += "  ; PEEPHOLE - " + rewritten;
+		ctx.addressCounter += assembled.size();
+		return snapshot;
+	}
+	
 	public static String formatAssy(String assembled) {
 		if(assembled == null) return String.format("%-13s", " ");
 		return String.format("%-13s", assembled);
 	}
 	
-	public static String error(String errMsg) {
-		errorOccurred = true;
-		return errMsg;
-	}
-
-	public static void debug(Object o) {
-		if(!debugEnabled) return;
-		System.out.println(o);
-	}
-	
 	public static String hexForm(int input) {
 		return String.format("%04X", input);
 	}
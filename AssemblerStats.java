@@ -0,0 +1,233 @@
+package edu.ttu.drewmitchell;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Counters and timers for one source file: how long each phase took, what kinds of lines it
+ * had and how long they took to lex, how often each instruction was encoded, and how many
+ * symbol references were settled in the first pass versus left to the second. Everything is
+ * also committed as JFR events, so a recording (-XX:StartFlightRecording) picks it up.
+ */
+public class AssemblerStats {
+	public static final int PASS1 = 0, PASS2 = 1, OBJECT = 2;
+	static final String[] PHASES = {"pass1", "pass2", "object"};
+	static final Lexer.Kind[] KINDS = Lexer.Kind.values();
+
+	String file;
+	long[] phaseNanos = new long[PHASES.length];
+	long[] lines = new long[KINDS.length]; // Indexed by Lexer.Kind ordinal
+	long[] lexNanos = new long[KINDS.length];
+	long errors = 0; // Error messages from either pass
+	Map<String, long[]> encodes = new TreeMap<String, long[]>(); // Operator to times it went through the encoder
+
+	// Symbol references in operands
+	long resolved = 0; // Known in the first pass
+	long registers = 0; // Device register names
+	long deferred = 0; // Left to the second pass as fixups
+	long unresolved = 0; // Still unknown in the second pass
+
+	long operandHits = 0, operandMisses = 0; // See OperandCache
+	long segments = 0, reassembled = 0; // ORG segments with --parallel-org, and those that had to wait for the ones before them
+
+	private long phaseStart;
+
+	/**
+	 * @param file - Name the file's reported under
+	 */
+	public AssemblerStats(String file) {
+		this.file = file;
+	}
+
+	/**
+	 * Starts timing a phase, pass what this returns to endPhase.
+	 */
+	PhaseEvent beginPhase() {
+		PhaseEvent event = new PhaseEvent();
+		event.begin();
+		phaseStart = System.nanoTime();
+		return event;
+	}
+
+	/**
+	 * @param event - What beginPhase returned
+	 * @param phase - PASS1, PASS2 or OBJECT
+	 */
+	void endPhase(PhaseEvent event, int phase) {
+		phaseNanos[phase] += System.nanoTime() - phaseStart;
+		event.end();
+		if(event.shouldCommit()) {
+			event.file = file;
+			event.phase = PHASES[phase];
+			event.commit();
+		}
+	}
+
+	/**
+	 * @param kind - What the lexer made of the line
+	 * @param nanos - How long it took to work that out
+	 */
+	void lexed(Lexer.Kind kind, long nanos) {
+		lines[kind.ordinal()]++;
+		lexNanos[kind.ordinal()] += nanos;
+	}
+
+	void encoded(Instruction in) {
+		long[] count = encodes.get(in.getOperator());
+		if(count == null) encodes.put(in.getOperator(), count = new long[1]);
+		count[0]++;
+	}
+
+	/**
+	 * @return Lines the first pass reported an error on, the rest were second pass lookups
+	 */
+	public long errorLines() {
+		return errors - unresolved;
+	}
+
+	/**
+	 * Adds another file's numbers into these, for batch totals.
+	 */
+	public void add(AssemblerStats other) {
+		for(int n = 0; n < phaseNanos.length; n++) {
+			phaseNanos[n] += other.phaseNanos[n];
+		}
+		for(int n = 0; n < lines.length; n++) {
+			lines[n] += other.lines[n];
+			lexNanos[n] += other.lexNanos[n];
+		}
+		errors += other.errors;
+		for(Map.Entry<String, long[]> e : other.encodes.entrySet()) {
+			encodes.computeIfAbsent(e.getKey(), k -> new long[1])[0] += e.getValue()[0];
+		}
+		resolved += other.resolved;
+		registers += other.registers;
+		deferred += other.deferred;
+		unresolved += other.unresolved;
+		operandHits += other.operandHits;
+		operandMisses += other.operandMisses;
+		segments += other.segments;
+		reassembled += other.reassembled;
+	}
+
+	/**
+	 * Commits the per-file summary events, once the file's done.
+	 */
+	public void commit() {
+		LineKindEvent kindEvent = new LineKindEvent();
+		if(kindEvent.isEnabled()) {
+			for(Lexer.Kind kind : KINDS) {
+				if(lines[kind.ordinal()] == 0) continue;
+				kindEvent = new LineKindEvent();
+				kindEvent.file = file;
+				kindEvent.kind = kind.name();
+				kindEvent.lines = lines[kind.ordinal()];
+				kindEvent.lexTime = lexNanos[kind.ordinal()];
+				kindEvent.commit();
+			}
+		}
+		SymbolEvent symbols = new SymbolEvent();
+		if(symbols.isEnabled()) {
+			symbols.file = file;
+			symbols.resolved = resolved;
+			symbols.registers = registers;
+			symbols.deferred = deferred;
+			symbols.unresolved = unresolved;
+			symbols.errors = errors;
+			symbols.operandHits = operandHits;
+			symbols.operandMisses = operandMisses;
+			symbols.commit();
+		}
+	}
+
+	/**
+	 * @return The numbers as a JSON object
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder("{\"file\": \"").append(file.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"");
+		json.append(", \"nanos\": {");
+		for(int n = 0; n < PHASES.length; n++) {
+			json.append(n == 0 ? "" : ", ").append('"').append(PHASES[n]).append("\": ").append(phaseNanos[n]);
+		}
+		json.append("}, \"lines\": {");
+		for(Lexer.Kind kind : KINDS) {
+			json.append('"').append(kind.name().toLowerCase()).append("\": ").append(lines[kind.ordinal()]).append(", ");
+		}
+		json.append("\"error\": ").append(errorLines()).append("}, \"lexNanos\": {");
+		for(Lexer.Kind kind : KINDS) {
+			json.append(kind.ordinal() == 0 ? "" : ", ").append('"').append(kind.name().toLowerCase()).append("\": ").append(lexNanos[kind.ordinal()]);
+		}
+		json.append("}, \"encodes\": {");
+		String sep = "";
+		for(Map.Entry<String, long[]> e : encodes.entrySet()) {
+			json.append(sep).append('"').append(e.getKey()).append("\": ").append(e.getValue()[0]);
+			sep = ", ";
+		}
+		json.append("}, \"symbols\": {\"resolved\": ").append(resolved).append(", \"registers\": ").append(registers)
+			.append(", \"deferred\": ").append(deferred).append(", \"unresolved\": ").append(unresolved).append("}");
+		json.append(", \"operandCache\": {\"hits\": ").append(operandHits).append(", \"misses\": ").append(operandMisses).append("}");
+		json.append(", \"segments\": {\"split\": ").append(segments).append(", \"reassembled\": ").append(reassembled).append("}");
+		return json.append(", \"errors\": ").append(errors).append("}").toString();
+	}
+
+	// BEGIN EVENTS
+
+	@Name("edu.ttu.drewmitchell.Phase")
+	@Label("Assembler Phase")
+	@Category("MSP430 Assembler")
+	@Description("First pass, second pass or object writing for one file")
+	static class PhaseEvent extends Event {
+		@Label("File")
+		String file;
+		@Label("Phase")
+		String phase;
+	}
+
+	@Name("edu.ttu.drewmitchell.LineKind")
+	@Label("Line Kind")
+	@Category("MSP430 Assembler")
+	@Description("How many lines of one kind a file had, and the time spent lexing them")
+	static class LineKindEvent extends Event {
+		@Label("File")
+		String file;
+		@Label("Kind")
+		String kind;
+		@Label("Lines")
+		long lines;
+		@Label("Lex Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long lexTime;
+	}
+
+	@Name("edu.ttu.drewmitchell.Symbols")
+	@Label("Symbol Resolution")
+	@Category("MSP430 Assembler")
+	@Description("Symbol references settled in the first pass versus deferred to the second")
+	static class SymbolEvent extends Event {
+		@Label("File")
+		String file;
+		@Label("Resolved")
+		long resolved;
+		@Label("Device Registers")
+		long registers;
+		@Label("Deferred")
+		long deferred;
+		@Label("Unresolved")
+		long unresolved;
+		@Label("Errors")
+		long errors;
+		@Label("Operand Cache Hits")
+		long operandHits;
+		@Label("Operand Cache Misses")
+		long operandMisses;
+	}
+
+	// END EVENTS
+}
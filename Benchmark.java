@@ -0,0 +1,153 @@
+package edu.ttu.drewmitchell;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times the assembler's hot paths over generated sources and reports throughput and allocation
+ * per operation, so a slower or hungrier build shows up as a number. An operation is one source
+ * line for parseLine and outputList, and one call for everything else.
+ *
+ * Benchmark [-seed N] [-rounds N] [lines ...]
+ */
+public class Benchmark {
+	static int warmup = 3, rounds = 5;
+	static volatile Object sink; // Keeps the JIT from throwing results away
+
+	interface Body {
+		/**
+		 * @return How many operations were done
+		 */
+		long run() throws IOException;
+	}
+
+	public static void main(String[] args) throws IOException {
+		long seed = 430;
+		List<Integer> sizes = new ArrayList<Integer>();
+		for(int a = 0; a < args.length; a++) {
+			if(args[a].equals("-seed") && a + 1 < args.length) seed = Long.parseLong(args[++a]);
+			else if(args[a].equals("-rounds") && a + 1 < args.length) rounds = Integer.parseInt(args[++a]);
+			else sizes.add(Integer.parseInt(args[a]));
+		}
+		if(sizes.isEmpty()) {
+			sizes.add(1000);
+			sizes.add(100000);
+			sizes.add(1000000);
+		}
+
+		Log.configure("off");
+		File dir = Files.createTempDirectory("s43bench").toFile();
+		System.out.println(String.format("%-9s %-20s %14s %12s", "Lines", "Benchmark", "ops/s", "B/op"));
+		for(int size : sizes) {
+			File source = new File(dir, "corpus" + size + ".s43");
+			new CorpusGenerator(seed).write(size, source);
+			run(size, source);
+		}
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private static void run(int size, File source) throws IOException {
+		List<String> lines = Files.readAllLines(source.toPath());
+		AssemblerContext resolved = AssemblerPhase3.outputList(source); // Symbol table to assemble against
+
+		// Pull the pieces each benchmark needs out of the corpus up front
+		List<Instruction> doubles = new ArrayList<Instruction>(), singles = new ArrayList<Instruction>();
+		List<String[]> doubleOperands = new ArrayList<String[]>(), singleOperands = new ArrayList<String[]>();
+		List<CharSequence> mnemonics = new ArrayList<CharSequence>();
+		List<String> hex = new ArrayList<String>();
+		Lexer lexer = new Lexer();
+		for(String line : lines) {
+			Lexer.Kind kind = lexer.lex(line);
+			if(kind != Lexer.Kind.DOUBLE_OP && kind != Lexer.Kind.SINGLE_OP) continue;
+			Instruction i = InstructionFactory.getInstruction(lexer.baseMnemonic());
+			String byteOp = lexer.suffix() == 'b' ? "b" : "";
+			mnemonics.add(lexer.baseMnemonic().toString());
+			if(kind == Lexer.Kind.DOUBLE_OP) {
+				doubles.add(i);
+				doubleOperands.add(new String[] { byteOp, lexer.source(), lexer.destination() });
+			}
+			else {
+				singles.add(i);
+				singleOperands.add(new String[] { byteOp, lexer.source() });
+			}
+			hex.add(InstructionFactory.assemble(resolved, i, !byteOp.isEmpty(), lexer.source(), lexer.destination()).toHex());
+		}
+
+		report(size, "outputList", () -> {
+			sink = AssemblerPhase3.outputList(source);
+			return lines.size();
+		});
+		report(size, "parseLine", () -> {
+			AssemblerContext ctx = new AssemblerContext();
+			for(String line : lines) {
+				sink = AssemblerPhase3.parseLine(ctx, line);
+			}
+			return lines.size();
+		});
+		report(size, "assemble(src, dst)", () -> {
+			for(int n = 0; n < doubles.size(); n++) {
+				String[] op = doubleOperands.get(n);
+				sink = InstructionFactory.assemble(resolved, doubles.get(n), !op[0].isEmpty(), op[1], op[2]);
+			}
+			return doubles.size();
+		});
+		report(size, "assemble(src)", () -> {
+			for(int n = 0; n < singles.size(); n++) {
+				String[] op = singleOperands.get(n);
+				sink = InstructionFactory.assemble(resolved, singles.get(n), !op[0].isEmpty(), op[1]);
+			}
+			return singles.size();
+		});
+		report(size, "getInstruction", () -> {
+			for(CharSequence m : mnemonics) {
+				sink = InstructionFactory.getInstruction(m);
+			}
+			return mnemonics.size();
+		});
+		report(size, "listByteOrder", () -> {
+			for(String h : hex) {
+				sink = InstructionFactory.listByteOrder(h);
+			}
+			return hex.size();
+		});
+	}
+
+	/**
+	 * Runs the body through its warmup, then reports the best of the timed rounds.
+	 * @param size - Corpus size, for the report
+	 * @param name - Benchmark name, for the report
+	 */
+	private static void report(int size, String name, Body body) throws IOException {
+		for(int r = 0; r < warmup; r++) {
+			body.run();
+		}
+		double best = 0, bytes = Double.MAX_VALUE;
+		for(int r = 0; r < rounds; r++) {
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			long ops = body.run();
+			long elapsed = System.nanoTime() - start;
+			allocated = allocatedBytes() - allocated;
+			if(ops == 0) continue;
+			best = Math.max(best, ops * 1e9 / elapsed);
+			bytes = Math.min(bytes, (double) allocated / ops);
+		}
+		System.out.println(String.format("%-9d %-20s %14.0f %12s", size, name, best, allocatedBytes() < 0 || bytes == Double.MAX_VALUE ? "n/a" : String.format("%.1f", bytes)));
+	}
+
+	/**
+	 * @return Bytes this thread has allocated so far, or -1 if the JVM doesn't keep count
+	 */
+	private static long allocatedBytes() {
+		if(!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) return -1;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		return threads.isThreadAllocatedMemorySupported() ? threads.getCurrentThreadAllocatedBytes() : -1;
+	}
+}
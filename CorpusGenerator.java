@@ -0,0 +1,231 @@
+package edu.ttu.drewmitchell;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Writes synthetic .s43 sources for benchmarking. The same seed always gives the same file, so
+ * numbers from different runs are comparable. Output is split into ORG segments small enough
+ * that every jump stays in range, and every label that's referenced gets defined somewhere.
+ * Each segment starts where the one before it ended, so none of them lay over each other until
+ * the corpus is too big for 64K, when it starts over at 0x0200.
+ */
+public class CorpusGenerator {
+	static final int SEGMENT_LINES = 4096; // Keeps a segment well inside 0x0200-0xFFFF
+	static final int START = 0x0200; // Where the first segment goes
+	static final int LABEL_EVERY = 8; // Every eighth line of a segment carries a label
+
+	static final String[] DOUBLE_OPS = {"mov", "add", "addc", "sub", "subc", "cmp", "dadd", "bit", "bic", "bis", "xor", "and"};
+	static final String[] SINGLE_OPS = {"rrc", "rra", "push", "swpb", "sxt", "call", "inc", "dec", "clr", "tst", "inv", "rla", "pop"};
+	static final String[] JUMPS = {"jne", "jeq", "jnc", "jc", "jn", "jge", "jl", "jmp"};
+	static final String[] HEADER = {"P1OUT", "P1REN", "P2OUT", "WDTCTL"};
+
+	// Mix, as percentages of the lines in a segment
+	int comments = 5;
+	int directives = 5;
+	int jumps = 10;
+	int forwardRefs = 30; // Of the lines that reference a label, how many look ahead
+
+	// Addressing mode weights for source operands, destinations ignore the source-only ones
+	int register = 30, indexed = 10, indirect = 10, autoInc = 10, immediate = 25, absolute = 10, symbolic = 5;
+
+	private final Random random;
+	private int segment, line, constants;
+	private int address; // Where the next segment goes
+
+	public CorpusGenerator(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * Applies "name=value" overrides to the mix, e.g. "directives=20" or "immediate=0".
+	 * @param setting - One override
+	 */
+	public void set(String setting) {
+		int eq = setting.indexOf('=');
+		if(eq < 0) throw new IllegalArgumentException("ERROR - expected name=value, got '" + setting + "'");
+		int value = Integer.parseInt(setting.substring(eq + 1));
+		switch(setting.substring(0, eq)) {
+		case "comments": comments = value; break;
+		case "directives": directives = value; break;
+		case "jumps": jumps = value; break;
+		case "forward": forwardRefs = value; break;
+		case "register": register = value; break;
+		case "indexed": indexed = value; break;
+		case "indirect": indirect = value; break;
+		case "autoinc": autoInc = value; break;
+		case "immediate": immediate = value; break;
+		case "absolute": absolute = value; break;
+		case "symbolic": symbolic = value; break;
+		default: throw new IllegalArgumentException("ERROR - unknown setting '" + setting.substring(0, eq) + "'");
+		}
+	}
+
+	/**
+	 * @param lines - How many lines to write, give or take the closing end
+	 * @param out - Where the source goes
+	 */
+	public void write(int lines, File out) throws IOException {
+		BufferedWriter w = new BufferedWriter(new FileWriter(out));
+		generate(lines, w);
+		w.close();
+	}
+
+	public void generate(int lines, Appendable out) throws IOException {
+		segment = 0;
+		address = START;
+		constants = 16;
+		out.append("; Generated corpus, ").append(String.valueOf(lines)).append(" lines\n");
+		for(int c = 0; c < constants; c++) { // Constants for immediates to pick from
+			if(c % 2 == 0) out.append(String.format("K%d EQU 0x%04X\n", c, random.nextInt(0x10000)));
+			else out.append(String.format("K%d EQU %%%s\n", c, Integer.toBinaryString(0x100 | random.nextInt(0x100)).substring(1)));
+		}
+		int written = constants + 1;
+		while(written < lines) {
+			int count = Math.min(SEGMENT_LINES, lines - written);
+			writeSegment(count, out);
+			written += count + 1;
+			segment++;
+		}
+		out.append("      end\n");
+	}
+
+	private void writeSegment(int count, Appendable out) throws IOException {
+		StringBuilder body = new StringBuilder(); // Written out once its size says where it can go
+		int bytes = 0; // At most, an immediate may turn out to be one the constant generator makes
+		int lastLabel = (count - 1) / LABEL_EVERY;
+		for(line = 0; line < count; line++) {
+			String label = line % LABEL_EVERY == 0 ? label(line / LABEL_EVERY) : "";
+			int roll = random.nextInt(100);
+			if(roll < comments && label.isEmpty()) {
+				body.append("; ").append(String.valueOf(line)).append('\n');
+				continue;
+			}
+			body.append(String.format("%-9s ", label));
+			roll -= comments;
+			if(roll < directives) {
+				bytes += directive(body);
+			}
+			else if(roll - directives < jumps) {
+				body.append(pick(JUMPS)).append(' ').append(target(lastLabel));
+				bytes += 2;
+			}
+			else if(random.nextInt(3) == 0) {
+				String op = pick(SINGLE_OPS);
+				body.append(op).append(suffix(op)).append(' ');
+				boolean pushed = op.equals("push") || op.equals("call");
+				String operand = pushed ? operand(true, lastLabel) : operand(false, lastLabel);
+				body.append(operand);
+				if(op.equals("push") && (operand.equals("#4") || operand.equals("#8"))) bytes += 4; // Not from R2, see erratum CPU4 in InstructionFactory
+				else bytes += 2 + extraBytes(operand) * (op.equals("rla") ? 2 : 1); // rla is add dst, dst
+			}
+			else {
+				String source = operand(true, lastLabel), dst = operand(false, lastLabel);
+				body.append(pick(DOUBLE_OPS)).append(random.nextInt(4) == 0 ? ".b" : "").append(' ');
+				body.append(source).append(", ").append(dst);
+				bytes += 2 + extraBytes(source) + extraBytes(dst);
+			}
+			body.append('\n');
+		}
+		if(address + bytes > 0x10000) address = START; // Out of memory, the corpus is bigger than a real program could be
+		out.append(String.format("      ORG 0x%04X\n", address)).append(body);
+		address = address + bytes + 1 & ~1;
+	}
+
+	/**
+	 * @return Bytes the directive adds
+	 */
+	private int directive(StringBuilder out) {
+		switch(random.nextInt(4)) {
+		case 0:
+			out.append("DB '").append((char) ('a' + random.nextInt(26))).append('\'');
+			return 1;
+		case 1:
+			String text = "s" + random.nextInt(1000);
+			out.append("DB \"").append(text).append('"');
+			return text.length() + 1; // Strings get a 0 on the end
+		case 2:
+			int space = 1 + random.nextInt(8);
+			out.append("DS ").append(String.valueOf(space));
+			return space;
+		default:
+			out.append("DW ").append(String.valueOf(random.nextInt(10)));
+			return 2;
+		}
+	}
+
+	/**
+	 * @param operand - As operand wrote it
+	 * @return Most bytes of extension word it needs
+	 */
+	private static int extraBytes(String operand) {
+		if(operand.startsWith("R") || operand.startsWith("@")) return 0;
+		if(operand.startsWith("#") && Character.isDigit(operand.charAt(1)) && !operand.startsWith("#0x")) {
+			return InstructionFactory.constantGenerator(Integer.parseInt(operand.substring(1))) >= 0 ? 0 : 2;
+		}
+		return 2;
+	}
+
+	/**
+	 * @param source - Whether the source-only modes (indirect, autoincrement, immediate) are allowed
+	 */
+	private String operand(boolean source, int lastLabel) {
+		int total = register + indexed + absolute + symbolic + (source ? indirect + autoInc + immediate : 0);
+		int roll = random.nextInt(Math.max(total, 1));
+		if((roll -= register) < 0) return reg();
+		if((roll -= indexed) < 0) return random.nextInt(64) + "(" + reg() + ")";
+		if((roll -= absolute) < 0) return "&" + (random.nextBoolean() ? pick(HEADER) : target(lastLabel));
+		if((roll -= symbolic) < 0) return target(lastLabel);
+		if((roll -= indirect) < 0) return "@" + reg();
+		if((roll -= autoInc) < 0) return "@" + reg() + "+";
+		switch(random.nextInt(4)) { // Immediate
+		case 0: return "#" + random.nextInt(9); // Mostly constant generator values
+		case 1: return "#0x" + Integer.toHexString(random.nextInt(0x10000)).toUpperCase();
+		case 2: return "#K" + random.nextInt(constants);
+		default: return "#" + target(lastLabel);
+		}
+	}
+
+	/**
+	 * @return A label near the current line, ahead of it forwardRefs percent of the time
+	 */
+	private String target(int lastLabel) {
+		int here = line / LABEL_EVERY;
+		int n = random.nextInt(100) < forwardRefs ? here + 1 + random.nextInt(8) : here - random.nextInt(8);
+		return label(Math.max(0, Math.min(n, lastLabel)));
+	}
+
+	private String label(int n) {
+		return "S" + segment + "L" + n;
+	}
+
+	private String reg() {
+		return "R" + (4 + random.nextInt(12));
+	}
+
+	private String suffix(String op) {
+		return !op.equals("swpb") && !op.equals("sxt") && !op.equals("call") && random.nextInt(4) == 0 ? ".b" : "";
+	}
+
+	private String pick(String[] from) {
+		return from[random.nextInt(from.length)];
+	}
+
+	/**
+	 * CorpusGenerator lines seed out.s43 [name=value ...]
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length < 3) {
+			System.out.println("Usage: CorpusGenerator lines seed out.s43 [name=value ...]");
+			return;
+		}
+		CorpusGenerator gen = new CorpusGenerator(Long.parseLong(args[1]));
+		for(int a = 3; a < args.length; a++) {
+			gen.set(args[a]);
+		}
+		gen.write(Integer.parseInt(args[0]), new File(args[2]));
+	}
+}
@@ -0,0 +1,107 @@
+package edu.ttu.drewmitchell;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cycle counts for the listing (--timing) and, per code label, the size and cycles of the straight
+ * run of instructions from it up to the next label, data or ORG. Every instruction in a run is
+ * counted once, which is the worst case for code without loops in it since a jump takes 2 cycles
+ * taken or not. Kept up as the first pass goes, so there's no extra pass over the code.
+ */
+public class CycleBudget {
+	/**
+	 * One label's run of instructions.
+	 */
+	static class Region {
+		final String label;
+		final int address;
+		int bytes, cycles, instructions;
+
+		Region(String label, int address) {
+			this.label = label;
+			this.address = address;
+		}
+	}
+
+	private final List<Region> regions = new ArrayList<Region>(); // In source order
+	private final List<Region> open = new ArrayList<Region>(); // Labels the current run started at, more than one if they share an address
+	private final List<String> pending = new ArrayList<String>(); // Labels not yet followed by anything
+	private int pendingAddress, next = -1; // Where they are, and where the current run carries on
+
+	/**
+	 * @param label - Label defined on a code or label-only line
+	 * @param address - Its value
+	 */
+	void label(String label, int address) {
+		if(!pending.isEmpty() && pendingAddress != address) pending.clear();
+		pending.add(label);
+		pendingAddress = address;
+	}
+
+	/**
+	 * Ends the current run, as ORG does even when it carries on from the same address.
+	 */
+	void org() {
+		open.clear();
+		pending.clear();
+		next = -1;
+	}
+
+	/**
+	 * @param address - Where the instruction goes
+	 * @param assembled - Its final length, jumps may still be waiting on their offset
+	 * @return Its cycles
+	 */
+	int instruction(int address, Encoding assembled) {
+		int cycles = cycles(assembled);
+		if(address != next) open.clear(); // Data came in between
+		if(!pending.isEmpty() && pendingAddress == address) {
+			open.clear();
+			for(String label : pending) {
+				Region region = new Region(label, address);
+				regions.add(region);
+				open.add(region);
+			}
+		}
+		pending.clear();
+		for(Region region : open) {
+			region.bytes += assembled.size();
+			region.cycles += cycles;
+			region.instructions++;
+		}
+		next = address + assembled.size();
+		return cycles;
+	}
+
+	/**
+	 * @param assembled - An instruction, its opcode word may be a jump's fixup
+	 * @return Cycles it takes (see Emulator.cycles)
+	 */
+	static int cycles(Encoding assembled) {
+		boolean jump = assembled.fixupCount() > 0 && assembled.fixup(0).slot == 0;
+		return Emulator.cycles(jump ? assembled.fixup(0).getAddend() : assembled.word(0));
+	}
+
+	/**
+	 * @param other - The budget of the source that came next, starting at an ORG
+	 */
+	void add(CycleBudget other) {
+		regions.addAll(other.regions);
+	}
+
+	/**
+	 * @param trailer - End of the listing, the table's added after the symbol table
+	 */
+	void appendTo(StringBuilder trailer) {
+		int maxLen = 0;
+		for(Region region : regions) {
+			if(region.label.length() > maxLen) maxLen = region.label.length();
+		}
+		trailer.append(String.format("%-" + (maxLen + 4) + "s", "\nLabel:")).append("     Addr:   Bytes:  Instrs:  Cycles:\n");
+		for(Region region : regions) {
+			trailer.append(String.format("%-" + (maxLen + 4) + "s", region.label)).append("     ").append(AssemblerPhase3.hexForm(region.address))
+					.append(String.format("   %6d   %6d   %6d", region.bytes, region.instructions, region.cycles)).append("\n");
+		}
+	}
+}
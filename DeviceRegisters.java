@@ -0,0 +1,254 @@
+package edu.ttu.drewmitchell;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Register and bit names from a device's header files, such as WDTCTL or P1OUT. The headers
+ * (C .h, linker .cmd, or assembler .def/.inc) are parsed once into a binary hash index cached
+ * on disk, later runs just map the index. Nothing is read until the first lookup.
+ *
+ * Index layout: magic, version, stamp of the sources it was built from, slot count, entry count,
+ * then per slot {hash, name offset + 1 (0 if empty), value}, then the names as length-prefixed
+ * upper case ASCII.
+ */
+public class DeviceRegisters {
+	static final int MAGIC = 0x52343330; // "R430"
+	static final int VERSION = 1;
+	static final int HEADER = 24, SLOT = 12;
+
+	// BEGIN PATTERNS
+	// Every run is possessive (*+, ++) so a long line that doesn't match fails in one sweep, rather than trying
+	// every way of splitting a run of blanks between two of them (see ParseFuzzer)
+	static final String NUMBER = "(0[xX][0-9A-Fa-f]++|\\d++)[uUlL]*+";
+	static final Pattern define = Pattern.compile("^\\s*+#define\\s++(\\w++)\\s++\\(?\\s*+" + NUMBER + "\\s*+\\)?\\s*+(?:/[/*].*)?$");
+	static final Pattern linker = Pattern.compile("^\\s*+(\\w++)\\s*+=\\s*+" + NUMBER + "\\s*+;.*$");
+	static final Pattern equate = Pattern.compile("^\\s*+(\\w++)(?:\\s*+:)?\\s++(?:\\.equ|\\.set|EQU)\\s++" + NUMBER + "\\s*+(?:;.*)?$", Pattern.CASE_INSENSITIVE);
+	// END PATTERNS
+
+	// The registers the sample sources use, for when no device is given
+	static final String[][] BUILTIN = {
+		{"P1OUT", "0021"},
+		{"P1REN", "0027"},
+		{"P2OUT", "0029"},
+		{"WDTCTL", "0120"},
+		{"WDTPW", "5A00"},
+		{"WDTHOLD", "0080"},
+	};
+
+	private final File[] sources;
+	private final File index;
+	private volatile ByteBuffer table; // Loaded on first lookup
+	private int mask;
+
+	private DeviceRegisters(File[] sources, File index, ByteBuffer table) {
+		this.sources = sources;
+		this.index = index;
+		if(table != null) use(table);
+	}
+
+	/**
+	 * @return The handful of registers the assembler has always known
+	 */
+	public static DeviceRegisters builtin() {
+		Map<String, Integer> registers = new LinkedHashMap<String, Integer>();
+		for(String[] r : BUILTIN) {
+			registers.put(r[0], Integer.parseInt(r[1], 16));
+		}
+		return new DeviceRegisters(new File[0], null, build(registers, 0));
+	}
+
+	/**
+	 * @param sources - The device's header files
+	 * @param cacheDir - Where the index is kept between runs
+	 * @return Registers for the device, read when first needed
+	 */
+	public static DeviceRegisters open(File[] sources, File cacheDir) {
+		String device = sources[0].getName().replaceFirst("\\.[^.]*$", "");
+		StringBuilder paths = new StringBuilder();
+		for(File f : sources) {
+			paths.append(f.getAbsolutePath()).append(File.pathSeparatorChar);
+		}
+		return new DeviceRegisters(sources, new File(cacheDir, device + "-" + Integer.toHexString(paths.toString().hashCode()) + ".regidx"), null);
+	}
+
+	/**
+	 * @param name - Register or bit name, any case
+	 * @return Its slot in the index, or -1 if the device doesn't have it
+	 */
+	public int find(CharSequence name) {
+		ByteBuffer t = table();
+		int hash = hash(name);
+		for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int at = HEADER + slot * SLOT;
+			int nameAt = t.getInt(at + 4);
+			if(nameAt == 0) return -1;
+			if(t.getInt(at) == hash && sameName(t, nameAt - 1, name)) return slot;
+		}
+	}
+
+	/**
+	 * @param slot - What find returned
+	 */
+	public int value(int slot) {
+		return table().getInt(HEADER + slot * SLOT + 8);
+	}
+
+	/**
+	 * @return How many names the device has
+	 */
+	public int size() {
+		return table().getInt(20);
+	}
+
+	private ByteBuffer table() {
+		ByteBuffer t = table;
+		if(t == null) {
+			synchronized(this) {
+				if(table == null) {
+					try {
+						use(load());
+					} catch (IOException e) {
+						throw new UncheckedIOException("ERROR - couldn't read device header: " + e.getMessage(), e);
+					}
+				}
+				t = table;
+			}
+		}
+		return t;
+	}
+
+	private void use(ByteBuffer t) {
+		mask = t.getInt(16) - 1;
+		table = t;
+	}
+
+	/**
+	 * Maps the cached index, building it first if it's missing or older than the headers.
+	 */
+	private ByteBuffer load() throws IOException {
+		long stamp = 0;
+		for(File f : sources) {
+			if(!f.isFile()) throw new IOException(f.getPath() + " not found");
+			stamp = stamp * 31 + f.lastModified() * 17 + f.length();
+		}
+		if(index.isFile()) {
+			ByteBuffer cached = map(index);
+			if(cached.capacity() >= HEADER && cached.getInt(0) == MAGIC && cached.getInt(4) == VERSION && cached.getLong(8) == stamp) return cached;
+		}
+
+		Map<String, Integer> registers = new LinkedHashMap<String, Integer>();
+		for(File f : sources) {
+			parse(f, registers);
+		}
+		ByteBuffer built = build(registers, stamp);
+		index.getParentFile().mkdirs();
+		File temp = new File(index.getPath() + ".tmp"); // Other assemblers may be mapping the old one
+		Files.write(temp.toPath(), built.array());
+		if(!temp.renameTo(index)) {
+			index.delete();
+			temp.renameTo(index);
+		}
+		return built;
+	}
+
+	/**
+	 * @param line - One line of a header
+	 * @param registers - Upper case name to value, added to if the line defines one
+	 * @return Whether it did
+	 */
+	static boolean parseLine(String line, Map<String, Integer> registers) {
+		Matcher m = define.matcher(line);
+		if(!m.matches()) m = linker.matcher(line);
+		if(!m.matches()) m = equate.matcher(line);
+		if(!m.matches() || m.group(1).length() > 0xFF) return false;
+		String digits = m.group(2);
+		long value;
+		try {
+			value = digits.startsWith("0x") || digits.startsWith("0X") ? Long.parseLong(digits.substring(2), 16) : Long.parseLong(digits);
+		} catch (NumberFormatException e) { // Too big to be an address
+			return false;
+		}
+		registers.put(m.group(1).toUpperCase(), (int) value);
+		return true;
+	}
+
+	private static ByteBuffer map(File f) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(f, "r")) {
+			return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		}
+	}
+
+	/**
+	 * Pulls every name = number definition out of a header, whichever flavour it is.
+	 * @param registers - Upper case name to value, added to
+	 */
+	static void parse(File header, Map<String, Integer> registers) throws IOException {
+		for(String line : Files.readAllLines(header.toPath(), StandardCharsets.ISO_8859_1)) {
+			parseLine(line, registers);
+		}
+		for(String name : registers.keySet().toArray(new String[0])) { // TI headers give addresses as P1OUT_ and declare P1OUT through a macro
+			if(name.length() > 1 && name.endsWith("_")) registers.putIfAbsent(name.substring(0, name.length() - 1), registers.get(name));
+		}
+	}
+
+	/**
+	 * @return The index, laid out as described up top
+	 */
+	static ByteBuffer build(Map<String, Integer> registers, long stamp) {
+		int slots = Integer.highestOneBit(Math.max(registers.size(), 1)) << 2; // At most half full
+		int namesAt = HEADER + slots * SLOT;
+		int size = namesAt;
+		for(String name : registers.keySet()) {
+			size += 1 + name.length();
+		}
+		ByteBuffer t = ByteBuffer.allocate(size);
+		t.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, stamp).putInt(16, slots).putInt(20, registers.size());
+		int next = namesAt;
+		for(Map.Entry<String, Integer> r : registers.entrySet()) {
+			String name = r.getKey();
+			int hash = hash(name);
+			int slot = hash & (slots - 1);
+			while(t.getInt(HEADER + slot * SLOT + 4) != 0) slot = (slot + 1) & (slots - 1);
+			t.putInt(HEADER + slot * SLOT, hash).putInt(HEADER + slot * SLOT + 4, next + 1).putInt(HEADER + slot * SLOT + 8, r.getValue());
+			t.put(next++, (byte) name.length());
+			for(int i = 0; i < name.length(); i++) {
+				t.put(next++, (byte) name.charAt(i));
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * FNV-1a over the upper-cased name
+	 */
+	private static int hash(CharSequence name) {
+		int h = 0x811C9DC5;
+		for(int i = 0; i < name.length(); i++) {
+			h = (h ^ upper(name.charAt(i))) * 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean sameName(ByteBuffer t, int at, CharSequence name) {
+		if((t.get(at) & 0xFF) != name.length()) return false;
+		for(int i = 0; i < name.length(); i++) {
+			if(t.get(at + 1 + i) != upper(name.charAt(i))) return false;
+		}
+		return true;
+	}
+
+	private static char upper(char c) {
+		return c >= 'a' && c <= 'z' ? (char) (c & ~0x20) : c;
+	}
+}
@@ -0,0 +1,692 @@
+package edu.ttu.drewmitchell;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Turns object code back into source. It's an ObjectEmitter, so an ObjectImage can be handed
+ * straight to it, and the readers at the bottom feed it object files as they're read, in any
+ * of the formats ObjectEmitter writes. Every opcode word is looked up in a table built once for
+ * all 64K of them, which already knows the mnemonic (emulated ones preferred, as the source
+ * would have had them), each operand's mode and register, and how many extension words follow.
+ *
+ * The output assembles back to the same bytes: labels come from the symbol table if there is
+ * one, addresses without one get an L_xxxx name EQU'd at the end, and words the assembler could
+ * never have produced (illegal opcodes, immediates it would give the constant generator, jumps
+ * that wrap around memory) come out as DW with what they'd decode to in a comment. Each line ends
+ * with its address and bytes as the listing shows them.
+ *
+ * Disassembler [--symbols=file.s43] [--base=0xNNNN] (file.s43 | .txt | .ti.txt | .hex | .bin)
+ * Disassembler --roundtrip (file.s43 | dir) ...
+ */
+public class Disassembler extends ObjectEmitter {
+	// Operand modes in a table entry
+	static final int REG = 0, INDEXED = 1, SYMBOLIC = 2, ABSOLUTE = 3, INDIRECT = 4, AUTOINC = 5, IMMEDIATE = 6, CONST = 7;
+	static final int[] CONSTANTS = {0, 1, 2, -1, 4, 8}; // Constant generator values, CONST keeps the index in its register field
+	static final int VECTORS = 0xFFC0; // Interrupt vectors from here up, listed as words rather than code
+
+	// Table entry layout
+	static final int NAME = 0x7F;          // Index into NAMES, 0 for none
+	static final int BYTE = 1 << 7;
+	static final int EXT_SHIFT = 8;        // Extension words, 0 to 2
+	static final int SRC_REG_SHIFT = 10, SRC_MODE_SHIFT = 14, DST_REG_SHIFT = 17, DST_MODE_SHIFT = 21;
+	static final int SHOW_SRC = 1 << 24, SHOW_DST = 1 << 25, JUMP = 1 << 26, DATA = 1 << 27; // DATA: listed as DW
+
+	static final String[] NAMES; // Lower case mnemonics, in InstructionFactory.ISA order after an empty slot 0
+	static final int[] TABLE = new int[0x10000];
+
+	private final String[] labelAt = new String[0x10000];
+	private final Map<String, Integer> referenced = new LinkedHashMap<String, Integer>(); // Names used in operands
+	private final Set<String> defined = new HashSet<String>(); // Names given a line of their own
+	private final StringBuilder line = new StringBuilder(80);
+	private boolean unwritable; // Set while formatting an operand the assembler has no syntax for
+
+	// Bytes held over from the last segment, when an instruction ran past its end
+	private final byte[] pending = new byte[6];
+	private int pendingLength = 0;
+	private int next = -1; // Address after the last byte taken in, -1 before the first segment
+	private final byte[] memory = new byte[0x10000]; // What the lines so far put where
+	private final boolean[] written = new boolean[0x10000];
+
+	/**
+	 * @param out - Where the source goes
+	 * @param symbols - Names for addresses, may be null
+	 */
+	public Disassembler(OutputStream out, SymbolTable symbols) {
+		super(out);
+		if(symbols == null) return;
+		for(int id : symbols.sorted()) { // First name in alphabetical order wins an address
+			int value = symbols.value(id) & 0xFFFF;
+			if(labelAt[value] == null) labelAt[value] = symbols.name(id);
+		}
+	}
+
+	// BEGIN TABLE
+
+	static {
+		List<Instruction> inst = InstructionFactory.inst;
+		NAMES = new String[inst.size() + 1];
+		NAMES[0] = "";
+		for(int n = 0; n < inst.size(); n++) {
+			NAMES[n + 1] = inst.get(n).getOperator();
+		}
+		for(int word = 0; word < TABLE.length; word++) {
+			TABLE[word] = describe(word);
+		}
+	}
+
+	/**
+	 * Works out everything about an opcode word that doesn't depend on its extension words.
+	 * @return Its table entry
+	 */
+	static int describe(int word) {
+		List<Instruction> inst = InstructionFactory.inst;
+		boolean byteOp = (word & 0x40) != 0;
+		if(word >= 0x4000) { // Format I
+			int src = word >> 8 & 0xF | (word >> 4 & 3) << 4, dst = word & 0xF | (word >> 7 & 1) << 4;
+			int core = -1, emulated = -1, fixed = 0;
+			for(int n = 0; n < inst.size(); n++) {
+				Instruction i = inst.get(n);
+				if(i.getFormat() == Instruction.Format.DOUBLE && i.getOpBits() == (word & 0xF000) && core < 0) core = n;
+				if(i.getFormat() != Instruction.Format.EMULATED || i.getCore().getOpBits() != (word & 0xF000)) continue;
+				if(byteOp && !i.hasByteOp()) continue;
+				int s = i.getFixedSrc(), d = i.getFixedDst();
+				if(s >= 0 && s != src || d >= 0 && d != dst) continue;
+				if(s < 0 && d < 0 && (src != dst || src >> 4 != 0)) continue; // rla and rlc, the same register twice
+				int count = (s >= 0 ? 1 : 0) + (d >= 0 ? 1 : 0);
+				if(count > fixed || emulated < 0) {
+					emulated = n;
+					fixed = count;
+				}
+			}
+			int entry = operands(word >> 8 & 0xF, word >> 4 & 3, word & 0xF, word >> 7 & 1) | (byteOp ? BYTE : 0);
+			if(emulated >= 0) {
+				Instruction i = inst.get(emulated);
+				entry |= emulated + 1;
+				if(i.getFixedSrc() < 0 && i.getFixedDst() >= 0) entry |= SHOW_SRC; // br
+				else if(i.getFixedDst() < 0) entry |= SHOW_DST;
+				return entry;
+			}
+			return entry | core + 1 | SHOW_SRC | SHOW_DST;
+		}
+		if(word >= 0x2000) { // Jumps, the first of each pair of aliases (jne, not jnz)
+			for(int n = 0; n < inst.size(); n++) {
+				if(inst.get(n).getFormat() == Instruction.Format.JUMP && inst.get(n).getOpBits() == (word & 0xFC00)) return n + 1 | JUMP;
+			}
+		}
+		if((word & 0xFC00) == 0x1000) { // Format II
+			for(int n = 0; n < inst.size(); n++) {
+				Instruction i = inst.get(n);
+				if(i.getFormat() != Instruction.Format.SINGLE || i.getOpBits() != (word & 0xFF80)) continue;
+				if(i.getOperandCount() == 0) return (word & 0x7F) == 0 ? n + 1 : DATA; // reti
+				int entry = operands(word & 0xF, word >> 4 & 3, 0, 0) | n + 1 | SHOW_SRC | (byteOp ? BYTE : 0);
+				if(byteOp && !i.hasByteOp()) entry |= DATA;
+				if(i.getOpBits() == 0x1200 && mode(entry, SRC_MODE_SHIFT) == CONST && register(entry, SRC_REG_SHIFT) >= 4) entry |= DATA; // push #4/#8 keep their word
+				return entry;
+			}
+		}
+		return DATA; // Nothing decodes to this
+	}
+
+	/**
+	 * @return The operand fields of a table entry, with how many extension words they need
+	 */
+	private static int operands(int srcReg, int as, int dstReg, int ad) {
+		int srcMode, ext = 0;
+		if(srcReg == 3 || srcReg == 2 && as >= 2) {
+			srcMode = CONST;
+			srcReg = srcReg == 3 ? as : as + 2; // Index into CONSTANTS
+		}
+		else if(as == 0) srcMode = REG;
+		else if(as == 1) {
+			srcMode = srcReg == 0 ? SYMBOLIC : srcReg == 2 ? ABSOLUTE : INDEXED;
+			ext++;
+		}
+		else if(as == 2) srcMode = INDIRECT;
+		else if(srcReg == 0) {
+			srcMode = IMMEDIATE;
+			ext++;
+		}
+		else srcMode = AUTOINC;
+		int dstMode = REG;
+		if(ad == 1) {
+			dstMode = dstReg == 0 ? SYMBOLIC : dstReg == 2 ? ABSOLUTE : INDEXED;
+			ext++;
+		}
+		return ext << EXT_SHIFT | srcReg << SRC_REG_SHIFT | srcMode << SRC_MODE_SHIFT | dstReg << DST_REG_SHIFT | dstMode << DST_MODE_SHIFT;
+	}
+
+	static int mode(int entry, int shift) {
+		return entry >> shift & 7;
+	}
+
+	static int register(int entry, int shift) {
+		return entry >> shift & 0xF;
+	}
+
+	/**
+	 * @return Words the instruction takes up, opcode included
+	 */
+	static int length(int entry) {
+		return 1 + (entry >> EXT_SHIFT & 3);
+	}
+
+	// END TABLE
+
+	// BEGIN EMITTER
+
+	public void segment(int address, byte[] data, int offset, int length, boolean org) throws IOException {
+		if(length == 0) return;
+		if(address != next) {
+			flush();
+			line.setLength(0);
+			line.append("\tORG 0x");
+			hex4(address);
+			writeLine();
+		}
+		else if(pendingLength > 0) { // Carry on with what the last segment left over
+			byte[] joined = new byte[pendingLength + length];
+			System.arraycopy(pending, 0, joined, 0, pendingLength);
+			System.arraycopy(data, offset, joined, pendingLength, length);
+			address -= pendingLength;
+			data = joined;
+			offset = 0;
+			length = joined.length;
+			pendingLength = 0;
+		}
+		int end = offset + length;
+		int at = offset;
+		while(end - at >= 2) {
+			if((address + at - offset & 0xFFFF) >= VECTORS) {
+				vector(address + at - offset & 0xFFFF, data, at);
+				at += 2;
+				continue;
+			}
+			int entry = TABLE[data[at] & 0xFF | (data[at + 1] & 0xFF) << 8];
+			int words = length(entry);
+			if(end - at < words * 2) break; // Extension words are in the next segment, or missing
+			instruction(address + at - offset & 0xFFFF, data, at, entry);
+			at += words * 2;
+		}
+		for(int i = offset; i < at; i++) {
+			memory[address + i - offset & 0xFFFF] = data[i];
+			written[address + i - offset & 0xFFFF] = true;
+		}
+		pendingLength = end - at;
+		System.arraycopy(data, at, pending, 0, pendingLength);
+		next = address + length & 0xFFFF;
+		if(address + length == 0x10000) next = 0x10000; // Nothing follows the top of memory
+	}
+
+	public void end() throws IOException {
+		flush();
+		for(Map.Entry<String, Integer> name : referenced.entrySet()) { // Addresses that never started a line
+			if(defined.contains(name.getKey())) continue;
+			line.setLength(0);
+			line.append(name.getKey()).append(" EQU 0x");
+			hex4(name.getValue());
+			writeLine();
+		}
+		out.flush();
+	}
+
+	/**
+	 * Lists whatever bytes are left over as data.
+	 */
+	private void flush() throws IOException {
+		int address = next - pendingLength & 0xFFFF;
+		for(int at = 0; at < pendingLength; ) {
+			line.setLength(0);
+			label(address + at);
+			if(pendingLength - at >= 2) {
+				word(pending[at] & 0xFF | (pending[at + 1] & 0xFF) << 8);
+				at += 2;
+			}
+			else {
+				int b = pending[at] & 0xFF, after = address + at + 1 & 0xFFFF;
+				if(b <= 9) line.append("\tDB ").append(b);
+				else if(b < 0x80 && (Lexer.isWordChar((char) b) || b == '-')) line.append("\tDB '").append((char) b).append('\'');
+				else if(after != 0 && written[after]) word(b | (memory[after] & 0xFF) << 8); // DB can't say it, but the byte after can be written again as it is
+				else line.append("\tDB 0x").append(hexDigit(b >> 4)).append(hexDigit(b)); // Nor this, the round trip reports it
+				at++;
+			}
+			writeLine();
+		}
+		pendingLength = 0;
+	}
+
+	// END EMITTER
+
+	// BEGIN FORMATTING
+
+	/**
+	 * Lists one instruction, or its words as DW if the assembler couldn't have written it.
+	 */
+	private void instruction(int address, byte[] data, int at, int entry) throws IOException {
+		line.setLength(0);
+		label(address);
+		if((entry & NAME) == 0) { // Not an instruction at all
+			word(data[at] & 0xFF | (data[at + 1] & 0xFF) << 8);
+			comment(address, data, at, 1);
+			writeLine();
+			return;
+		}
+		int words = length(entry);
+		int start = line.length();
+		if((entry & DATA) == 0) {
+			unwritable = false;
+			line.append('\t');
+			text(address, data, at, entry);
+			if(!unwritable) {
+				comment(address, data, at, words);
+				writeLine();
+				return;
+			}
+			line.setLength(start); // Falls back to the words, so it still assembles the same
+		}
+		for(int w = 0; w < words; w++) {
+			if(w > 0) {
+				line.setLength(0);
+				label(address + w * 2);
+			}
+			word(data[at + w * 2] & 0xFF | (data[at + w * 2 + 1] & 0xFF) << 8);
+			if(w == 0) {
+				line.append("\t; ");
+				text(address, data, at, entry);
+				comment(address, data, at, words);
+			}
+			writeLine();
+		}
+	}
+
+	/**
+	 * Lists an interrupt vector as the address it points to.
+	 */
+	private void vector(int address, byte[] data, int at) throws IOException {
+		line.setLength(0);
+		label(address);
+		line.append("\tDW ").append(name(data[at] & 0xFF | (data[at + 1] & 0xFF) << 8));
+		comment(address, data, at, 1);
+		writeLine();
+	}
+
+	/**
+	 * Appends the instruction as source, e.g. "mov.b #0x0001, &P1OUT".
+	 */
+	private void text(int address, byte[] data, int at, int entry) {
+		line.append(NAMES[entry & NAME]);
+		if((entry & BYTE) != 0) line.append(".b");
+		int opcode = data[at] & 0xFF | (data[at + 1] & 0xFF) << 8;
+		if((entry & JUMP) != 0) {
+			int offset = opcode & 0x3FF;
+			if(offset >= 0x200) offset -= 0x400;
+			int target = address + 2 + offset * 2;
+			if(target < 0 || target > 0xFFFF) unwritable = true; // Wraps around memory, the assembler doesn't
+			line.append(' ').append(name(target & 0xFFFF));
+			return;
+		}
+		int ext = at + 2;
+		int srcMode = mode(entry, SRC_MODE_SHIFT);
+		boolean srcExt = srcMode == INDEXED || srcMode == SYMBOLIC || srcMode == ABSOLUTE || srcMode == IMMEDIATE;
+		boolean toPc = (entry & SHOW_DST) != 0 && mode(entry, DST_MODE_SHIFT) == REG && register(entry, DST_REG_SHIFT) == 0
+				|| NAMES[entry & NAME].equals("call") || NAMES[entry & NAME].equals("br");
+		String sep = " ";
+		if((entry & SHOW_SRC) != 0) {
+			line.append(sep);
+			operand(srcMode, register(entry, SRC_REG_SHIFT), address + ext - at, data, ext, toPc);
+			sep = ", ";
+			if(srcMode == IMMEDIATE) { // One the constant generator makes would assemble a word shorter, bar push #4/#8
+				int x = data[ext] & 0xFF | (data[ext + 1] & 0xFF) << 8;
+				unwritable |= InstructionFactory.constantGenerator(x) >= 0 && !(NAMES[entry & NAME].equals("push") && (x == 4 || x == 8));
+			}
+		}
+		if(srcExt) ext += 2;
+		if((entry & SHOW_DST) != 0) {
+			line.append(sep);
+			operand(mode(entry, DST_MODE_SHIFT), register(entry, DST_REG_SHIFT), address + ext - at, data, ext, false);
+		}
+	}
+
+	/**
+	 * @param extAddress - Where the operand's extension word is
+	 * @param ext - Where it is in data
+	 * @param target - Whether an immediate is somewhere to go, and so worth naming
+	 */
+	private void operand(int mode, int reg, int extAddress, byte[] data, int ext, boolean target) {
+		int x = mode == INDEXED || mode == SYMBOLIC || mode == ABSOLUTE || mode == IMMEDIATE ? data[ext] & 0xFF | (data[ext + 1] & 0xFF) << 8 : 0;
+		switch(mode) {
+		case REG:
+			line.append('R').append(reg);
+			break;
+		case INDEXED:
+			line.append(x).append("(R").append(reg).append(')');
+			unwritable |= x > 9999; // Indexes are at most four decimal digits
+			break;
+		case SYMBOLIC:
+			line.append(name(extAddress + x & 0xFFFF));
+			break;
+		case ABSOLUTE:
+			line.append('&').append(name(x));
+			break;
+		case INDIRECT:
+			line.append("@R").append(reg);
+			break;
+		case AUTOINC:
+			line.append("@R").append(reg).append('+');
+			break;
+		case IMMEDIATE:
+			if(target) line.append('#').append(name(x));
+			else {
+				line.append("#0x");
+				hex4(x);
+			}
+			break;
+		default:
+			line.append("#0x");
+			hex4(CONSTANTS[reg]);
+		}
+	}
+
+	/**
+	 * @return The label for an address, made up if the symbol table hasn't one
+	 */
+	private String name(int address) {
+		String name = labelAt[address];
+		if(name == null) name = labelAt[address] = "L_" + AssemblerPhase3.hexForm(address);
+		referenced.putIfAbsent(name, address);
+		return name;
+	}
+
+	private void label(int address) {
+		String name = labelAt[address];
+		if(name != null && defined.add(name)) line.append(name); // Overlapping segments list an address more than once
+	}
+
+	private void word(int word) {
+		line.append("\tDW 0x");
+		hex4(word);
+	}
+
+	/**
+	 * Pads out to the comment column and adds the address and bytes as the listing shows them.
+	 */
+	private void comment(int address, byte[] data, int at, int words) {
+		int column = 0;
+		for(int i = 0; i < line.length(); i++) {
+			column = line.charAt(i) == '\t' ? (column + 8) & ~7 : column + 1;
+		}
+		if(line.indexOf(";") < 0) {
+			do line.append(' '); while(++column < 40);
+			line.append("; ");
+		}
+		else line.append(' ');
+		hex4(address);
+		line.append(' ');
+		for(int i = at; i < at + words * 2; i++) {
+			line.append(hexDigit(data[i] >> 4)).append(hexDigit(data[i]));
+		}
+	}
+
+	private void hex4(int value) {
+		line.append(hexDigit(value >> 12)).append(hexDigit(value >> 8)).append(hexDigit(value >> 4)).append(hexDigit(value));
+	}
+
+	private static char hexDigit(int value) {
+		return (char) HEX[value & 0xF];
+	}
+
+	private void writeLine() throws IOException {
+		line.append('\n');
+		for(int i = 0; i < line.length(); i++) {
+			out.write(line.charAt(i));
+		}
+	}
+
+	// END FORMATTING
+
+	// BEGIN READERS
+
+	/**
+	 * Streams an object file into an emitter, segment by segment as it's read.
+	 * @param file - .txt (faux), .ti.txt, .hex or .bin
+	 * @param base - Address a .bin starts at
+	 */
+	public static void read(File file, int base, ObjectEmitter emitter) throws IOException {
+		String name = file.getName().toLowerCase();
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+			emitter.begin();
+			if(name.endsWith(".ti.txt")) readTiTxt(in, emitter);
+			else if(name.endsWith(".txt")) readFaux(in, emitter);
+			else if(name.endsWith(".hex")) readIntelHex(in, emitter);
+			else if(name.endsWith(".bin")) {
+				byte[] chunk = new byte[4096];
+				for(int n; (n = in.readNBytes(chunk, 0, chunk.length)) > 0; base += n) {
+					emitter.segment(base & 0xFFFF, chunk, 0, n, true);
+				}
+			}
+			else throw new IOException("ERROR - don't know the object format of '" + file.getName() + "'");
+			emitter.end();
+		}
+	}
+
+	private static void readFaux(InputStream in, ObjectEmitter emitter) throws IOException {
+		if(!new String(in.readNBytes(15), StandardCharsets.US_ASCII).equals("CaseyMitchell00")) throw new IOException("ERROR - not a faux object file");
+		int address = 0x200, sum = 0; // Bytes before any ORG go where the assembler starts
+		byte[] chunk = new byte[4096];
+		while(true) {
+			String tag = new String(in.readNBytes(4), StandardCharsets.US_ASCII);
+			if(tag.equals("FF00")) { // FF00AA55 and an address
+				in.readNBytes(4);
+				address = hex(in, 4);
+			}
+			else if(tag.equals("FFAA")) { // FFAA5500 and the sum
+				in.readNBytes(4);
+				if(hex(in, 4) != (sum & 0xFFFF)) throw new IOException("ERROR - faux object file checksum doesn't match");
+				return;
+			}
+			else {
+				int count;
+				try {
+					count = Integer.parseInt(tag);
+				} catch (NumberFormatException e) {
+					throw new IOException("ERROR - faux object file is cut short or corrupt");
+				}
+				for(int done = 0; done < count; ) {
+					int n = Math.min(chunk.length, count - done);
+					for(int i = 0; i < n; i++) {
+						chunk[i] = (byte) hex(in, 2);
+						sum += chunk[i] & 0xFF;
+					}
+					emitter.segment(address + done & 0xFFFF, chunk, 0, n, true);
+					done += n;
+				}
+				address += count;
+			}
+		}
+	}
+
+	private static void readTiTxt(InputStream in, ObjectEmitter emitter) throws IOException {
+		byte[] chunk = new byte[4096];
+		int address = 0, n = 0;
+		for(int c; (c = in.read()) >= 0; ) {
+			if(c == '@' || c == 'q') {
+				if(n > 0) emitter.segment(address & 0xFFFF, chunk, 0, n, true);
+				address += n;
+				n = 0;
+				if(c == 'q') return;
+				address = hex(in, 4);
+			}
+			else if(Character.digit(c, 16) >= 0) {
+				chunk[n++] = (byte) (Character.digit(c, 16) << 4 | hex(in, 1));
+				if(n == chunk.length) {
+					emitter.segment(address & 0xFFFF, chunk, 0, n, true);
+					address += n;
+					n = 0;
+				}
+			}
+		}
+		throw new IOException("ERROR - TI-TXT file has no q at the end");
+	}
+
+	private static void readIntelHex(InputStream in, ObjectEmitter emitter) throws IOException {
+		byte[] data = new byte[255];
+		int upper = 0;
+		for(int c; (c = in.read()) >= 0; ) {
+			if(c != ':') continue;
+			int count = hex(in, 2), address = hex(in, 4), type = hex(in, 2);
+			int sum = count + (address >> 8) + address + type;
+			for(int i = 0; i < count; i++) {
+				data[i] = (byte) hex(in, 2);
+				sum += data[i] & 0xFF;
+			}
+			if((sum + hex(in, 2) & 0xFF) != 0) throw new IOException("ERROR - Intel HEX record checksum doesn't match");
+			if(type == 0) emitter.segment(upper + address & 0xFFFF, data, 0, count, true); // Only 16 bits of address on an MSP430
+			else if(type == 4) upper = (data[0] & 0xFF) << 24 | (data[1] & 0xFF) << 16;
+			else if(type == 1) return;
+		}
+		throw new IOException("ERROR - Intel HEX file has no end record");
+	}
+
+	private static int hex(InputStream in, int digits) throws IOException {
+		int value = 0;
+		for(int d = 0; d < digits; d++) {
+			int digit = Character.digit(in.read(), 16);
+			if(digit < 0) throw new IOException("ERROR - expected a hex digit");
+			value = value << 4 | digit;
+		}
+		return value;
+	}
+
+	// END READERS
+
+	// BEGIN ROUND TRIP
+
+	/**
+	 * Memory as an image wrote it, and which bytes it wrote.
+	 */
+	static class Memory extends ObjectEmitter {
+		final byte[] bytes = new byte[0x10000];
+		final boolean[] written = new boolean[0x10000];
+
+		Memory() {
+			super(OutputStream.nullOutputStream());
+		}
+
+		public void segment(int address, byte[] data, int offset, int length, boolean org) {
+			for(int i = 0; i < length; i++) {
+				bytes[address + i & 0xFFFF] = data[offset + i];
+				written[address + i & 0xFFFF] = true;
+			}
+		}
+
+		public void end() {
+		}
+	}
+
+	/**
+	 * Assembles a file, disassembles the result, assembles that and checks the two images match.
+	 * @return Differences found, each as a line of text, empty if it came back the same
+	 */
+	public static List<String> roundTrip(File source) throws IOException {
+		List<String> problems = new ArrayList<String>();
+		File dir = source.getAbsoluteFile().getParentFile();
+		AssemblerContext first;
+		try (SourceReader input = SourceReader.open(source)) {
+			first = AssemblerPhase3.assemble(input, dir, source.getName(), new ByteArrayOutputStream());
+		}
+		if(first.hasErrors()) {
+			problems.add("source has errors, nothing to compare");
+			return problems;
+		}
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		first.image.emit(new Disassembler(text, first.symbolTable));
+		ByteArrayOutputStream listing = new ByteArrayOutputStream();
+		AssemblerContext second = AssemblerPhase3.assemble(SourceReader.read(new ByteArrayInputStream(text.toByteArray())), dir, source.getName() + ".dis", listing);
+		if(second.hasErrors()) {
+			for(String line : listing.toString(StandardCharsets.ISO_8859_1).split("\n")) {
+				if(line.contains("ERROR - ")) problems.add("disassembly doesn't assemble: " + line.trim());
+			}
+		}
+		Memory before = new Memory(), after = new Memory();
+		first.image.emit(before);
+		second.image.emit(after);
+		for(int address = 0; address < 0x10000; address++) {
+			if(before.written[address] == after.written[address] && before.bytes[address] == after.bytes[address]) continue;
+			problems.add(String.format("%04X: %s assembled, %s after disassembling", address,
+					before.written[address] ? String.format("%02X", before.bytes[address] & 0xFF) : "nothing",
+					after.written[address] ? String.format("%02X", after.bytes[address] & 0xFF) : "nothing"));
+		}
+		return problems;
+	}
+
+	// END ROUND TRIP
+
+	public static void main(String[] args) throws IOException {
+		boolean roundTrip = false;
+		int base = -1;
+		File symbolSource = null;
+		List<File> files = new ArrayList<File>();
+		for(String arg : args) {
+			if(arg.equals("--roundtrip")) roundTrip = true;
+			else if(arg.startsWith("--symbols=")) symbolSource = new File(arg.substring("--symbols=".length()));
+			else if(arg.startsWith("--base=")) base = Integer.decode(arg.substring("--base=".length()));
+			else {
+				File f = new File(arg);
+				if(f.isDirectory()) {
+					File[] found = f.listFiles((dir, name) -> name.toLowerCase().endsWith(".s43"));
+					Arrays.sort(found);
+					files.addAll(Arrays.asList(found));
+				}
+				else files.add(f);
+			}
+		}
+		Log.configure("off");
+		if(roundTrip) {
+			boolean clean = true;
+			for(File source : files) {
+				List<String> problems = roundTrip(source);
+				System.out.println(source.getPath() + ": " + (problems.isEmpty() ? "OK" : problems.size() + " differences"));
+				for(int n = 0; n < Math.min(problems.size(), 20); n++) {
+					System.out.println("  " + problems.get(n));
+				}
+				clean &= problems.isEmpty();
+			}
+			System.exit(clean ? 0 : 1);
+		}
+		if(files.size() != 1) {
+			System.out.println("Usage: Disassembler [--symbols=file.s43] [--base=0xNNNN] (file.s43 | .txt | .ti.txt | .hex | .bin)");
+			System.out.println("       Disassembler --roundtrip (file.s43 | dir) ...");
+			return;
+		}
+		File file = files.get(0);
+		SymbolTable symbols = null;
+		AssemblerContext ctx = null;
+		if(file.getName().toLowerCase().endsWith(".s43")) symbolSource = file;
+		if(symbolSource != null) {
+			try (SourceReader input = SourceReader.open(symbolSource)) {
+				ctx = AssemblerPhase3.assemble(input, symbolSource.getAbsoluteFile().getParentFile(), symbolSource.getName(), new ByteArrayOutputStream());
+			}
+			symbols = ctx.symbolTable;
+		}
+		OutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+		Disassembler disassembler = new Disassembler(out, symbols);
+		if(file == symbolSource) ctx.image.emit(disassembler);
+		else read(file, base >= 0 ? base : 0x10000 - (int) Math.min(file.length(), 0x10000), disassembler);
+		out.flush();
+	}
+}
@@ -0,0 +1,557 @@
+package edu.ttu.drewmitchell;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs assembled programs on an MSP430 CPU with a flat 64K memory, no hardware needed. Each
+ * address is decoded the first time it's executed and the result kept, addressing modes already
+ * worked out (symbolic, absolute and immediate operands become fixed addresses and constants),
+ * so the loop only re-decodes an address after something writes over it. Cycles are counted per
+ * instruction from the family user's guide tables and kept per address, which profile() folds
+ * into the labels of the program's symbol table.
+ *
+ * Peripherals and interrupts aren't modelled, every address is plain memory. A run stops when
+ * CPUOFF is set (e.g. "bis #16, SR"), on a jump to itself, on an illegal instruction, or when it
+ * has used up the cycles it was given.
+ *
+ * Emulator file.s43 [--cycles=N] [--profile]
+ */
+public class Emulator {
+	public enum Stop { CPU_OFF, LOOP, ILLEGAL, CYCLES }
+
+	static final int C = 0x0001, Z = 0x0002, N = 0x0004, GIE = 0x0008, CPUOFF = 0x0010, V = 0x0100;
+	static final int RESET_VECTOR = 0xFFFE;
+	static final int STACK_TOP = 0x0400; // SP until the program sets its own
+
+	// Where a decoded operand's value comes from
+	static final int REG = 0, CONST = 1, ABS = 2, INDEXED = 3, INDIRECT = 4, AUTOINC = 5;
+
+	// Op kinds besides Format I, which uses its opcode's top nibble (4 to 15)
+	static final int RRC = 16, SWPB = 17, RRA = 18, SXT = 19, PUSH = 20, CALL = 21, RETI = 22, JUMP = 24, ILLEGAL = 25;
+
+	/**
+	 * One instruction, decoded.
+	 */
+	static final class Op {
+		int kind;
+		boolean byteOp;
+		int srcMode, srcReg, srcValue; // Single operand instructions only use these
+		int dstMode, dstReg, dstValue;
+		int length;    // In bytes
+		int cycles;
+		int condition; // Jumps, bits 10-12 of the opcode
+		int target;    // Jumps
+	}
+
+	final byte[] memory = new byte[0x10000];
+	final int[] r = new int[16];
+	private final Op[] decoded = new Op[0x8000]; // Indexed by word address
+	private final long[] cyclesAt = new long[0x8000], executedAt = new long[0x8000];
+	long cycles = 0, instructions = 0;
+
+	/**
+	 * Clears memory and loads an assembled program. PC starts at the reset vector if the program set one,
+	 * otherwise at its first segment.
+	 * @param ctx - What outputList returned
+	 */
+	public void load(AssemblerContext ctx) {
+		Arrays.fill(memory, (byte) 0);
+		Arrays.fill(decoded, null);
+		Arrays.fill(r, 0);
+		ctx.image.load(memory);
+		int reset = word(RESET_VECTOR);
+		r[0] = (reset != 0 ? reset : ctx.image.startAddress()) & 0xFFFE;
+		r[1] = STACK_TOP;
+	}
+
+	// BEGIN MEMORY
+
+	public int word(int address) {
+		address &= 0xFFFE;
+		return memory[address] & 0xFF | (memory[address + 1] & 0xFF) << 8;
+	}
+
+	int read(int address, boolean byteOp) {
+		return byteOp ? memory[address & 0xFFFF] & 0xFF : word(address);
+	}
+
+	/**
+	 * Stores to memory and forgets any decoded instruction the bytes were part of.
+	 */
+	void write(int address, int value, boolean byteOp) {
+		address &= byteOp ? 0xFFFF : 0xFFFE;
+		memory[address] = (byte) value;
+		if(!byteOp) memory[address + 1] = (byte) (value >> 8);
+		int w = address >> 1; // An instruction is at most three words, so it started here or up to two words back
+		decoded[w] = null;
+		decoded[w - 1 & 0x7FFF] = null;
+		decoded[w - 2 & 0x7FFF] = null;
+	}
+
+	public void writeWord(int address, int value) {
+		write(address, value, false);
+	}
+
+	// END MEMORY
+
+	// BEGIN DECODER
+
+	/**
+	 * @param pc - Address of the instruction's first word
+	 */
+	Op decode(int pc) {
+		Op op = new Op();
+		int word = word(pc);
+		int next = pc + 2; // Address of the next extension word
+		op.cycles = cycles(word);
+		if(word >= 0x4000) { // Format I
+			op.kind = word >> 12;
+			op.byteOp = (word & 0x40) != 0;
+			next = source(op, word >> 8 & 0xF, word >> 4 & 3, pc, next);
+			op.dstReg = word & 0xF;
+			if((word & 0x80) == 0) op.dstMode = REG;
+			else {
+				int x = word(next);
+				if(op.dstReg == 2) {
+					op.dstMode = ABS;
+					op.dstValue = x;
+				}
+				else if(op.dstReg == 0) { // Symbolic, relative to the extension word
+					op.dstMode = ABS;
+					op.dstValue = next + x & 0xFFFF;
+				}
+				else {
+					op.dstMode = INDEXED;
+					op.dstValue = x;
+				}
+				next += 2;
+			}
+		}
+		else if(word >= 0x2000) {
+			op.kind = JUMP;
+			op.condition = word >> 10 & 7;
+			int offset = word & 0x3FF;
+			if(offset >= 0x200) offset -= 0x400;
+			op.target = pc + 2 + offset * 2 & 0xFFFF;
+		}
+		else if((word & 0xFC00) == 0x1000 && (word >> 7 & 7) < 7) { // Format II
+			op.kind = RRC + (word >> 7 & 7);
+			op.byteOp = (word & 0x40) != 0;
+			next = source(op, word & 0xF, word >> 4 & 3, pc, next);
+			if(op.kind < PUSH && (word & 0x3F) == 0x30) op.kind = ILLEGAL; // Nowhere to put the result of shifting an immediate
+		}
+		else op.kind = ILLEGAL;
+		op.length = next - pc;
+		return op;
+	}
+
+	/**
+	 * Fills in the source side of an op.
+	 * @return Address after any extension word it used
+	 */
+	private int source(Op op, int reg, int as, int pc, int next) {
+		op.srcReg = reg;
+		if(reg == 3) { // Constant generator: 0, 1, 2, -1
+			op.srcMode = CONST;
+			op.srcValue = as == 3 ? 0xFFFF : as;
+			return next;
+		}
+		if(reg == 2 && as >= 2) { // Constant generator: 4, 8
+			op.srcMode = CONST;
+			op.srcValue = as == 2 ? 4 : 8;
+			return next;
+		}
+		switch(as) {
+		case 0:
+			if(reg == 0) { // The PC reads as the address after the opcode word
+				op.srcMode = CONST;
+				op.srcValue = pc + 2;
+			}
+			else op.srcMode = REG;
+			return next;
+		case 1: {
+			int x = word(next);
+			if(reg == 2) { // Absolute
+				op.srcMode = ABS;
+				op.srcValue = x;
+			}
+			else if(reg == 0) { // Symbolic
+				op.srcMode = ABS;
+				op.srcValue = next + x & 0xFFFF;
+			}
+			else {
+				op.srcMode = INDEXED;
+				op.srcValue = x;
+			}
+			return next + 2;
+		}
+		case 2:
+			if(reg == 0) {
+				op.srcMode = ABS;
+				op.srcValue = pc + 2;
+			}
+			else op.srcMode = INDIRECT;
+			return next;
+		default:
+			if(reg == 0) { // Immediate
+				op.srcMode = CONST;
+				op.srcValue = word(next);
+				return next + 2;
+			}
+			op.srcMode = AUTOINC;
+			return next;
+		}
+	}
+
+	// Cycles by source addressing (see addressing), Format I by where the result goes, Format II by instruction
+	private static final int[] TO_REGISTER = {1, 2, 2, 2, 3}, TO_PC = {2, 2, 3, 3, 3}, TO_MEMORY = {4, 5, 5, 5, 6};
+	private static final int[] SHIFT_CYCLES = {1, 3, 3, 3, 4}, PUSH_CYCLES = {3, 4, 4, 4, 5}, CALL_CYCLES = {4, 4, 5, 5, 5};
+
+	/**
+	 * @param word - An instruction's opcode word
+	 * @return Cycles it takes on the MSP430 (x2xx family tables), constant generator operands count as registers
+	 */
+	public static int cycles(int word) {
+		word &= 0xFFFF;
+		if(word >= 0x4000) {
+			int src = addressing(word >> 8 & 0xF, word >> 4 & 3);
+			int dst = word & 0xF;
+			return (word & 0x80) != 0 ? TO_MEMORY[src] : dst == 0 ? TO_PC[src] : TO_REGISTER[src];
+		}
+		if(word >= 0x2000) return 2;
+		if((word & 0xFC00) == 0x1000) {
+			int mode = addressing(word & 0xF, word >> 4 & 3);
+			switch(word >> 7 & 7) {
+			case 4: return PUSH_CYCLES[mode];
+			case 5: return CALL_CYCLES[mode];
+			case 6: return 5; // RETI
+			case 7: return 1;
+			default: return SHIFT_CYCLES[mode];
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * @return 0 for register, 1 for @Rn, 2 for @Rn+, 3 for immediate, 4 for indexed, symbolic or absolute
+	 */
+	private static int addressing(int reg, int as) {
+		if(reg == 3 || reg == 2 && as >= 2) return 0;
+		if(as == 3 && reg == 0) return 3;
+		return as == 0 ? 0 : as == 1 ? 4 : as == 2 ? 1 : 2;
+	}
+
+	// END DECODER
+
+	// BEGIN EXECUTION
+
+	/**
+	 * Runs until the program stops or the cycles run out.
+	 * @param maxCycles - Cycles to run for at most
+	 */
+	public Stop run(long maxCycles) {
+		long limit = cycles + maxCycles;
+		while(cycles < limit) {
+			int pc = r[0];
+			Op op = decoded[pc >> 1];
+			if(op == null) op = decoded[pc >> 1] = decode(pc);
+			if(op.kind == ILLEGAL) return Stop.ILLEGAL;
+			r[0] = pc + op.length & 0xFFFF;
+			cycles += op.cycles;
+			instructions++;
+			cyclesAt[pc >> 1] += op.cycles;
+			executedAt[pc >> 1]++;
+			if(op.kind == JUMP) {
+				if(taken(op.condition)) {
+					if(op.target == pc) return Stop.LOOP;
+					r[0] = op.target;
+				}
+			}
+			else if(op.kind < RRC) execute(op);
+			else executeSingle(op);
+			if((r[2] & CPUOFF) != 0) return Stop.CPU_OFF;
+		}
+		return Stop.CYCLES;
+	}
+
+	private boolean taken(int condition) {
+		int sr = r[2];
+		switch(condition) {
+		case 0: return (sr & Z) == 0; // JNE
+		case 1: return (sr & Z) != 0; // JEQ
+		case 2: return (sr & C) == 0; // JNC
+		case 3: return (sr & C) != 0; // JC
+		case 4: return (sr & N) != 0; // JN
+		case 5: return ((sr & N) != 0) == ((sr & V) != 0); // JGE
+		case 6: return ((sr & N) != 0) != ((sr & V) != 0); // JL
+		default: return true; // JMP
+		}
+	}
+
+	private int sourceValue(Op op) {
+		boolean b = op.byteOp;
+		switch(op.srcMode) {
+		case REG: return b ? r[op.srcReg] & 0xFF : r[op.srcReg];
+		case CONST: return b ? op.srcValue & 0xFF : op.srcValue;
+		case ABS: return read(op.srcValue, b);
+		case INDEXED: return read(r[op.srcReg] + op.srcValue, b);
+		case INDIRECT: return read(r[op.srcReg], b);
+		default:
+			int value = read(r[op.srcReg], b);
+			r[op.srcReg] = r[op.srcReg] + (b && op.srcReg != 1 ? 1 : 2) & 0xFFFF;
+			return value;
+		}
+	}
+
+	/**
+	 * @return Where a single operand instruction's operand lives, -1 for a register
+	 */
+	private int sourceAddress(Op op) {
+		switch(op.srcMode) {
+		case ABS: return op.srcValue;
+		case INDEXED: return r[op.srcReg] + op.srcValue & 0xFFFF;
+		case INDIRECT: return r[op.srcReg];
+		case AUTOINC:
+			int address = r[op.srcReg];
+			r[op.srcReg] = address + (op.byteOp && op.srcReg != 1 ? 1 : 2) & 0xFFFF;
+			return address;
+		default: return -1;
+		}
+	}
+
+	private void setRegister(int reg, int value, boolean byteOp) {
+		if(reg == 3) return; // Constant generator, writes go nowhere
+		value &= byteOp ? 0xFF : 0xFFFF;
+		r[reg] = reg == 0 ? value & 0xFFFE : value;
+	}
+
+	private void setFlags(int result, boolean byteOp, boolean carry, boolean overflow) {
+		int mask = byteOp ? 0xFF : 0xFFFF;
+		int sr = r[2] & ~(C | Z | N | V);
+		if((result & mask) == 0) sr |= Z;
+		if((result & (byteOp ? 0x80 : 0x8000)) != 0) sr |= N;
+		if(carry) sr |= C;
+		if(overflow) sr |= V;
+		r[2] = sr;
+	}
+
+	/**
+	 * Format I: MOV, ADD, ADDC, SUBC, SUB, CMP, DADD, BIT, BIC, BIS, XOR, AND
+	 */
+	private void execute(Op op) {
+		boolean b = op.byteOp;
+		int mask = b ? 0xFF : 0xFFFF, msb = b ? 0x80 : 0x8000;
+		int src = sourceValue(op);
+		int address = op.dstMode == REG ? -1 : op.dstMode == ABS ? op.dstValue : r[op.dstReg] + op.dstValue & 0xFFFF;
+		if(op.kind == 0x4) { // MOV doesn't read its destination
+			store(op, address, src);
+			return;
+		}
+		int dst = address < 0 ? r[op.dstReg] & mask : read(address, b);
+		int result;
+		switch(op.kind) {
+		case 0x5: // ADD
+		case 0x6: // ADDC
+		case 0x7: // SUBC
+		case 0x8: // SUB
+		case 0x9: { // CMP
+			boolean subtract = op.kind >= 0x7;
+			int s = subtract ? ~src & mask : src;
+			int carry = op.kind == 0x5 ? 0 : op.kind == 0x8 || op.kind == 0x9 ? 1 : r[2] & C;
+			int sum = dst + s + carry;
+			result = sum & mask;
+			setFlags(result, b, sum > mask, ((~(s ^ dst)) & (s ^ result) & msb) != 0);
+			if(op.kind == 0x9) return;
+			break;
+		}
+		case 0xA: { // DADD
+			int carry = r[2] & C;
+			result = 0;
+			for(int shift = 0; shift < (b ? 8 : 16); shift += 4) {
+				int digit = (src >> shift & 0xF) + (dst >> shift & 0xF) + carry;
+				carry = digit > 9 ? 1 : 0;
+				if(carry != 0) digit -= 10;
+				result |= (digit & 0xF) << shift;
+			}
+			setFlags(result, b, carry != 0, false);
+			break;
+		}
+		case 0xB: // BIT
+			result = src & dst;
+			setFlags(result, b, result != 0, false);
+			return;
+		case 0xC: // BIC
+			result = dst & ~src;
+			break;
+		case 0xD: // BIS
+			result = dst | src;
+			break;
+		case 0xE: // XOR
+			result = (dst ^ src) & mask;
+			setFlags(result, b, result != 0, (src & msb) != 0 && (dst & msb) != 0);
+			break;
+		default: // AND
+			result = dst & src;
+			setFlags(result, b, result != 0, false);
+			break;
+		}
+		store(op, address, result);
+	}
+
+	private void store(Op op, int address, int value) {
+		if(address < 0) setRegister(op.dstReg, value, op.byteOp);
+		else write(address, value, op.byteOp);
+	}
+
+	/**
+	 * Format II: RRC, SWPB, RRA, SXT, PUSH, CALL, RETI
+	 */
+	private void executeSingle(Op op) {
+		boolean b = op.byteOp;
+		int mask = b ? 0xFF : 0xFFFF, msb = b ? 0x80 : 0x8000;
+		switch(op.kind) {
+		case PUSH: {
+			int value = sourceValue(op);
+			r[1] = r[1] - 2 & 0xFFFF;
+			write(r[1], value, b);
+			return;
+		}
+		case CALL: {
+			int target = sourceValue(op);
+			r[1] = r[1] - 2 & 0xFFFF;
+			write(r[1], r[0], false);
+			r[0] = target & 0xFFFE;
+			return;
+		}
+		case RETI:
+			r[2] = word(r[1]);
+			r[0] = word(r[1] + 2) & 0xFFFE;
+			r[1] = r[1] + 4 & 0xFFFF;
+			return;
+		default:
+		}
+		int address = op.srcMode == REG ? -1 : sourceAddress(op);
+		int value = address < 0 ? r[op.srcReg] & mask : read(address, b);
+		int result;
+		switch(op.kind) {
+		case RRC:
+			result = value >> 1 | ((r[2] & C) != 0 ? msb : 0);
+			setFlags(result, b, (value & 1) != 0, false);
+			break;
+		case RRA:
+			result = value >> 1 | value & msb;
+			setFlags(result, b, (value & 1) != 0, false);
+			break;
+		case SWPB:
+			result = (value >> 8 & 0xFF) | (value & 0xFF) << 8;
+			break;
+		default: // SXT
+			result = (value & 0x80) != 0 ? value | 0xFF00 : value & 0xFF;
+			setFlags(result, false, result != 0, false);
+			b = false;
+			break;
+		}
+		if(address < 0) setRegister(op.srcReg, result, b);
+		else write(address, result, b);
+	}
+
+	// END EXECUTION
+
+	// BEGIN PROFILE
+
+	/**
+	 * Cycles spent under one label.
+	 */
+	public static class Region {
+		public final String label; // Label name, or the address if no label comes before it
+		public final int address;
+		public long cycles, instructions;
+
+		Region(String label, int address) {
+			this.label = label;
+			this.address = address;
+		}
+	}
+
+	/**
+	 * Adds up where the cycles went so far. Each executed address counts towards the nearest label at or
+	 * before it that itself starts an executed instruction, so constants that happen to share a value with
+	 * an address don't split a routine up.
+	 * @param symbols - The program's symbol table
+	 * @return Regions with any cycles in them, most cycles first
+	 */
+	public List<Region> profile(SymbolTable symbols) {
+		String[] labels = new String[decoded.length];
+		for(int id : symbols.sorted()) {
+			int w = symbols.value(id) >> 1 & 0x7FFF;
+			if(executedAt[w] > 0 && (symbols.value(id) & 1) == 0 && labels[w] == null) labels[w] = symbols.name(id);
+		}
+		List<Region> regions = new ArrayList<Region>();
+		Region current = null;
+		for(int w = 0; w < decoded.length; w++) {
+			if(executedAt[w] == 0) continue;
+			if(labels[w] != null || current == null) {
+				current = new Region(labels[w] != null ? labels[w] : AssemblerPhase3.hexForm(w << 1), w << 1);
+				regions.add(current);
+			}
+			current.cycles += cyclesAt[w];
+			current.instructions += executedAt[w];
+		}
+		regions.sort((x, y) -> Long.compare(y.cycles, x.cycles));
+		return regions;
+	}
+
+	/**
+	 * @return The profile as a table
+	 */
+	public String formatProfile(SymbolTable symbols) {
+		StringBuilder out = new StringBuilder(String.format("%-24s %-6s %14s %7s %14s%n", "Label", "Addr", "Cycles", "%", "Instructions"));
+		for(Region region : profile(symbols)) {
+			out.append(String.format("%-24s %-6s %14d %6.2f%% %14d%n", region.label, AssemblerPhase3.hexForm(region.address), region.cycles,
+					cycles == 0 ? 0.0 : region.cycles * 100.0 / cycles, region.instructions));
+		}
+		return out.toString();
+	}
+
+	// END PROFILE
+
+	public int register(int n) {
+		return r[n];
+	}
+
+	public static void main(String[] args) throws IOException {
+		long maxCycles = 100_000_000L;
+		boolean profile = false;
+		File source = null;
+		for(String arg : args) {
+			if(arg.startsWith("--cycles=")) maxCycles = Long.parseLong(arg.substring("--cycles=".length()));
+			else if(arg.equals("--profile")) profile = true;
+			else source = new File(arg);
+		}
+		if(source == null) {
+			System.out.println("Usage: Emulator file.s43 [--cycles=N] [--profile]");
+			return;
+		}
+		AssemblerContext ctx = AssemblerPhase3.outputList(source);
+		Log.flush();
+		if(ctx.hasErrors()) {
+			System.out.println(source.getPath() + ": ERRORS, see listing");
+			System.exit(1);
+		}
+		Emulator emulator = new Emulator();
+		emulator.load(ctx);
+		long start = System.nanoTime();
+		Stop stop = emulator.run(maxCycles);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("Stopped: %s at %s after %d instructions, %d cycles (%.1f M instructions/s)", stop,
+				AssemblerPhase3.hexForm(emulator.r[0]), emulator.instructions, emulator.cycles, emulator.instructions / seconds / 1e6));
+		for(int n = 0; n < 16; n++) {
+			System.out.print(String.format("R%-2d=%s%s", n, AssemblerPhase3.hexForm(emulator.r[n]), n % 8 == 7 ? "\n" : "  "));
+		}
+		if(profile) System.out.print(emulator.formatProfile(ctx.symbolTable));
+	}
+}
@@ -0,0 +1,118 @@
+package edu.ttu.drewmitchell;
+
+/**
+ * Binary form of one assembled instruction: the opcode word plus up to two extension words,
+ * and the fixups for any extension word still waiting on a label. Hex text is only made from
+ * this once the listing and object file are written.
+ */
+public class Encoding {
+	private final short[] words = new short[3];
+	private int length = 0;
+	private final Fixup[] fixups = new Fixup[2];
+	private int fixupCount = 0;
+	private String error = null;
+
+	/**
+	 * @param message - ERROR message describing why the line couldn't be assembled
+	 * @return An encoding carrying no words, only the error
+	 */
+	public static Encoding error(String message) {
+		Encoding e = new Encoding();
+		e.error = message;
+		return e;
+	}
+
+	/**
+	 * @param word - Next 16 bit word of the instruction
+	 * @return this, for chaining
+	 */
+	public Encoding add(int word) {
+		words[length++] = (short) word;
+		return this;
+	}
+
+	/**
+	 * Adds a placeholder word that the fixup table fills in on the second pass.
+	 * @param fixup - Fixup whose slot is the word being added
+	 * @return this, for chaining
+	 */
+	public Encoding add(Fixup fixup) {
+		fixups[fixupCount++] = fixup;
+		return add(0);
+	}
+
+	/**
+	 * Takes a word back out, for an extension word that turned out not to be needed. Words after it move
+	 * up, and so do their fixups.
+	 * @param index - Index of the word
+	 */
+	public void remove(int index) {
+		for(int n = index + 1; n < length; n++) {
+			words[n - 1] = words[n];
+		}
+		length--;
+		for(int n = 0; n < fixupCount; n++) {
+			if(fixups[n].slot > index) {
+				fixups[n].slot--;
+				fixups[n].address -= 2;
+			}
+		}
+	}
+
+	public void set(int index, int word) {
+		words[index] = (short) word;
+	}
+
+	public int word(int index) {
+		return words[index] & 0xFFFF;
+	}
+
+	/**
+	 * @return Number of 16 bit words
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @return Number of bytes the instruction takes up in memory
+	 */
+	public int size() {
+		return length * 2;
+	}
+
+	public int fixupCount() {
+		return fixupCount;
+	}
+
+	public Fixup fixup(int index) {
+		return fixups[index];
+	}
+
+	public boolean isError() {
+		return error != null;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * @return The words as hex in list (little-endian) byte order
+	 */
+	public String toHex() {
+		StringBuilder hex = new StringBuilder(length * 4);
+		for(int i = 0; i < length; i++) {
+			hex.append(hexWord(words[i]));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * @param word - A 16 bit word
+	 * @return The word as hex in list byte order, low byte first
+	 */
+	public static String hexWord(int word) {
+		return String.format("%02X%02X", word & 0xFF, (word >> 8) & 0xFF);
+	}
+}
@@ -0,0 +1,88 @@
+package edu.ttu.drewmitchell;
+
+/**
+ * One entry of the fixup table: a word in the output that depends on a label which wasn't
+ * defined yet when its line was assembled. The whole table is resolved in a single sweep
+ * once the first pass has filled in the symbol table.
+ */
+public class Fixup {
+	public enum Kind {
+		ABSOLUTE,  // &LABEL - extension word is the label's value
+		IMMEDIATE, // #LABEL or #A+B - extension word is the (summed) value
+		SYMBOLIC,  // LABEL - extension word is relative to its own address
+		JUMP       // Jxx LABEL - 10 bit word offset folded into the opcode word
+	}
+
+	private final Kind kind;
+	private final String symbol; // Unresolved part of the expression, usually a single label
+	private final int addend;    // Known part of the value, opcode bits for jumps
+	int slot;                    // Index of the patched word within the encoding
+	int address;                 // Address of the patched word
+	int value;                   // The patched word, once resolved
+	int line;
+	String threaded;             // Label a jump goes to instead once Peephole sees its own target is a jmp, null if none
+	long listOffset = -1, objOffset = -1;
+
+	public Fixup(Kind kind, String symbol, int addend, int slot, int address) {
+		this.kind = kind;
+		this.symbol = symbol;
+		this.addend = addend;
+		this.slot = slot;
+		this.address = address;
+	}
+
+	/**
+	 * @param symbols - The completed symbol table
+	 * @return null once value holds the patched word, otherwise an ERROR message
+	 */
+	public String resolve(SymbolTable symbols) {
+		int sum = addend;
+		String symbol = threaded != null ? threaded : this.symbol;
+		for(String term : symbol.indexOf('+') < 0 ? new String[] { symbol } : symbol.split("\\+")) {
+			int id = symbols.lookup(term);
+			if(id < 0) return "ERROR - UNDEFINED LABEL '" + term + "'";
+			sum += symbols.value(id);
+		}
+		if(kind == Kind.SYMBOLIC) {
+			sum -= address;
+		}
+		else if(kind == Kind.JUMP) {
+			sum = encodeJump(addend, address, sum - addend);
+			if(sum < 0) return "ERROR - jump target out of range";
+		}
+		value = sum & 0xFFFF;
+		return null;
+	}
+
+	/**
+	 * @param opcode - Jump opcode bits (condition included)
+	 * @param address - Address of the jump instruction itself
+	 * @param target - Address being jumped to
+	 * @return The jump word, or -1 if the target is too far away
+	 */
+	public static int encodeJump(int opcode, int address, int target) {
+		int offset = (target - (address + 2)) >> 1; // PC has already moved past the jump word
+		if(offset < -512 || offset > 511) return -1;
+		return opcode | (offset & 0x3FF);
+	}
+
+	public int getValue() {
+		return value;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public String getSymbol() {
+		return symbol;
+	}
+
+	public int getAddend() {
+		return addend;
+	}
+
+	public int getLine() {
+		return line;
+	}
+}
@@ -0,0 +1,64 @@
+package edu.ttu.drewmitchell;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Files pulled in with INCLUDE, each read and lexed once and then shared by every source that
+ * includes it, on any thread. An entry is read again if the file changes on disk.
+ */
+public class IncludeCache {
+	private static final ConcurrentHashMap<String, Included> files = new ConcurrentHashMap<String, Included>();
+
+	/**
+	 * One include file, lexed. Never changed once it's built.
+	 */
+	static class Included {
+		final long stamp; // Modification time and length it was read at
+		final Lexer.Token[] tokens;
+
+		Included(long stamp, Lexer.Token[] tokens) {
+			this.stamp = stamp;
+			this.tokens = tokens;
+		}
+	}
+
+	/**
+	 * @param file - File named by an INCLUDE
+	 * @return Its lines, lexed
+	 */
+	public static Included get(File file) throws IOException {
+		String key = file.getCanonicalPath();
+		long stamp = file.lastModified() * 31 + file.length();
+		Included cached = files.get(key);
+		if(cached != null && cached.stamp == stamp) return cached;
+		try {
+			return files.compute(key, (k, old) -> {
+				if(old != null && old.stamp == stamp) return old; // Another thread got there first
+				try {
+					return read(file, stamp);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static Included read(File file, long stamp) throws IOException {
+		List<Lexer.Token> tokens = new ArrayList<Lexer.Token>();
+		Lexer lexer = new Lexer();
+		try (SourceReader input = SourceReader.open(file)) {
+			while(input.hasNextLine()) {
+				lexer.lex(input.nextLine().toString());
+				tokens.add(lexer.token());
+			}
+		}
+		return new Included(stamp, tokens.toArray(new Lexer.Token[0]));
+	}
+}
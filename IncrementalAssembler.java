@@ -0,0 +1,338 @@
+package edu.ttu.drewmitchell;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Re-assembles a file after edits without redoing the lines that didn't change. Each line's first
+ * pass result is kept along with the address it was assembled at and every symbol it looked up.
+ * A line is only run through parseLine again if it's new, its address moved, or one of those
+ * symbols changed value; otherwise its effects are replayed from the cache. Forward references
+ * are fixups, the second pass re-resolves the whole table every time since that's one lookup each.
+ */
+public class IncrementalAssembler {
+	/**
+	 * First pass result of one line, plus everything it read and wrote along the way.
+	 */
+	static class Line {
+		final String text;
+		final int address;     // Address counter going into the line
+		int nextAddress;       // Address counter coming out
+		String listing;        // What parseLine gave back
+		String numbered;       // Listing line with its number in front, as of lineNumber
+		int lineNumber;
+		boolean error, org;
+		Map<String, Integer> reads = new HashMap<String, Integer>();         // Symbol -> value seen, null if it wasn't defined
+		Map<String, Integer> defines = new LinkedHashMap<String, Integer>(); // Symbols the line put in the table
+		List<String> literals = new ArrayList<String>(1);                    // Those of them EQU'd to a number
+		List<Object> obj = new ArrayList<Object>();                          // Byte arrays and Encodings handed to bufferObj
+
+		Line(String text, int address) {
+			this.text = text;
+			this.address = address;
+		}
+	}
+
+	private final File source;
+	private Map<String, List<Line>> cache = new HashMap<String, List<Line>>(); // Keyed by line content
+	private List<String> lines = new ArrayList<String>();
+	private AssemblerContext ctx;
+	private List<String> listing = new ArrayList<String>();
+	private ObjectImage object;
+	int reused, reparsed; // From the last update
+
+	/**
+	 * @param source - .s43 file, its listing and object file are written next to it
+	 */
+	public IncrementalAssembler(File source) {
+		this.source = source;
+	}
+
+	/**
+	 * Reads the file from disk and re-assembles it.
+	 * @return The context the file was assembled in
+	 */
+	public AssemblerContext reload() throws IOException {
+		return update(Files.readAllLines(source.toPath(), StandardCharsets.ISO_8859_1)); // Same as SourceReader, any byte is a character
+	}
+
+	/**
+	 * Replaces one line and re-assembles.
+	 * @param index - 0 based line number
+	 * @param text - New contents of the line
+	 * @return The context the file was assembled in
+	 */
+	public AssemblerContext edit(int index, String text) {
+		List<String> edited = new ArrayList<String>(lines);
+		edited.set(index, text);
+		return update(edited);
+	}
+
+	/**
+	 * Re-assembles the file as given, reusing whatever it can from the last run.
+	 * @param source - Every line of the file, in order
+	 * @return The context the file was assembled in
+	 */
+	public AssemblerContext update(List<String> source) {
+		lines = new ArrayList<String>(source);
+		ctx = new AssemblerContext();
+		ctx.preprocessor.dir = this.source.getAbsoluteFile().getParentFile();
+		if(ctx.budget != null || ctx.module != null) return updateWhole(); // Runs of code and sections carry on from line to line, replaying can't follow them
+		Lexer lexer = new Lexer();
+		for(String text : lines) {
+			if(Preprocessor.mayBeDirective(text) && lexer.lex(text) == Lexer.Kind.DIRECTIVE) return updateWhole();
+		}
+		Map<String, List<Line>> used = new HashMap<String, List<Line>>(); // Becomes the cache, anything not used this time is dropped
+		Line[] results = new Line[lines.size()];
+		reused = reparsed = 0;
+
+		// BEGIN FIRST PASS
+		for(int n = 0; n < lines.size(); n++) {
+			String text = lines.get(n);
+			ctx.line = n + 1;
+			int mark = ctx.fixups.size();
+			Line line = cached(text);
+			if(line != null) {
+				replay(line);
+				reused++;
+			}
+			else {
+				line = assemble(text);
+				reparsed++;
+			}
+			for(int f = mark; f < ctx.fixups.size(); f++) {
+				ctx.fixups.get(f).line = n + 1;
+			}
+			results[n] = line;
+			List<Line> same = used.computeIfAbsent(text, k -> new ArrayList<Line>(1));
+			if(!same.contains(line)) same.add(line);
+		}
+		cache = used;
+		AssemblerContext again = AssemblerPhase3.retry(ctx);
+		if(again != null) { // Constants known before their EQU change the lines' sizes, which replaying can't follow
+			ctx = again;
+			return updateWhole();
+		}
+		// END FIRST PASS
+
+		// BEGIN SECOND PASS
+		listing = new ArrayList<String>(results.length);
+		StringBuilder[] patched = new StringBuilder[results.length]; // Only lines with fixups get copied
+		for(int n = 0; n < results.length; n++) {
+			Line line = results[n];
+			if(line.numbered == null || line.lineNumber != n + 1) { // Lines that didn't move keep their listing line as is
+				line.lineNumber = n + 1;
+				line.numbered = String.format("%4d", n + 1) + "  " + line.listing;
+			}
+			listing.add(line.numbered);
+		}
+		StringBuilder trailer = new StringBuilder();
+		if(ctx.optimize) Peephole.threadJumps(ctx.fixups, ctx.symbolTable, ctx.image);
+		for(Fixup fixup : ctx.fixups) {
+			String failed = fixup.resolve(ctx.symbolTable);
+			String resolved = "????";
+			if(failed == null) {
+				resolved = Encoding.hexWord(fixup.getValue());
+				String threaded = Peephole.report(fixup);
+				if(threaded != null) trailer.append(threaded);
+			}
+			else {
+				trailer.append(String.format("%4d", fixup.line)).append("  ").append(ctx.error(failed)).append("\n");
+			}
+			int n = fixup.line - 1;
+			if(patched[n] == null) patched[n] = new StringBuilder(listing.get(n));
+			int numbered = listing.get(n).length() - results[n].listing.length(); // Width of the line number column
+			int column = numbered + results[n].listing.indexOf(' ') + 1 + fixup.slot * 4;
+			patched[n].replace(column, column + resolved.length(), resolved);
+			if(failed == null) ctx.patchObj(fixup);
+		}
+		for(int n = 0; n < results.length; n++) {
+			if(patched[n] != null) listing.set(n, patched[n].toString());
+		}
+		AssemblerPhase3.appendSymbolTable(ctx, trailer);
+		listing.add(trailer.toString());
+		// END SECOND PASS
+
+		object = ctx.errorOccurred ? null : ctx.image;
+		return ctx;
+	}
+
+	/**
+	 * Assembles every line over again. A line's effects can't be replayed on their own once includes, macros
+	 * or conditionals are involved, they depend on the lines around it.
+	 */
+	private AssemblerContext updateWhole() {
+		cache = new HashMap<String, List<Line>>();
+		reused = 0;
+		reparsed = lines.size();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			ctx = AssemblerPhase3.firstPass(ctx, SourceReader.read(new ByteArrayInputStream(String.join("\n", lines).getBytes(StandardCharsets.ISO_8859_1))), () -> {
+				out.reset();
+				return out;
+			});
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // Only ever reading and writing memory
+		}
+		byte[] bytes = out.toByteArray();
+		StringBuilder trailer = new StringBuilder();
+		if(ctx.optimize && ctx.module == null) Peephole.threadJumps(ctx.fixups, ctx.symbolTable, ctx.image);
+		for(Fixup fixup : ctx.fixups) {
+			byte[] resolved = AssemblerPhase3.secondPass(ctx, ctx.symbolTable, fixup, trailer).getBytes(StandardCharsets.ISO_8859_1);
+			System.arraycopy(resolved, 0, bytes, (int) fixup.listOffset, resolved.length);
+		}
+		listing = new ArrayList<String>();
+		for(String line : new String(bytes, StandardCharsets.ISO_8859_1).split("\n", -1)) {
+			listing.add(line);
+		}
+		listing.remove(listing.size() - 1); // Every line ends in \n, nothing comes after the last
+		AssemblerPhase3.appendSymbolTable(ctx, trailer);
+		if(ctx.budget != null) ctx.budget.appendTo(trailer);
+		listing.add(trailer.toString());
+		object = ctx.errorOccurred ? null : ctx.image;
+		return ctx;
+	}
+
+	/**
+	 * @return A cached result for the line that still holds where it sits now, or null
+	 */
+	private Line cached(String text) {
+		List<Line> candidates = cache.get(text);
+		if(candidates == null) return null;
+		for(Line line : candidates) {
+			if(line.org || line.address != ctx.addressCounter) continue; // ORG lines are always re-run, they start a segment
+			boolean same = true;
+			for(Map.Entry<String, Integer> read : line.reads.entrySet()) {
+				int id = ctx.symbolTable.lookup(read.getKey());
+				if(!Objects.equals(id < 0 ? null : ctx.symbolTable.value(id), read.getValue())) {
+					same = false;
+					break;
+				}
+			}
+			if(same) return line;
+		}
+		return null;
+	}
+
+	/**
+	 * Runs the line through parseLine, noting down everything it does to the context.
+	 */
+	private Line assemble(String text) {
+		Line line = new Line(text, ctx.addressCounter);
+		boolean before = ctx.errorOccurred;
+		ctx.errorOccurred = false;
+		ctx.recording = line;
+		line.listing = AssemblerPhase3.parseLine(ctx, text);
+		ctx.recording = null;
+		line.error = ctx.errorOccurred;
+		line.org = ctx.lexer.getKind() == Lexer.Kind.ORG;
+		line.nextAddress = ctx.addressCounter;
+		ctx.errorOccurred |= before;
+		return line;
+	}
+
+	/**
+	 * Does to the context what parseLine did the first time, without parsing anything.
+	 */
+	private void replay(Line line) {
+		for(Map.Entry<String, Integer> define : line.defines.entrySet()) {
+			ctx.symbolTable.define(define.getKey(), define.getValue(), ctx.line);
+		}
+		ctx.literals.addAll(line.literals);
+		for(Object data : line.obj) {
+			if(data instanceof Encoding) ctx.bufferObj((Encoding) data);
+			else ctx.bufferObj((byte[]) data);
+		}
+		ctx.addressCounter = line.nextAddress;
+		if(line.error) ctx.errorOccurred = true;
+	}
+
+	/**
+	 * Writes the listing and, if there were no errors, the object file next to the source.
+	 */
+	public void write() throws IOException {
+		String name = source.getName().substring(0, source.getName().lastIndexOf("."));
+		File dir = source.getAbsoluteFile().getParentFile();
+		StringBuilder text = new StringBuilder();
+		for(int n = 0; n < listing.size() - 1; n++) {
+			text.append(listing.get(n)).append("\n");
+		}
+		text.append(listing.get(listing.size() - 1));
+		try (FileOutputStream fos = new FileOutputStream(new File(dir, name + ".lst"))) {
+			fos.write(text.toString().getBytes(StandardCharsets.ISO_8859_1));
+		}
+		if(object != null) {
+			AssemblerPhase3.writeObj(ctx, dir, name);
+		}
+	}
+
+	/**
+	 * @return Every line of the listing, the symbol table trailer last
+	 */
+	public List<String> getListing() {
+		return listing;
+	}
+
+	/**
+	 * @return The object image, or null if there were errors
+	 */
+	public ObjectImage getObject() {
+		return object;
+	}
+
+	public AssemblerContext getContext() {
+		return ctx;
+	}
+
+	/**
+	 * Assembles the file, then again every time it's saved, until interrupted.
+	 * @param source - .s43 file to watch
+	 */
+	public static void watch(File source) throws IOException {
+		IncrementalAssembler assembler = new IncrementalAssembler(source);
+		Path dir = source.getAbsoluteFile().getParentFile().toPath();
+		WatchService watcher = FileSystems.getDefault().newWatchService();
+		dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		assembler.rebuild();
+		try {
+			while(true) {
+				WatchKey key = watcher.take();
+				boolean changed = false;
+				for(WatchEvent<?> event : key.pollEvents()) {
+					changed |= source.getName().equals(String.valueOf(event.context()));
+				}
+				key.reset();
+				if(changed && source.exists()) assembler.rebuild();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			watcher.close();
+		}
+	}
+
+	private void rebuild() throws IOException {
+		long start = System.nanoTime();
+		reload();
+		write();
+		System.out.println(String.format("%s: %s (%d of %d lines reused, %.1f ms)", source.getPath(), ctx.hasErrors() ? "ERRORS, see listing" : "OK",
+				reused, reused + reparsed, (System.nanoTime() - start) / 1e6));
+	}
+}
@@ -1,41 +1,104 @@
 package edu.ttu.drewmitchell;
 
-import java.util.regex.Pattern;
-
 public class Instruction {
-	private String name, operator, opcode;
+	public enum Format {
+		DOUBLE,    // Format I - source and destination
+		SINGLE,    // Format II - one operand
+		JUMP,      // Conditional and unconditional PC-relative jumps
+		EMULATED,  // Stands in for a core instruction with some operands fixed
+		DIRECTIVE  // Reserved words parseLine deals with itself
+	}
+
+	private String name, operator;
+	private Format format;
+	private int opBits; // Fixed bits of the opcode word
 	private boolean byteOpPossible = false;
-	private Pattern validRegex;
-	
-	public Instruction(String name, String operator, String opcode, String validFormatsRegex, boolean byteOpPossible) {
+
+	// Emulated instructions only, filled in when the instruction set is compiled
+	private String expansion; // e.g. "add #1, dst", where dst is the operand as written
+	private Instruction core;
+	private int fixedSrc = -1, fixedDst = -1; // register | mode << 4, -1 where the written operand goes
+
+	public Instruction(String name, String operator, Format format, int opBits, boolean byteOpPossible) {
 		this.name = name;
 		this.operator = operator;
-		this.opcode = opcode;
-		this.validRegex = Pattern.compile(validFormatsRegex);
+		this.format = format;
+		this.opBits = opBits;
 		this.byteOpPossible = byteOpPossible;
 	}
-	
-	public String assemble(boolean byteOp, String sourceParam, String destParam) {
-		return InstructionFactory.assemble(this, byteOp, sourceParam, destParam);
+
+	public Instruction(String name, String operator, String expansion, boolean byteOpPossible) {
+		this(name, operator, Format.EMULATED, 0, byteOpPossible);
+		this.expansion = expansion;
+	}
+
+	public Encoding assemble(AssemblerContext ctx, boolean byteOp, String sourceParam, String destParam) {
+		return InstructionFactory.assemble(ctx, this, byteOp, sourceParam, destParam);
+	}
+
+	/**
+	 * Points an emulated instruction at the core instruction it expands to.
+	 * @param core - The real instruction
+	 * @param fixedSrc - Source register | mode << 4, or -1 if it's the written operand
+	 * @param fixedDst - Destination register | mode << 4, or -1 if it's the written operand
+	 */
+	void emulate(Instruction core, int fixedSrc, int fixedDst) {
+		this.core = core;
+		this.opBits = core.opBits;
+		this.fixedSrc = fixedSrc;
+		this.fixedDst = fixedDst;
 	}
-	
+
 	public String getName() {
 		return name;
 	}
-	
+
 	public String getOperator() {
 		return operator;
 	}
-	
-	public String getOpCode() {
-		return opcode;
+
+	public Format getFormat() {
+		return format;
 	}
-	
-	public Pattern getValidRegex() {
-		return validRegex;
+
+	public int getOpBits() {
+		return opBits;
 	}
-	
+
+	public String getExpansion() {
+		return expansion;
+	}
+
+	public Instruction getCore() {
+		return core;
+	}
+
+	public int getFixedSrc() {
+		return fixedSrc;
+	}
+
+	public int getFixedDst() {
+		return fixedDst;
+	}
+
+	/**
+	 * @return How many operands the instruction takes as written in source
+	 */
+	public int getOperandCount() {
+		switch(format) {
+		case DOUBLE: return 2;
+		case SINGLE: return opBits == 0x1300 ? 0 : 1; // RETI stands alone
+		case JUMP: return 1;
+		case EMULATED: return (fixedSrc < 0 || fixedDst < 0) ? 1 : 0;
+		default: return 0;
+		}
+	}
+
+	public boolean isJump() {
+		return format == Format.JUMP;
+	}
+
 	public boolean hasByteOp() {
 		return byteOpPossible;
 	}
-}
\ No newline at end of file
+}
@@ -6,387 +6,451 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class InstructionFactory {
-	static Pattern sopParam = Pattern.compile("^(@?R[\\d]{1,2}\\+?|[#&]?[A-Za-z][\\w\\+\\d]+)$");
-	static Pattern dopSource = Pattern.compile("^((?:@?R[\\d]{1,2}\\+?)|(?:\\d+?\\(R[\\d]{1,2}\\))|(?:#?(?:0x)?[\\dA-Fa-f]{1,4})|(?:[#&]?[A-Za-z][\\w\\+\\d]+))$");
-	static Pattern dopDest = Pattern.compile("^((?:R[\\d]{1,2})|(?:\\d+?\\(R[\\d]{1,2}\\))|(?:0x[\\da-fA-F]{1,4})|(?:&?[A-Za-z][\\w\\+\\d]+))$");
+	static Pattern dopSource = Pattern.compile("^((?:@?R[\\d]{1,2}\\+?)|(?:\\d+?\\(R[\\d]{1,2}\\))|(?:#?(?:0x)?[\\dA-Fa-f]{1,4})|(?:[#&]?[A-Za-z][\\w\\+\\d]*))$");
+	static Pattern dopDest = Pattern.compile("^((?:R[\\d]{1,2})|(?:\\d+?\\(R[\\d]{1,2}\\))|(?:0x[\\da-fA-F]{1,4})|(?:&?[A-Za-z][\\w\\+\\d]*))$");
 	
 	static Pattern registerMode = Pattern.compile("^R(\\d{1,2})$");
 	static Pattern indexedMode = Pattern.compile("^(\\d{1,4})\\(R(\\d{1,2})\\)$");
-	static Pattern symbolicMode = Pattern.compile("^([A-Za-z][\\w\\d]+)$");
-	static Pattern absoluteMode = Pattern.compile("^&([A-Za-z][\\w\\d]+)$");
+	static Pattern symbolicMode = Pattern.compile("^([A-Za-z][\\w\\d]*)$");
+	static Pattern absoluteMode = Pattern.compile("^&([A-Za-z][\\w\\d]*)$");
 	static Pattern indirectRegisterMode = Pattern.compile("^@R(\\d{1,2})$"); // Graduate students only
 	static Pattern indirectAutoInc = Pattern.compile("^@R(\\d{1,2})\\+$");
-	static Pattern immediateMode = Pattern.compile("^#((?:0x)?[\\da-f]{1,4}|[a-z][\\w\\+\\d]+)$", Pattern.CASE_INSENSITIVE);
+	static Pattern immediateMode = Pattern.compile("^#((?:0x)?[\\da-f]{1,4}|[a-z][\\w\\+\\d]*)$", Pattern.CASE_INSENSITIVE);
 	
-	//BEGIN CONSTANTS/REGISTERS (avoiding parsing header file by selectively adding undefined ones from the given source files manually, could make a separate & easily parsable file to dynamically add more)
+	//BEGIN CONSTANTS/REGISTERS
 	static final int R0 = 0x0000; // PC
 	static final int R1 = 0x0001; // SP
 	static final int R2 = 0x0002; // SR/CG1
 	static final int R3 = 0x0003;
-	static final int P1OUT = 0x0021;
-	static final int P1REN = 0x0027;
-	static final int P2OUT = 0x0029;
-	static final int WDTCTL = 0x0120;
-	static final int WDTPW = 0x5A00;
-	static final int WDTHOLD = 0x0080;
+	static DeviceRegisters registers = DeviceRegisters.builtin(); // Peripheral registers and bits, from the device header when one's given
 	//END CONSTANTS/REGISTERS
 	
-	static final List<Instruction> inst = new ArrayList<Instruction>(); // Populated at bottom of class
+	static final List<Instruction> inst = new ArrayList<Instruction>(); // Compiled from ISA at bottom of class
+	
+	// Perfect hash over the mnemonics, every operator gets a slot to itself
+	private static Instruction[] index;
+	private static int indexSeed, indexMask;
 
-	// Single operator handling
-	public static String assemble(Instruction in, boolean byteOp, String sourceParam, String destParam) { //MOV, ADD, ADDC, AND, SUB, SUBC, CMP, DADD, BIT, BIC, BIS, XOR
-		String src = "%SRC%", dst = "%DST%";
-		String correctAssembled = in.getOpCode() + src+dst;
-		int AdBWAs = byteOp ? 4 : 0;
+	// Encoding entry point, the instruction's format decides how the operands are laid out
+	public static Encoding assemble(AssemblerContext ctx, Instruction in, boolean byteOp, String sourceParam, String destParam) {
+		int given = sourceParam == null ? 0 : destParam == null ? 1 : 2;
+		ctx.stats.encoded(in);
+		if(in.getFormat() == Instruction.Format.DIRECTIVE) {
+			return Encoding.error("ERROR - '" + in.getOperator() + "' is a directive, check its operands");
+		}
+		if(byteOp && !in.hasByteOp()) {
+			return Encoding.error("ERROR - '" + in.getOperator() + "' has no byte operation");
+		}
+		if(given < in.getOperandCount()) {
+			return Encoding.error(given == 0 ? "ERROR - source parameter is missing" : "ERROR - destination parameter is missing");
+		}
+		if(given > in.getOperandCount()) {
+			return Encoding.error("ERROR - too many parameters for '" + in.getOperator() + "'");
+		}
 		
-		if(dopSource.matcher(sourceParam).find()) {
-			// Legitimate addressing mode so far
-			Matcher reg = registerMode.matcher(sourceParam);
-			Matcher index = indexedMode.matcher(sourceParam);
-			//Matcher symbol = symbolicMode.matcher(sourceParam);
-			Matcher abs = absoluteMode.matcher(sourceParam);
-			//Matcher indReg = indirectRegisterMode.matcher(sourceParam);
-			//Matcher indAuto = indirectAutoInc.matcher(sourceParam);
-			Matcher immed = immediateMode.matcher(sourceParam);
-			if(reg.find()) {
-				String sReg = reg.group(1);
-				correctAssembled = correctAssembled.replace("s", hexFromDec(sReg)).replace(src, "");
-				AdBWAs += 0;
+		Encoding assembled = new Encoding().add(0); // Opcode word goes in once the operands are known
+		int src = 0, dst = 0; // register | mode << 4
+		switch(in.getFormat()) {
+		case DOUBLE: // MOV, ADD, ADDC, AND, SUB, SUBC, CMP, DADD, BIT, BIC, BIS, XOR
+			if((src = decodeOperand(ctx, assembled, sourceParam, false)) < 0) return Encoding.error("ERROR - Invalid source parameter syntax.");
+			if((dst = decodeOperand(ctx, assembled, destParam, true)) < 0) return Encoding.error("ERROR - Invalid destination parameter syntax.");
+			assembled.set(0, encodeDouble(in.getOpBits(), byteOp, src, dst));
+			break;
+		case SINGLE: // RRC, RRA, PUSH, SWPB, CALL, RETI, SXT
+			if(given > 0 && (src = decodeOperand(ctx, assembled, sourceParam, false)) < 0) return Encoding.error("ERROR - Invalid single parameter syntax.");
+			if(in.getOpBits() == 0x1200 && (src == (R2 | 2 << 4) || src == (R2 | 3 << 4)) && sourceParam.startsWith("#")) { // PUSH #4/#8 from R2 fails on the original CPU (erratum CPU4)
+				assembled.add(src == (R2 | 2 << 4) ? 4 : 8);
+				src = R0 | 3 << 4;
 			}
-			else if (index.find()) {
-				String offset = index.group(1);
-				String sReg = index.group(2);
-				// TODO Poor hardcoding, likely should create an aside table to remove chained logic
-				if(sReg.equalsIgnoreCase("PC")) {
-					sReg = "0";
-				} else if(sReg.equalsIgnoreCase("SP")) {
-					sReg = "1";
-				} else if (sReg.equalsIgnoreCase("SR")) {
-					sReg = "2";
-				}
-				correctAssembled = correctAssembled.replace("s", hexFromDec(sReg)).replace(src, String.format("%04X", Integer.parseInt(offset)));
-				AdBWAs += 1;
+			assembled.set(0, encodeSingle(in.getOpBits(), byteOp, src));
+			break;
+		case JUMP:
+			Matcher symbol = symbolicMode.matcher(sourceParam);
+			if(!symbol.find()) {
+				return Encoding.error("ERROR - jump target must be a label");
 			}
-//			else if (symbol.find()) {
-//				String name = symbol.group(1);
-//				correctAssembled = correctAssembled.replace("s", newChar)
-//				if(AssemblerPhase3.symbolTable.containsKey(name)) {
-//					correctAssembled += AssemblerPhase3.hexForm(AssemblerPhase3.symbolTable.get(name));
-//				}
-//				else correctAssembled += "%'"+name+"'%";
-//				AdBWAs += 1;
-//			}
-			else if (abs.find()) {
-				String name = abs.group(1);
-				String replace = "%'"+name+"'%";
-				correctAssembled = correctAssembled.replace("s", "2"); // for status register
-				if(AssemblerPhase3.symbolTable.containsKey(name)) {
-					replace = AssemblerPhase3.hexForm(AssemblerPhase3.symbolTable.get(name));
-				}
-				
-				correctAssembled = correctAssembled.replace(src, replace);
-				AdBWAs += 1;
+			String name = symbol.group(1);
+			int target = ctx.lookupDeferred(name);
+			if(target >= 0 && ctx.module != null && ctx.module.sectionOf(name) != ctx.module.section) target = -1; // Another section, its distance isn't known till it's linked
+			if(target >= 0) { // Backwards jump, we know the offset now
+				ctx.stats.resolved++;
+				int jump = Fixup.encodeJump(in.getOpBits(), ctx.addressCounter, ctx.symbolTable.value(target));
+				if(jump < 0) return Encoding.error("ERROR - jump target out of range");
+				if(!ctx.optimize) return new Encoding().add(jump); // Otherwise it's a fixup too, the second pass may thread it
 			}
-//			else if (indReg.find()) {
-//				AdBWAs += 2;
-//			}
-//			else if (indAuto.find()) {
-//				AdBWAs += 3;
-//			}
-			else if (immed.find()) {
-				String cap = immed.group(1); // No # prefix, we know it was there
-				String replace = "%'"+cap+"'%";
-				correctAssembled = correctAssembled.replace("s", "0"); // Set s-reg to 0 since it's a constant (not planning to use constant generator)
-				if(cap.matches("^(?:0x)?[\\da-fA-F]+$")) { // Hex/decimal string
-					if(cap.startsWith("0x")) {
-						replace = String.format("%04X", Integer.decode(cap)); // Parse it as hexadecimal
-					}
-					else replace = String.format("%04X", Integer.parseInt(cap, 10)); // Parse it as decimal
-				}
-				else { // Using defined constants, check symbol table
-					int immedValue = 0;
-					if(cap.contains("+")) { // We must handle immediate summations
-						String[] constants = cap.split("\\+");
-						for(String c : constants) {
-							if(AssemblerPhase3.symbolTable.containsKey(c)) {
-								immedValue += AssemblerPhase3.symbolTable.get(c);
-							}
-							else immedValue += getHardcodedValue(c);
-						}
-					}
-					else { // We're just using one value for immediate mode
-						if(AssemblerPhase3.symbolTable.containsKey(cap)) {
-							immedValue += AssemblerPhase3.symbolTable.get(cap);
-						}
-						else immedValue += getHardcodedValue(cap);
-					}
-					if(immedValue != 0) replace = String.format("%04X", immedValue); // Parse it as decimal, looking to see if it's changed
+			return new Encoding().add(new Fixup(Fixup.Kind.JUMP, name, in.getOpBits(), 0, ctx.addressCounter));
+		case EMULATED: // Written operand fills whichever side the expansion leaves open
+			src = in.getFixedSrc();
+			if(src < 0 && (src = decodeOperand(ctx, assembled, sourceParam, false)) < 0) return Encoding.error("ERROR - Invalid single parameter syntax.");
+			dst = in.getFixedDst();
+			if(dst < 0 && (dst = decodeOperand(ctx, assembled, sourceParam, true)) < 0) return Encoding.error("ERROR - Invalid single parameter syntax.");
+			assembled.set(0, encodeDouble(in.getOpBits(), byteOp, src, dst));
+			break;
+		default:
+			break;
+		}
+		Log.trace(Log.Category.ENCODER, () -> in.getOperator() + " " + assembled.toHex());
+		return assembled;
+	}
+	
+	// Operands without a destination, including none at all for RET, RETI, NOP, etc.
+	public static Encoding assemble(AssemblerContext ctx, Instruction in, boolean byteOp, String sourceParam) {
+		return assemble(ctx, in, byteOp, sourceParam, null);
+	}
+	
+	// BEGIN ENCODERS
+	
+	/**
+	 * @return Format I opcode word
+	 */
+	static int encodeDouble(int opBits, boolean byteOp, int src, int dst) {
+		return opBits | (src & 0xF) << 8 | (dst >> 4 & 1) << 7 | (byteOp ? 0x40 : 0) | (src >> 4 & 3) << 4 | (dst & 0xF);
+	}
+	
+	/**
+	 * @return Format II opcode word
+	 */
+	static int encodeSingle(int opBits, boolean byteOp, int src) {
+		return opBits | (byteOp ? 0x40 : 0) | (src >> 4 & 3) << 4 | (src & 0xF);
+	}
+	
+	/**
+	 * Works out the register and addressing mode of one operand, appending its extension word if it needs one.
+	 * @param ctx - Context of the file being assembled
+	 * @param assembled - Encoding any extension word is added to
+	 * @param param - The operand as written
+	 * @param dest - Whether it's a destination, which only allows register, indexed, symbolic and absolute modes
+	 * @return register | mode << 4, or -1 if the operand doesn't fit an addressing mode
+	 */
+	static int decodeOperand(AssemblerContext ctx, Encoding assembled, String param, boolean dest) {
+		OperandCache.Operand operand = ctx.operands.get(param, dest);
+		if(operand == null) {
+			operand = classifyOperand(param, dest);
+			ctx.operands.put(param, dest, operand);
+		}
+		if(operand.bits < 0) return -1;
+		if(operand.terms != null) {
+			int fixups = assembled.fixupCount();
+			extensionWord(ctx, assembled, operand.terms, operand.kind);
+			if(operand.kind == Fixup.Kind.IMMEDIATE && assembled.fixupCount() == fixups) { // Value's known, it may not need the word after all
+				int generated = constantGenerator(assembled.word(assembled.length() - 1));
+				if(generated >= 0) {
+					assembled.remove(assembled.length() - 1);
+					return generated;
 				}
-				
-				correctAssembled = correctAssembled.replace(src, replace);
-				debug("simmed: " + cap);
-				AdBWAs += 3;
-			}
-			else {
-				return "ERROR - Invalid source parameter syntax.";
 			}
 		}
-		if(dopDest.matcher(destParam).find()) {
-			Matcher reg = registerMode.matcher(destParam);
-			Matcher index = indexedMode.matcher(destParam);
-			Matcher symbol = symbolicMode.matcher(destParam);
-			Matcher abs = absoluteMode.matcher(destParam);
-			debug(destParam);
-			if(reg.find()) {
-				String dReg = reg.group(1);
-				correctAssembled = correctAssembled.replace("d", hexFromDec(dReg)).replace(dst, "");
-				AdBWAs += 0;
-			}
-			else if (index.find()) {
-				int offset = Integer.parseInt(index.group(1));
-				String dReg = index.group(2);
-				if(dReg.equalsIgnoreCase("PC")) {
-					dReg = "0";
-				} else if(dReg.equalsIgnoreCase("SP")) {
-					dReg = "1";
-				} else if (dReg.equalsIgnoreCase("SR")) {
-					dReg = "2";
-				}
-				correctAssembled = correctAssembled.replace("d", hexFromDec(dReg)).replace(dst, (offset == 0 ? "" : AssemblerPhase3.hexForm(offset)));
-				AdBWAs += 8;
+		else if(operand.word != OperandCache.NO_WORD) assembled.add(operand.word);
+		return operand.bits;
+	}
+	
+	/**
+	 * The pattern matching half of decodeOperand, everything about the operand that doesn't depend on the symbol table.
+	 * @param param - The operand as written
+	 * @param dest - Whether it's a destination
+	 */
+	static OperandCache.Operand classifyOperand(String param, boolean dest) {
+		if(!(dest ? dopDest : dopSource).matcher(param).find()) return operand(-1);
+		int reg = registerNumber(param);
+		if(reg >= 0) return operand(reg);
+		Matcher m = indexedMode.matcher(param);
+		if(m.find()) {
+			reg = Integer.parseInt(m.group(2));
+			// Indexed mode always carries its offset, even 0(Rn)
+			return reg > 15 ? operand(-1) : new OperandCache.Operand(reg | 1 << 4, Integer.parseInt(m.group(1)), null, null);
+		}
+		if(!dest) {
+			if((m = indirectRegisterMode.matcher(param)).find()) {
+				reg = Integer.parseInt(m.group(1));
+				return operand(reg > 15 ? -1 : reg | 2 << 4);
 			}
-			else if (symbol.find()) { // TODO
-				String name = symbol.group(1);
-				String replace = "%'"+name+"'%";
-				// TODO More hardcoded
-				if(name.equalsIgnoreCase("SP")) {
-					replace = "";
-					correctAssembled = correctAssembled.replace("d", "1"); // For R1 = SP
-				}
-				
-				correctAssembled = correctAssembled.replace(dst, replace);
-				AdBWAs += replace.equals("") ? 0 : 8;
+			if((m = indirectAutoInc.matcher(param)).find()) {
+				reg = Integer.parseInt(m.group(1));
+				return operand(reg > 15 ? -1 : reg | 3 << 4);
 			}
-			else if (abs.find()) {
-				String name = abs.group(1);
-				String replace = "%'"+name+"'%"; // default format in case we need a second pass
-				if(AssemblerPhase3.symbolTable.containsKey(name)) { // TODO OFFSET INDEXED MODE X(SR)?
-					replace = AssemblerPhase3.hexForm(AssemblerPhase3.symbolTable.get(name));
+			if((m = immediateMode.matcher(param)).find()) { // Constant from @PC+, or from R2/R3 when it's one the constant generator makes
+				String cap = m.group(1); // No # prefix, we know it was there
+				if(cap.startsWith("0x") || cap.startsWith("0X")) {
+					return immediate(Integer.decode(cap)); // Parse it as hexadecimal
 				}
-				else { // Might be using defined constants, check symbol table
-					int immedValue = getHardcodedValue(name);
-					if(immedValue != 0) replace = String.format("%04X", immedValue); // Parse it as decimal, looking to see if it's changed
+				if(Character.isDigit(cap.charAt(0))) {
+					for(int i = 1; i < cap.length(); i++) {
+						if(!Character.isDigit(cap.charAt(i))) return operand(-1); // Hex digits without the 0x, e.g. #1A
+					}
+					return immediate(Integer.parseInt(cap, 10)); // Parse it as decimal
 				}
-				
-				correctAssembled = correctAssembled.replace("d", "2").replace(dst, replace);
-				AdBWAs += 8;
-			}
-			else {
-				return "ERROR - Invalid destination parameter syntax.";
+				return new OperandCache.Operand(R0 | 3 << 4, OperandCache.NO_WORD, cap.split("\\+"), Fixup.Kind.IMMEDIATE); // Using defined constants
 			}
 		}
-		
-		correctAssembled = correctAssembled.replace("-", hexFromDec(""+AdBWAs));
-		debug(correctAssembled);
-		return listByteOrder(correctAssembled);
+		if((m = absoluteMode.matcher(param)).find()) { // Indexed off the status register, which reads as 0
+			return new OperandCache.Operand(R2 | 1 << 4, OperandCache.NO_WORD, m.group(1).split("\\+"), Fixup.Kind.ABSOLUTE);
+		}
+		if((m = symbolicMode.matcher(param)).find()) { // Indexed off the PC
+			return new OperandCache.Operand(R0 | 1 << 4, OperandCache.NO_WORD, m.group(1).split("\\+"), Fixup.Kind.SYMBOLIC);
+		}
+		return operand(-1);
 	}
 	
-	// Single operator handling
-	public static String assemble(Instruction in, boolean byteOp, String sourceParam) { //RRC, RRA, PUSH, SWPB, CALL, RETI, SXT, jumps (15 total)
-		//String src = "%SRC%";															// CALL, JNZ, INC, DEC, JZ, RET
-		//String correctAssembled = in.getOpCode() + src;
-
-		if(sourceParam == null) { // RET, RETI
-			if(in.getOperator().equalsIgnoreCase("RET")) {
-				return listByteOrder("4130"); // TODO BIG HARDCODE
-			}
-			else if(in.getOperator().equalsIgnoreCase("RETI")) {
-				
-			}
+	private static OperandCache.Operand operand(int bits) {
+		return new OperandCache.Operand(bits, OperandCache.NO_WORD, null, null);
+	}
+	
+	/**
+	 * @param value - An immediate written as a number
+	 * @return The constant generator if it makes the value, saving the extension word and a cycle or more, otherwise @PC+
+	 */
+	private static OperandCache.Operand immediate(int value) {
+		int generated = constantGenerator(value);
+		if(generated >= 0) return operand(generated);
+		return new OperandCache.Operand(R0 | 3 << 4, value, null, null);
+	}
+	
+	/**
+	 * @param value - An immediate value
+	 * @return register | mode << 4 of the constant generator producing it, or -1 if neither can
+	 */
+	static int constantGenerator(int value) {
+		switch(value & 0xFFFF) {
+		case 0: return R3;
+		case 1: return R3 | 1 << 4;
+		case 2: return R3 | 2 << 4;
+		case 0xFFFF: return R3 | 3 << 4;
+		case 4: return R2 | 2 << 4;
+		case 8: return R2 | 3 << 4;
+		default: return -1;
 		}
-		
-		if(sopParam.matcher(sourceParam).find()) {
-			Matcher reg = registerMode.matcher(sourceParam);
-			Matcher symbol = symbolicMode.matcher(sourceParam);
-			String toReturn = "";
-			if(in.getOperator().equalsIgnoreCase("call")) {
-				Matcher immed = immediateMode.matcher(sourceParam);
-				if(immed.find()) {
-					toReturn = "12B0%'"+immed.group(1)+"'%"; // TODO HARDCODED?
-				}
-				else toReturn = "12B0"+"0000"; // TODO BAD ERROR CASE
-			}
-			else if (in.getOperator().equalsIgnoreCase("jz")) {
-//				if (symbol.find()) { TODO
-//					String name = symbol.group(1);
-//					if(AssemblerPhase3.symbolTable.containsKey(name)) {
-//						int offset = Math.ma
-//						toReturn = "2" + hexForm(AssemblerPhase3.addressCounter AssemblerPhase3.symbolTable.get(name);
-//					}
-//					//else correctAssembled += "%'"+name+"'%";
-//				}
-				toReturn = "2xxx";
+	}
+	
+	/**
+	 * @param param - An operand
+	 * @return Register number for Rn, PC, SP or SR, otherwise -1
+	 */
+	static int registerNumber(String param) {
+		if(param.equalsIgnoreCase("PC")) return R0;
+		if(param.equalsIgnoreCase("SP")) return R1;
+		if(param.equalsIgnoreCase("SR")) return R2;
+		if(param.length() < 2 || param.length() > 3 || param.charAt(0) != 'R') return -1;
+		int reg = 0;
+		for(int i = 1; i < param.length(); i++) {
+			if(!Character.isDigit(param.charAt(i))) return -1;
+			reg = reg * 10 + (param.charAt(i) - '0');
+		}
+		return reg > 15 ? -1 : reg;
+	}
+	
+	// END ENCODERS
+	
+	/**
+	 * Appends an extension word for a label, header constant, or a summation of them such as WDTPW+WDTHOLD.
+	 * Anything not defined yet is left to the fixup table.
+	 * @param ctx - Context of the file being assembled
+	 * @param assembled - Encoding the word is added to
+	 * @param expr - The operand with its mode prefix stripped
+	 * @param kind - How the value lands in the extension word
+	 */
+	static void extensionWord(AssemblerContext ctx, Encoding assembled, String expr, Fixup.Kind kind) {
+		extensionWord(ctx, assembled, expr.split("\\+"), kind);
+	}
+	
+	/**
+	 * @param terms - The expression, already split at each +
+	 */
+	static void extensionWord(AssemblerContext ctx, Encoding assembled, String[] terms, Fixup.Kind kind) {
+		int address = ctx.addressCounter + assembled.size();
+		boolean immediate = kind == Fixup.Kind.IMMEDIATE;
+		int known = 0, ahead = 0;
+		StringBuilder unresolved = null; // Built up rather than concatenated, an expression can have any number of terms
+		boolean allAhead = true; // Every unresolved term is a constant known from an earlier try at the first pass
+		for(String c : terms) {
+			int id = ctx.lookupDeferred(c);
+			if(id < 0 && immediate && ctx.immediates != null) ctx.immediates.add(c); // An immediate's size depends on whether its value is known yet
+			boolean moves = id >= 0 && ctx.module != null && ctx.module.sectionOf(c) != ModuleObject.ABS; // Label in a section, only the linker knows where
+			if(moves) {
+				if(unresolved == null) unresolved = new StringBuilder(c);
+				else unresolved.append('+').append(c);
+				allAhead = false;
 			}
-			else if(in.getOperator().equalsIgnoreCase("jnz")) {
-				toReturn = "2xxx";
+			else if(id >= 0) {
+				known += ctx.symbolTable.value(id);
+				ctx.stats.resolved++;
 			}
-			else if(in.getOperator().equalsIgnoreCase("inc")) {
-				if(reg.find()) {
-					toReturn = "531" + hexFromDec(reg.group(1));
-				}
-				else toReturn = "531d";
+			else if((id = registers.find(c)) >= 0) { // Device register, 0 is as good a value as any
+				known += registers.value(id);
+				ctx.stats.registers++;
+				if(ctx.misses != null) ctx.misses.add(c); // A label of the same name would have won, had it come first
 			}
-			else if(in.getOperator().equalsIgnoreCase("dec")) {
-				if(reg.find()) {
-					toReturn = "831" + hexFromDec(reg.group(1));
-				}
-				else toReturn = "831d";
+			else {
+				if(unresolved == null) unresolved = new StringBuilder(c);
+				else unresolved.append('+').append(c);
+				Integer value = ctx.ahead == null ? null : ctx.ahead.get(c);
+				if(value == null) allAhead = false;
+				else ahead += value;
 			}
-			return listByteOrder(toReturn);
 		}
-		else {
-			return "ERROR - Invalid single parameter syntax.";
+		if(unresolved != null && immediate && allAhead && constantGenerator(known + ahead & 0xFFFF) >= 0) {
+			assembled.add(known + ahead); // decodeOperand swaps it for the constant generator
+			return;
 		}
-
-//		if(in.getOpCode().startsWith("1")) { // SPECIAL CASE: We have to deal with the case-specific byteOp splits
-//			if(in.hasByteOp()) {
-//				String op = in.getOperator().toLowerCase(); // possibly extra redundant
-//				if(op.equals("rrc")) correctAssembled = correctAssembled.replace("-", byteOp ? "4" : "0");
-//				else if(op.equals("rra")) correctAssembled = correctAssembled.replace("-", byteOp ? "4" : "0");
-//				else if(op.equals("push")) correctAssembled = correctAssembled.replace("-", byteOp ? "4" : "0");
-//			}
-//
-//			return correctAssembled;
-//		}
-		//return correctAssembled;
-		//return listByteOrder(correctAssembled);
+		if(unresolved != null) { // Second pass will fill this in
+			assembled.add(new Fixup(kind, unresolved.toString(), known, assembled.length(), address));
+			return;
+		}
+		if(kind == Fixup.Kind.SYMBOLIC) known -= address;
+		assembled.add(known);
 	}
 	
 	// BEGIN UTILITY METHODS
 	
-	public static int getHardcodedValue(String headerVal) {
-		if(headerVal.equalsIgnoreCase("WDTCTL")) return WDTCTL;
-		else if(headerVal.equalsIgnoreCase("WDTPW")) return WDTPW;
-		else if(headerVal.equalsIgnoreCase("WDTHOLD")) return WDTHOLD;
-		else if(headerVal.equalsIgnoreCase("P1OUT")) return P1OUT;
-		else if(headerVal.equalsIgnoreCase("P1REN")) return P1REN;
-		else if(headerVal.equalsIgnoreCase("P2OUT")) return P2OUT;
-		return 0;
-	}
-	
 	public static String listByteOrder(String hexInput) {
 		String ret = "";
 		for(int i = 0; i < hexInput.length(); i+= 4) {
-			if(hexInput.charAt(i) == '%') { // Catch our second-pass replacements to leave them in and not mess up the loop
-				ret += hexInput.substring(i, hexInput.indexOf("'%", i) + 2);
-				i = hexInput.indexOf("'%", i) + 2 - 4;
-				continue;
-			}
 			ret += hexInput.substring(i+2, i+4) + hexInput.substring(i, i+2);
 		}
 		return ret;
 	}
 	
-	private static String hexFromDec(String input) {
-		int i = 0;
-		try {
-			i = Integer.parseInt(input);
-		} catch (Exception e) {
-			return "$";
+	// END UTILITY METHODS
+	
+	// INSTRUCTION SET - mnemonic, format, opcode bits (expansion for emulated), byte operation support
+	static final String[][] ISA = {
+		{"mov",  "I",   "4000", "b"},
+		{"add",  "I",   "5000", "b"},
+		{"addc", "I",   "6000", "b"},
+		{"subc", "I",   "7000", "b"},
+		{"sub",  "I",   "8000", "b"},
+		{"cmp",  "I",   "9000", "b"},
+		{"dadd", "I",   "A000", "b"},
+		{"bit",  "I",   "B000", "b"},
+		{"bic",  "I",   "C000", "b"},
+		{"bis",  "I",   "D000", "b"},
+		{"xor",  "I",   "E000", "b"},
+		{"and",  "I",   "F000", "b"},
+		{"rrc",  "II",  "1000", "b"},
+		{"swpb", "II",  "1080", ""},
+		{"rra",  "II",  "1100", "b"},
+		{"sxt",  "II",  "1180", ""},
+		{"push", "II",  "1200", "b"},
+		{"call", "II",  "1280", ""},
+		{"reti", "II",  "1300", ""},
+		{"jne",  "J",   "2000", ""},
+		{"jnz",  "J",   "2000", ""},
+		{"jeq",  "J",   "2400", ""},
+		{"jz",   "J",   "2400", ""},
+		{"jnc",  "J",   "2800", ""},
+		{"jlo",  "J",   "2800", ""},
+		{"jc",   "J",   "2C00", ""},
+		{"jhs",  "J",   "2C00", ""},
+		{"jn",   "J",   "3000", ""},
+		{"jge",  "J",   "3400", ""},
+		{"jl",   "J",   "3800", ""},
+		{"jmp",  "J",   "3C00", ""},
+		{"adc",  "EMU", "addc #0, dst", "b"},
+		{"br",   "EMU", "mov dst, PC", ""},
+		{"clr",  "EMU", "mov #0, dst", "b"},
+		{"clrc", "EMU", "bic #1, SR", ""},
+		{"clrn", "EMU", "bic #4, SR", ""},
+		{"clrz", "EMU", "bic #2, SR", ""},
+		{"dadc", "EMU", "dadd #0, dst", "b"},
+		{"dec",  "EMU", "sub #1, dst", "b"},
+		{"decd", "EMU", "sub #2, dst", "b"},
+		{"dint", "EMU", "bic #8, SR", ""},
+		{"eint", "EMU", "bis #8, SR", ""},
+		{"inc",  "EMU", "add #1, dst", "b"},
+		{"incd", "EMU", "add #2, dst", "b"},
+		{"inv",  "EMU", "xor #-1, dst", "b"},
+		{"nop",  "EMU", "mov #0, R3", ""},
+		{"pop",  "EMU", "mov @SP+, dst", "b"},
+		{"ret",  "EMU", "mov @SP+, PC", ""},
+		{"rla",  "EMU", "add dst, dst", "b"},
+		{"rlc",  "EMU", "addc dst, dst", "b"},
+		{"sbc",  "EMU", "subc #0, dst", "b"},
+		{"setc", "EMU", "bis #1, SR", ""},
+		{"setn", "EMU", "bis #4, SR", ""},
+		{"setz", "EMU", "bis #2, SR", ""},
+		{"tst",  "EMU", "cmp #0, dst", "b"},
+		{"db",   "DIR", "", ""},
+		{"ds",   "DIR", "", ""},
+		{"dw",   "DIR", "", ""},
+		{"org",  "DIR", "", ""},
+	};
+	
+	// COMPILE INSTRUCTION SET
+	static {
+		for(String[] def : ISA) {
+			String op = def[0];
+			boolean byteOp = def[3].equals("b");
+			if(def[1].equals("EMU")) {
+				inst.add(new Instruction(op.toUpperCase(), op, def[2], byteOp));
+				continue;
+			}
+			Instruction.Format format = def[1].equals("I") ? Instruction.Format.DOUBLE : def[1].equals("II") ? Instruction.Format.SINGLE
+					: def[1].equals("J") ? Instruction.Format.JUMP : Instruction.Format.DIRECTIVE;
+			inst.add(new Instruction(op.toUpperCase(), op, format, def[2].isEmpty() ? 0 : Integer.parseInt(def[2], 16), byteOp));
+		}
+		buildIndex();
+		
+		for(Instruction i : inst) { // Emulated instructions get pointed at their core instruction with the fixed operands pre-decoded
+			if(i.getFormat() != Instruction.Format.EMULATED) continue;
+			String[] parts = i.getExpansion().split("[\\s,]+");
+			i.emulate(getInstruction(parts[0]), fixedOperand(parts[1]), fixedOperand(parts[2]));
 		}
-		return String.format("%1X", i);
 	}
 	
-	public static void debug(Object o) {
-		if(!AssemblerPhase3.debugEnabled) return;
-		System.out.println(o);
+	/**
+	 * @param operand - Operand from an emulated instruction's expansion
+	 * @return register | mode << 4, or -1 for "dst", the operand as written
+	 */
+	private static int fixedOperand(String operand) {
+		if(operand.equals("dst")) return -1;
+		if(operand.equals("@SP+")) return R1 | 3 << 4;
+		if(operand.startsWith("#")) return constantGenerator(Integer.parseInt(operand.substring(1)));
+		return registerNumber(operand);
 	}
 	
-	// END UTILITY METHODS
+	/**
+	 * Finds a seed that gives every mnemonic its own slot, growing the table until one turns up.
+	 */
+	private static void buildIndex() {
+		for(int size = Integer.highestOneBit(inst.size()) << 2; ; size <<= 1) {
+			for(int seed = 1; seed < 10000; seed++) {
+				Instruction[] table = new Instruction[size];
+				boolean clash = false;
+				for(Instruction i : inst) {
+					int slot = mnemonicHash(i.getOperator(), seed) & (size - 1);
+					if(table[slot] != null) {
+						clash = true;
+						break;
+					}
+					table[slot] = i;
+				}
+				if(!clash) {
+					index = table;
+					indexSeed = seed;
+					indexMask = size - 1;
+					return;
+				}
+			}
+		}
+	}
 	
-	// INITIALIZE INSTRUCTION SET
-	static {
-//		static final List<String> assyKeywords = new ArrayList<String>(
-//		Arrays.asList(
-//			"db", "ds", "dw", "org", // directives, below are all valid instructions
-//			"adc", "add", "addc", "and", 
-//			"bic", "bis", "bit", "br", 
-//			"call", "clr", "clrc", "clrn", "clrz", "cmp", 
-//			"dadc", "dadd", "dec", "decd", "dint",
-//		    "eint",
-//		    "inc", "incd", "inv", 
-//			"jc", "jhs",  "jeq", "jz",  "jge", "jl", "jmp", "jn",  "jnc", "jlo",  "jne", "jnz",
-//			"mov",
-//			"nop",
-//			"pop", "push",
-//			"ret", "reti", "rla", "rlc", "rra", "rrc",
-//			"sbc", "setc", "setn", "setz", "sub", "subc", "swpb", "sxt",
-//			"tst",
-//			"xor"));
-		inst.add(new Instruction("DB", "db", "5s-d", "to be added", false));
-		inst.add(new Instruction("DS", "ds", "5s-d", "to be added", false));
-		inst.add(new Instruction("DW", "dw", "5s-d", "to be added", false));
-		inst.add(new Instruction("ORG", "org", "5s-d", "to be added", false));
-		inst.add(new Instruction("ADC", "adc", "50-d", "to be added", true)); //emulated add
-		inst.add(new Instruction("ADD", "add", "5s-d", "to be added", true));
-		inst.add(new Instruction("ADDC", "addc", "6s-d", "to be added", true));
-		inst.add(new Instruction("AND", "and", "Fs-d", "to be added", true));
-		inst.add(new Instruction("BIC", "bic", "Cs-d", "to be added", true));
-		inst.add(new Instruction("BIS", "bis", "Ds-d", "to be added", true));
-		inst.add(new Instruction("BIT", "bit", "Bs-d", "to be added", true));    //same as add
-		inst.add(new Instruction("BRANCH", "br", "4s-d", "to be added", false)); //emulated mov
-		inst.add(new Instruction("CALL", "call", "1280", "to be added", false)); //emulated tbd
-		inst.add(new Instruction("CLR", "clr", "5s-d", "to be added", true));   //emulated bic
-		inst.add(new Instruction("CLRC", "clrc", "5s-d", "to be added", false));  //emulated bic->c
-		inst.add(new Instruction("CLRN", "clrn", "5s-d", "to be added", false));  //emulated bic->n
-		inst.add(new Instruction("CLRZ", "clrz", "5s-d", "to be added", false));  //emulated bic->z
-		inst.add(new Instruction("CMP", "cmp", "9s-d", "to be added", true));
-		inst.add(new Instruction("DADC", "dadc", "As-d", "to be added", true));  //emulated dadd
-		inst.add(new Instruction("DADD", "dadd", "As-d", "to be added", true));
-		inst.add(new Instruction("DEC", "dec", "5s-d", "to be added", true));   //emulated sub
-		inst.add(new Instruction("DECD", "decd", "5s-d", "to be added", true));  //emulated sub
-		inst.add(new Instruction("DINT", "dint", "5s-d", "to be added", false));  //emulated bic
-		inst.add(new Instruction("EINT", "eint", "5s-d", "to be added", false));  //emulated bis
-		inst.add(new Instruction("INC", "inc", "5s-d", "to be added", true));   //emulated add
-		inst.add(new Instruction("INCD", "incd", "5s-d", "to be added", true));  //emulated add
-		inst.add(new Instruction("INV", "inv", "5s-d", "to be added", true));  //inversion
-		inst.add(new Instruction("JC", "jc", "2C-d", "to be added", false));
-		inst.add(new Instruction("JHS", "jhs", "5s-d", "to be added", false));
-		inst.add(new Instruction("JEQ", "jeq", "24-d", "to be added", false));
-		inst.add(new Instruction("JZ", "jz", "24-d", "to be added", false));
-		inst.add(new Instruction("JL", "jl", "38-d", "to be added", false));
-		inst.add(new Instruction("JMP", "jmp", "3C-d", "to be added", false));
-		inst.add(new Instruction("JN", "jn", "30-d", "to be added", false));
-		inst.add(new Instruction("JNC", "jnc", "28-d", "to be added", false));
-		inst.add(new Instruction("JLO", "jlo", "5s-d", "to be added", false));
-		inst.add(new Instruction("JNE", "jne", "20-d", "to be added", false));
-		inst.add(new Instruction("JNZ", "jnz", "20-d", "to be added", false));
-		inst.add(new Instruction("MOV", "mov", "4s-d", "to be added", true));
-		inst.add(new Instruction("NOP", "nop", "5s-d", "to be added", false));
-		inst.add(new Instruction("POP", "pop", "5s-d", "to be added", true));
-		inst.add(new Instruction("PUSH", "push", "120-", "to be added", true));
-		inst.add(new Instruction("RET", "ret", "5s-d", "to be added", false));
-		inst.add(new Instruction("RETI", "reti", "1300", "to be added", false));
-		inst.add(new Instruction("RLA", "rla", "5s-d", "to be added", true));
-		inst.add(new Instruction("RLC", "rlc", "5s-d", "to be added", true));
-		inst.add(new Instruction("RRA", "rra", "11-0", "to be added", true));
-		inst.add(new Instruction("RRC", "rrc", "10-0", "to be added", true));
-		inst.add(new Instruction("SBC", "sbc", "8s-d", "to be added", true));  //emulated sub
-		inst.add(new Instruction("SETC", "setc", "5s-d", "to be added", false)); 
-		inst.add(new Instruction("SETN", "setn", "5s-d", "to be added", false));
-		inst.add(new Instruction("SETZ", "setz", "5s-d", "to be added", false));
-		inst.add(new Instruction("SUB", "sub", "8s-d", "to be added", true));
-		inst.add(new Instruction("SUBC", "subc", "7s-d", "to be added", true));
-		inst.add(new Instruction("SWPB", "swpb", "1080", "to be added", false));
-		inst.add(new Instruction("XOR", "xor", "Es-d", "to be added", true));
+	private static int mnemonicHash(CharSequence s, int seed) {
+		int h = seed;
+		for(int i = 0; i < s.length(); i++) {
+			h = (h ^ (s.charAt(i) | 0x20)) * 0x01000193; // FNV-1a over the lower-cased characters
+		}
+		return h ^ (h >>> 15);
 	}
 
-	public static Instruction getInstruction(String operator) {
-		for(Instruction i : inst) {
-			if(i.getOperator().equalsIgnoreCase(operator)) {
-				return i;
-			}
+	/**
+	 * @param operator - Mnemonic without any .b/.w suffix, any case
+	 * @return The instruction, or null if there isn't one by that name
+	 */
+	public static Instruction getInstruction(CharSequence operator) {
+		Instruction i = index[mnemonicHash(operator, indexSeed) & indexMask];
+		if(i == null || i.getOperator().length() != operator.length()) return null;
+		for(int c = 0; c < operator.length(); c++) {
+			if(Character.toLowerCase(operator.charAt(c)) != i.getOperator().charAt(c)) return null;
 		}
-		return null;
+		return i;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,411 @@
+package edu.ttu.drewmitchell;
+
+/**
+ * Splits one line of source into label, mnemonic, operands and comment in a single scan,
+ * classifying it along the way so parseLine can go straight to the right handler. Fields are
+ * offsets into the line, nothing is copied unless the caller asks for it. One lexer is reused
+ * for every line of a file.
+ */
+public class Lexer {
+	public enum Kind {
+		BLANK,       // Nothing but whitespace
+		COMMENT,     // Starts with ; or end
+		CONSTANT,    // LABEL EQU value
+		DEFINE,      // DB, DS, DW
+		ORG,         // ORG 0x....
+		DIRECTIVE,   // INCLUDE, MACRO, ENDM, IF, IFDEF, IFNDEF, ELSE, ENDIF - see Preprocessor, and RSEG, PUBLIC, EXTERN - see ModuleObject
+		LABEL,       // A lone label, or a lone instruction such as ret
+		DOUBLE_OP,   // Mnemonic with source and destination
+		SINGLE_OP,   // Mnemonic with one operand, or none when a label comes first
+		UNRECOGNIZED // Doesn't fit any of the above
+	}
+
+	private CharSequence line;
+	private Kind kind;
+	// Offsets into the line, -1 when the part isn't there
+	int labelStart, labelEnd;
+	int mnemonicStart, mnemonicEnd;
+	int srcStart, srcEnd, dstStart, dstEnd;
+	int valueStart, valueEnd; // EQU value, DB/DS/DW data, ORG address, directive operands
+	int relativeStart = -1, relativeEnd = -1; // Label in an EQU "$ - label"
+	int commentStart;
+
+	/**
+	 * @param line - One line of source, without its line terminator
+	 * @return What kind of line it is
+	 */
+	public Kind lex(CharSequence line) {
+		this.line = line;
+		labelStart = labelEnd = mnemonicStart = mnemonicEnd = -1;
+		srcStart = srcEnd = dstStart = dstEnd = -1;
+		valueStart = valueEnd = relativeStart = relativeEnd = -1;
+		int n = line.length();
+
+		int p = skipSpace(0, n);
+		if(p == n) return kind = Kind.BLANK;
+		commentStart = p;
+		if(line.charAt(p) == ';' || (startsWithIgnoreCase(p, "end") && !isDirective(p, tokenEnd(p, n)))) return kind = Kind.COMMENT;
+
+		int end = p;
+		while(end < n && line.charAt(end) != ';') end++;
+		commentStart = end < n ? end : -1;
+		while(end > p && isSpace(line.charAt(end - 1))) end--; // Content runs [p, end)
+
+		// Up to three leading tokens decide what the line is
+		int t0 = p, t0End = tokenEnd(t0, end);
+		int t1 = skipSpace(t0End, end), t1End = tokenEnd(t1, end);
+		int t2 = skipSpace(t1End, end);
+
+		// BEGIN CONSTANT HANDLING / DIRECTIVES
+		for(int t = t1; t < end; t = skipSpace(tokenEnd(t, end), end)) { // Label is everything ahead of the first EQU
+			if(tokenEnd(t, end) - t == 3 && regionEquals(t, "EQU")) {
+				if(lexConstant(skipSpace(t + 3, end), end)) {
+					labelStart = 0;
+					labelEnd = t;
+					while(isSpace(line.charAt(labelEnd - 1))) labelEnd--;
+					return kind = Kind.CONSTANT;
+				}
+				break;
+			}
+		}
+
+		// Indented lines only have a label when something that looks like a mnemonic follows it along with operands
+		boolean labelled = p == 0 || line.charAt(t0End - 1) == ':' || (t2 < end && isMnemonic(t1, t1End));
+		int m = t0, mEnd = t0End;
+		if(labelled) {
+			labelStart = 0; // Indented labels keep their whitespace so checkValidLabelCase can point it out
+			labelEnd = line.charAt(t0End - 1) == ':' ? t0End - 1 : t0End;
+			m = t1;
+			mEnd = t1End;
+		}
+
+		if(m < end && isDirective(m, mEnd)) { // A label in front is the macro's name
+			mnemonicStart = m;
+			mnemonicEnd = mEnd;
+			valueStart = skipSpace(mEnd, end);
+			valueEnd = end;
+			return kind = Kind.DIRECTIVE;
+		}
+		if(m >= end) { // Lone label
+			labelStart = p;
+			return kind = isLabelChars(labelStart, labelEnd) ? Kind.LABEL : Kind.UNRECOGNIZED;
+		}
+		if(!labelled && mEnd == end && !hasDot(m, mEnd)) { // Lone token, lexed as a label, parseLine checks for ret and the like
+			labelStart = m;
+			labelEnd = line.charAt(mEnd - 1) == ':' ? mEnd - 1 : mEnd;
+			return kind = isLabelChars(labelStart, labelEnd) ? Kind.LABEL : Kind.UNRECOGNIZED;
+		}
+		if(labelled && !isLabelChars(skipSpace(labelStart, labelEnd), labelEnd)) return kind = Kind.UNRECOGNIZED;
+
+		mnemonicStart = m;
+		mnemonicEnd = mEnd;
+		int operands = skipSpace(mEnd, end);
+		if(mEnd - m == 2 && line.charAt(m) == 'D' && (line.charAt(m + 1) == 'B' || line.charAt(m + 1) == 'S' || line.charAt(m + 1) == 'W')) {
+			valueStart = operands;
+			valueEnd = end;
+			return kind = isData(operands, end) ? Kind.DEFINE : Kind.UNRECOGNIZED;
+		}
+		if(mEnd - m == 3 && regionEquals(m, "ORG") && isOrgAddress(operands, end)) {
+			valueStart = operands;
+			valueEnd = end;
+			return kind = Kind.ORG;
+		}
+		// END CONSTANT HANDLING / DIRECTIVES
+
+		if(!isMnemonicShape(m, mEnd)) return kind = Kind.UNRECOGNIZED;
+		if(operands == end) return kind = Kind.SINGLE_OP; // No operand at all, e.g. "loop ret"
+
+		int comma = operands;
+		while(comma < end && line.charAt(comma) != ',') comma++;
+		if(comma == end) { // Single operand, one token
+			srcStart = operands;
+			srcEnd = end;
+			return kind = isOperandChars(srcStart, srcEnd, true) ? Kind.SINGLE_OP : Kind.UNRECOGNIZED;
+		}
+		srcStart = operands;
+		srcEnd = comma;
+		while(srcEnd > srcStart && isSpace(line.charAt(srcEnd - 1))) srcEnd--;
+		dstStart = skipSpace(comma + 1, end);
+		dstEnd = end;
+		if(!isOperandChars(srcStart, srcEnd, true) || !isOperandChars(dstStart, dstEnd, false)) return kind = Kind.UNRECOGNIZED;
+		return kind = Kind.DOUBLE_OP;
+	}
+
+	// BEGIN VALUE GRAMMARS
+
+	/**
+	 * EQU values: %bbbbbbbb, 0x hex, or "$ - label"
+	 */
+	private boolean lexConstant(int p, int end) {
+		valueStart = p;
+		valueEnd = end;
+		if(p >= end) return false;
+		char c = line.charAt(p);
+		if(c == '%') {
+			if(end - p != 9) return false;
+			for(int i = p + 1; i < end; i++) {
+				if(line.charAt(i) != '0' && line.charAt(i) != '1') return false;
+			}
+			return true;
+		}
+		if(c == '0' && p + 2 < end && line.charAt(p + 1) == 'x') {
+			for(int i = p + 2; i < end; i++) {
+				if(Character.digit(line.charAt(i), 16) < 0) return false;
+			}
+			return true;
+		}
+		if(c == '$') {
+			int dash = skipSpace(p + 1, end);
+			if(dash == p + 1 || dash >= end || line.charAt(dash) != '-') return false;
+			int name = skipSpace(dash + 1, end);
+			if(name == dash + 1 || name >= end) return false;
+			for(int i = name; i < end; i++) {
+				if(!isWordChar(line.charAt(i))) return false;
+			}
+			relativeStart = name;
+			relativeEnd = end;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * DB/DS/DW data: 'c', "string", a digit, or a word
+	 */
+	private boolean isData(int p, int end) {
+		if(p >= end) return false;
+		char c = line.charAt(p);
+		if(c == '\'') {
+			return end - p == 3 && line.charAt(end - 1) == '\'' && (isWordChar(line.charAt(p + 1)) || line.charAt(p + 1) == '-');
+		}
+		if(c == '"') {
+			if(end - p < 3 || line.charAt(end - 1) != '"') return false;
+			p++;
+			end--;
+		}
+		for(int i = p; i < end; i++) {
+			if(!isWordChar(line.charAt(i)) && line.charAt(i) != '-') return false;
+		}
+		return true;
+	}
+
+	private boolean isOrgAddress(int p, int end) {
+		if(end - p < 3 || end - p > 6 || line.charAt(p) != '0' || line.charAt(p + 1) != 'x') return false;
+		for(int i = p + 2; i < end; i++) {
+			if(Character.digit(line.charAt(i), 16) < 0) return false;
+		}
+		return true;
+	}
+
+	// END VALUE GRAMMARS
+
+	// BEGIN CHARACTER CLASSES
+
+	/**
+	 * @return Whether [start, end) looks like a mnemonic: 2-4 letters with an optional .x suffix
+	 */
+	private boolean isMnemonic(int start, int end) {
+		return start < end && isMnemonicShape(start, end);
+	}
+
+	private boolean isMnemonicShape(int start, int end) {
+		int letters = start;
+		while(letters < end && isLetter(line.charAt(letters))) letters++;
+		if(letters - start < 2 || letters - start > 4) return false;
+		return letters == end || (end - letters == 2 && line.charAt(letters) == '.' && isWordChar(line.charAt(letters + 1)));
+	}
+
+	private boolean isLabelChars(int start, int end) {
+		if(start >= end) return false;
+		for(int i = start; i < end; i++) {
+			char c = line.charAt(i);
+			if(!isWordChar(c) && "?*&^%$#@!()".indexOf(c) < 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Destinations can't be immediate or indirect, so they don't get # or @.
+	 */
+	private boolean isOperandChars(int start, int end, boolean source) {
+		if(start >= end) return true; // Missing operands are reported by parseLine
+		for(int i = start; i < end; i++) {
+			char c = line.charAt(i);
+			if(isWordChar(c) || c == '&' || c == '+' || c == '(' || c == ')') continue;
+			if(source && (c == '#' || c == '@')) continue;
+			return false;
+		}
+		return true;
+	}
+
+	private boolean isDirective(int start, int end) {
+		switch(end - start) {
+		case 2: return regionEquals(start, "IF");
+		case 4: return regionEquals(start, "ENDM") || regionEquals(start, "ELSE") || regionEquals(start, "RSEG");
+		case 5: return regionEquals(start, "MACRO") || regionEquals(start, "IFDEF") || regionEquals(start, "ENDIF");
+		case 6: return regionEquals(start, "IFNDEF") || regionEquals(start, "PUBLIC") || regionEquals(start, "EXTERN");
+		case 7: return regionEquals(start, "INCLUDE");
+		default: return false;
+		}
+	}
+
+	private boolean hasDot(int start, int end) {
+		for(int i = start; i < end; i++) {
+			if(line.charAt(i) == '.') return true;
+		}
+		return false;
+	}
+
+	static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\f' || c == '\r' || c == 0x0B;
+	}
+
+	static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	static boolean isWordChar(char c) {
+		return isLetter(c) || (c >= '0' && c <= '9') || c == '_';
+	}
+
+	// END CHARACTER CLASSES
+
+	private int skipSpace(int p, int end) {
+		while(p < end && isSpace(line.charAt(p))) p++;
+		return p;
+	}
+
+	private int tokenEnd(int p, int end) {
+		while(p < end && !isSpace(line.charAt(p))) p++;
+		return p;
+	}
+
+	private boolean regionEquals(int p, String s) {
+		if(p + s.length() > line.length()) return false;
+		for(int i = 0; i < s.length(); i++) {
+			if(line.charAt(p + i) != s.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private boolean startsWithIgnoreCase(int p, String s) {
+		if(p + s.length() > line.length()) return false;
+		for(int i = 0; i < s.length(); i++) {
+			if(Character.toLowerCase(line.charAt(p + i)) != s.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A line as the lexer left it, so it can be loaded back later without scanning it again.
+	 * Immutable, cached lines are shared between threads.
+	 */
+	public static final class Token {
+		final String line;
+		final Kind kind;
+		final int labelStart, labelEnd, mnemonicStart, mnemonicEnd, srcStart, srcEnd, dstStart, dstEnd;
+		final int valueStart, valueEnd, relativeStart, relativeEnd, commentStart;
+
+		private Token(Lexer l) {
+			line = l.line.toString();
+			kind = l.kind;
+			labelStart = l.labelStart;
+			labelEnd = l.labelEnd;
+			mnemonicStart = l.mnemonicStart;
+			mnemonicEnd = l.mnemonicEnd;
+			srcStart = l.srcStart;
+			srcEnd = l.srcEnd;
+			dstStart = l.dstStart;
+			dstEnd = l.dstEnd;
+			valueStart = l.valueStart;
+			valueEnd = l.valueEnd;
+			relativeStart = l.relativeStart;
+			relativeEnd = l.relativeEnd;
+			commentStart = l.commentStart;
+		}
+
+		public String getLine() {
+			return line;
+		}
+	}
+
+	/**
+	 * @return The line just lexed, as a Token
+	 */
+	public Token token() {
+		return new Token(this);
+	}
+
+	/**
+	 * Puts the lexer back how it was when the token was taken.
+	 * @return The token's kind
+	 */
+	public Kind load(Token t) {
+		line = t.line;
+		labelStart = t.labelStart;
+		labelEnd = t.labelEnd;
+		mnemonicStart = t.mnemonicStart;
+		mnemonicEnd = t.mnemonicEnd;
+		srcStart = t.srcStart;
+		srcEnd = t.srcEnd;
+		dstStart = t.dstStart;
+		dstEnd = t.dstEnd;
+		valueStart = t.valueStart;
+		valueEnd = t.valueEnd;
+		relativeStart = t.relativeStart;
+		relativeEnd = t.relativeEnd;
+		commentStart = t.commentStart;
+		return kind = t.kind;
+	}
+
+	// BEGIN ACCESSORS - these are the only places Strings get made
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public String label() {
+		return labelStart < 0 ? null : line.subSequence(labelStart, labelEnd).toString();
+	}
+
+	public String mnemonic() {
+		return mnemonicStart < 0 ? null : line.subSequence(mnemonicStart, mnemonicEnd).toString();
+	}
+
+	/**
+	 * @return The mnemonic without its .b/.w suffix
+	 */
+	public CharSequence baseMnemonic() {
+		int end = mnemonicEnd;
+		for(int i = mnemonicStart; i < mnemonicEnd; i++) {
+			if(line.charAt(i) == '.') end = i;
+		}
+		return line.subSequence(mnemonicStart, end);
+	}
+
+	/**
+	 * @return The suffix character after the '.', or 0 if there isn't one
+	 */
+	public char suffix() {
+		return mnemonicEnd - mnemonicStart > 2 && line.charAt(mnemonicEnd - 2) == '.' ? line.charAt(mnemonicEnd - 1) : 0;
+	}
+
+	public String source() {
+		return srcStart < 0 || srcStart == srcEnd ? null : line.subSequence(srcStart, srcEnd).toString();
+	}
+
+	public String destination() {
+		return dstStart < 0 || dstStart == dstEnd ? null : line.subSequence(dstStart, dstEnd).toString();
+	}
+
+	public String value() {
+		return valueStart < 0 ? null : line.subSequence(valueStart, valueEnd).toString();
+	}
+
+	/**
+	 * @return The label in an EQU "$ - label", or null for other values
+	 */
+	public String relativeLabel() {
+		return relativeStart < 0 ? null : line.subSequence(relativeStart, relativeEnd).toString();
+	}
+}
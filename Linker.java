@@ -0,0 +1,332 @@
+package edu.ttu.drewmitchell;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Puts modules assembled with --relocatable together into one object file. The modules are read in
+ * parallel, every section is laid out where the script says, one module's piece after the next in
+ * the order they were named, then every module's PUBLIC symbols go into one index. Each module is
+ * then relocated on its own against its own symbols and the index, in parallel, since nothing one
+ * does touches another's bytes. Only changed modules need assembling again before a relink.
+ *
+ * AssemblerPhase3 --link [-script file] [-o name] [-j N] [--format=...] a.rel b.rel ...
+ *
+ * The script has a line per section, "NAME START [END]", END being the last address it may use.
+ * Everything after ; is a comment. The object file and a .map of where everything went are written
+ * as name (default "linked") plus the format's extension.
+ */
+public class Linker {
+	/**
+	 * Where the script puts a section, and how far it's filled.
+	 */
+	static class Placement {
+		final String section;
+		final int start, end;
+		int next;
+
+		Placement(String section, int start, int end) {
+			this.section = section;
+			this.start = start;
+			this.end = end;
+			this.next = start;
+		}
+	}
+
+	/**
+	 * A PUBLIC symbol at its final address.
+	 */
+	static class Export {
+		final String name, module;
+		final int value;
+
+		Export(String name, String module, int value) {
+			this.name = name;
+			this.module = module;
+			this.value = value;
+		}
+	}
+
+	interface Task {
+		List<String> run(int module) throws IOException;
+	}
+
+	final List<ModuleObject> modules = new ArrayList<ModuleObject>();
+	final Map<String, Placement> placements = new TreeMap<String, Placement>(); // By section name, same spelling as RSEG's
+	final List<int[]> bases = new ArrayList<int[]>(); // Per module, where each of its sections ended up
+	final Map<String, Export> exports = new ConcurrentHashMap<String, Export>(); // PUBLIC symbols by upper case name
+	final List<String> errors = new ArrayList<String>();
+
+	/**
+	 * @param args - As in the class comment
+	 * @return true if it linked without errors
+	 */
+	public static boolean main(String[] args) throws IOException {
+		int workers = Runtime.getRuntime().availableProcessors();
+		File script = null, out = new File("linked");
+		List<File> files = new ArrayList<File>();
+		for(int a = 0; a < args.length; a++) {
+			if(args[a].equals("-script") && a + 1 < args.length) script = new File(args[++a]);
+			else if(args[a].equals("-o") && a + 1 < args.length) out = new File(args[++a]);
+			else if(args[a].equals("-j") && a + 1 < args.length) workers = Integer.parseInt(args[++a]);
+			else if(args[a].startsWith("--format=")) AssemblerPhase3.objectFormats = args[a].substring("--format=".length()).split(",");
+			else files.add(new File(args[a]));
+		}
+		ExecutorService pool = Executors.newWorkStealingPool(workers);
+		try {
+			Linker linker = new Linker();
+			boolean linked = linker.link(files, script, pool, out.getAbsoluteFile().getParentFile(), out.getName());
+			for(String error : linker.errors) {
+				System.out.println(error);
+			}
+			System.out.println(out.getPath() + ": " + (linked ? "OK" : "ERRORS"));
+			return linked;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * @param files - .rel files, in the order their sections are laid out
+	 * @param script - Section placements, may be null if every module is all ORG
+	 * @param dir - Where the object file and map go
+	 * @param name - What they're called, less the extension
+	 * @return true if the object file was written, otherwise errors says why
+	 */
+	boolean link(List<File> files, File script, ExecutorService pool, File dir, String name) throws IOException {
+		ModuleObject[] read = new ModuleObject[files.size()];
+		run(pool, files.size(), m -> {
+			try {
+				read[m] = ModuleObject.read(files.get(m));
+				return null;
+			} catch (IOException e) { // Missing or not a module, the rest may still have something to say
+				String message = e.getMessage() != null && e.getMessage().startsWith("ERROR") ? e.getMessage() : "ERROR - can't read " + files.get(m).getPath();
+				return Collections.singletonList(message);
+			}
+		});
+		if(!errors.isEmpty()) return false;
+		modules.addAll(Arrays.asList(read));
+		if(script != null) readScript(script);
+		if(!errors.isEmpty() || !layOut()) return false;
+
+		// BEGIN SYMBOLS
+		run(pool, modules.size(), m -> {
+			List<String> found = new ArrayList<String>();
+			ModuleObject module = modules.get(m);
+			for(ModuleObject.Symbol symbol : module.symbols) {
+				if(!symbol.exported) continue;
+				Export export = new Export(symbol.name, module.name, finalValue(m, symbol.section, symbol.value));
+				Export first = exports.putIfAbsent(symbol.name.toUpperCase(), export);
+				if(first != null) found.add(duplicate(first, export));
+			}
+			return found;
+		});
+		if(!errors.isEmpty()) return false;
+		// END SYMBOLS
+
+		// BEGIN RELOCATION
+		run(pool, modules.size(), this::relocate);
+		if(!errors.isEmpty()) return false;
+		// END RELOCATION
+
+		ObjectImage image = image();
+		if(image == null) return false;
+		AssemblerContext ctx = new AssemblerContext();
+		ctx.image = image;
+		AssemblerPhase3.writeObj(ctx, dir, name);
+		writeMap(new File(dir, name + ".map"));
+		return true;
+	}
+
+	/**
+	 * Whichever module got to the index first, the message names them in the order they were linked.
+	 */
+	private String duplicate(Export first, Export second) {
+		int a = moduleIndex(first.module), b = moduleIndex(second.module);
+		return "ERROR - '" + first.name + "' is PUBLIC in both " + modules.get(Math.min(a, b)).name + " and " + modules.get(Math.max(a, b)).name;
+	}
+
+	private int moduleIndex(String name) {
+		for(int m = 0; m < modules.size(); m++) {
+			if(modules.get(m).name.equals(name)) return m;
+		}
+		return -1;
+	}
+
+	private void readScript(File script) throws IOException {
+		int lineNum = 0;
+		for(String line : Files.readAllLines(script.toPath(), StandardCharsets.ISO_8859_1)) {
+			lineNum++;
+			int comment = line.indexOf(';');
+			String[] f = (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+");
+			if(f[0].isEmpty()) continue;
+			try {
+				if(f.length < 2 || f.length > 3) throw new NumberFormatException();
+				int start = Integer.decode(f[1]), end = f.length > 2 ? Integer.decode(f[2]) : 0xFFFF;
+				if(start < 0 || end > 0xFFFF || end < start) throw new NumberFormatException();
+				if(placements.put(f[0], new Placement(f[0], start, end)) != null) errors.add("ERROR - " + script.getPath() + " line " + lineNum + " places " + f[0] + " again");
+			} catch (NumberFormatException e) {
+				errors.add("ERROR - " + script.getPath() + " line " + lineNum + " should be NAME START [END], addresses within 64K");
+			}
+		}
+	}
+
+	/**
+	 * Gives every module's sections their base address, in the order the modules were named.
+	 * @return false if a section has nowhere to go or doesn't fit
+	 */
+	private boolean layOut() {
+		for(ModuleObject module : modules) {
+			int[] base = new int[module.sections.size()];
+			for(int s = 0; s < base.length; s++) {
+				Placement placement = placements.get(module.sections.get(s));
+				if(placement == null) {
+					errors.add("ERROR - " + module.name + " has section " + module.sections.get(s) + ", which the script doesn't place");
+					continue;
+				}
+				base[s] = placement.next;
+				placement.next += module.sizes.get(s) + 1 & ~1; // Next piece starts on a word
+				if(placement.next - 1 > placement.end) errors.add("ERROR - " + placement.section + " runs past " + AssemblerPhase3.hexForm(placement.end) + " at " + module.name);
+			}
+			bases.add(base);
+		}
+		return errors.isEmpty();
+	}
+
+	private int finalValue(int module, int section, int value) {
+		return section == ModuleObject.ABS ? value : bases.get(module)[section] + value & 0xFFFF;
+	}
+
+	/**
+	 * Resolves one module's relocations and patches them into its chunks.
+	 * @return Anything that wouldn't resolve
+	 */
+	private List<String> relocate(int m) {
+		List<String> found = new ArrayList<String>();
+		ModuleObject module = modules.get(m);
+		SymbolTable table = new SymbolTable();
+		for(ModuleObject.Symbol symbol : module.symbols) {
+			table.define(symbol.name, finalValue(m, symbol.section, symbol.value), 0);
+		}
+		for(String extern : module.externs) {
+			Export export = exports.get(extern.toUpperCase());
+			if(export != null) table.define(extern, export.value, 0); // One nothing uses needn't be anywhere
+		}
+		for(ModuleObject.Relocation r : module.relocations) {
+			Fixup fixup = new Fixup(r.kind, r.expression, r.addend, 0, finalValue(m, r.section, r.address));
+			String failed = fixup.resolve(table);
+			if(failed != null) {
+				String error = failed.startsWith("ERROR - UNDEFINED") ? "ERROR - " + module.name + ": " + failed.substring("ERROR - ".length()) // Once per name
+						: "ERROR - " + module.name + " at " + AssemblerPhase3.hexForm(fixup.address) + ": " + failed.substring("ERROR - ".length());
+				if(!found.contains(error)) found.add(error);
+				continue;
+			}
+			ModuleObject.Chunk chunk = chunkAt(module, r.section, r.address);
+			if(chunk == null) {
+				found.add("ERROR - " + module.name + " relocates " + AssemblerPhase3.hexForm(r.address) + ", which holds no data");
+				continue;
+			}
+			int at = r.address - chunk.address;
+			chunk.bytes[at] = (byte) fixup.getValue();
+			chunk.bytes[at + 1] = (byte) (fixup.getValue() >> 8);
+		}
+		return found;
+	}
+
+	private static ModuleObject.Chunk chunkAt(ModuleObject module, int section, int address) {
+		for(ModuleObject.Chunk chunk : module.chunks) {
+			if(chunk.section == section && address >= chunk.address && address + 2 <= chunk.address + chunk.bytes.length) return chunk;
+		}
+		return null;
+	}
+
+	/**
+	 * @return Every chunk at its final address, in address order, or null if any two overlap
+	 */
+	private ObjectImage image() {
+		List<int[]> pieces = new ArrayList<int[]>(); // Address, module, chunk
+		for(int m = 0; m < modules.size(); m++) {
+			List<ModuleObject.Chunk> chunks = modules.get(m).chunks;
+			for(int c = 0; c < chunks.size(); c++) {
+				pieces.add(new int[] { finalValue(m, chunks.get(c).section, chunks.get(c).address), m, c });
+			}
+		}
+		pieces.sort(Comparator.comparingInt(piece -> piece[0]));
+		int[] owner = new int[0x10000]; // Module + 1 that put a byte at each address
+		ObjectImage image = new ObjectImage(pieces.isEmpty() ? 0 : pieces.get(0)[0]);
+		for(int[] piece : pieces) {
+			byte[] bytes = modules.get(piece[1]).chunks.get(piece[2]).bytes;
+			for(int i = 0; i < bytes.length; i++) {
+				int address = piece[0] + i & 0xFFFF;
+				if(owner[address] != 0) {
+					errors.add("ERROR - " + modules.get(owner[address] - 1).name + " and " + modules.get(piece[1]).name + " both put bytes at " + AssemblerPhase3.hexForm(address));
+					break;
+				}
+				owner[address] = piece[1] + 1;
+			}
+			image.org(piece[0]);
+			image.put(bytes);
+		}
+		return errors.isEmpty() ? image : null;
+	}
+
+	private void writeMap(File file) throws IOException {
+		try (Writer out = new BufferedWriter(new FileWriter(file, StandardCharsets.ISO_8859_1))) {
+			out.write("Section:          Module:           Start:   Size:\n");
+			for(Placement placement : placements.values()) {
+				for(int m = 0; m < modules.size(); m++) {
+					int s = modules.get(m).sections.indexOf(placement.section);
+					if(s >= 0) out.write(String.format("%-18s%-18s%s     %s\n", placement.section, modules.get(m).name, AssemblerPhase3.hexForm(bases.get(m)[s]),
+							AssemblerPhase3.hexForm(modules.get(m).sizes.get(s))));
+				}
+			}
+			out.write("\nPublic:           Module:           Value:\n");
+			Map<String, Export> sorted = new TreeMap<String, Export>(exports);
+			for(Export export : sorted.values()) {
+				out.write(String.format("%-18s%-18s%s\n", export.name, export.module, AssemblerPhase3.hexForm(export.value)));
+			}
+		}
+	}
+
+	/**
+	 * Runs the task for every module at once and waits for them all, keeping what they found in module order.
+	 */
+	private void run(ExecutorService pool, int count, Task task) throws IOException {
+		List<Callable<List<String>>> tasks = new ArrayList<Callable<List<String>>>();
+		for(int m = 0; m < count; m++) {
+			int module = m;
+			tasks.add(() -> task.run(module));
+		}
+		try {
+			for(Future<List<String>> done : pool.invokeAll(tasks)) {
+				List<String> found = done.get();
+				if(found != null) errors.addAll(found);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("ERROR - interrupted", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+}
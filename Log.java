@@ -0,0 +1,171 @@
+package edu.ttu.drewmitchell;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.function.Supplier;
+
+/**
+ * Diagnostics, gated by level per category. Messages are handed over as suppliers and only
+ * built when their level is on, so a disabled call is one array read. Enabled messages go into
+ * a bounded ring and a background thread writes them to stderr, the assembler never waits on the
+ * console. If the ring is full the message is dropped and counted rather than blocking.
+ *
+ * Levels are set with -Dmsp430.log=..., or --log=... in batch mode, e.g. "debug" for every
+ * category or "info,encoder=trace,symbols=debug".
+ */
+public class Log {
+	public enum Level { OFF, ERROR, WARN, INFO, DEBUG, TRACE }
+	public enum Category { PARSER, ENCODER, SYMBOLS, OUTPUT }
+
+	static final int CAPACITY = 1 << 13, MASK = CAPACITY - 1;
+
+	private static final int[] levels = new int[Category.values().length]; // Highest Level ordinal that's on, per category
+	private static final String[] ring = new String[CAPACITY];
+	private static long written = 0, drained = 0, dropped = 0; // All guarded by ring
+	private static Writer out = new BufferedWriter(new OutputStreamWriter(System.err)); // Off stdout, which --stats=json prints to
+	private static Thread writer;
+
+	static {
+		configure(System.getProperty("msp430.log", "info"));
+	}
+
+	/**
+	 * @param spec - A level for every category, and/or category=level pairs, comma separated
+	 */
+	public static void configure(String spec) {
+		for(String part : spec.split(",")) {
+			part = part.trim();
+			if(part.isEmpty()) continue;
+			int eq = part.indexOf('=');
+			Level level;
+			try {
+				level = Level.valueOf(part.substring(eq + 1).toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("ERROR - unknown log level '" + part.substring(eq + 1) + "'");
+			}
+			if(eq < 0) {
+				for(Category c : Category.values()) {
+					levels[c.ordinal()] = level.ordinal();
+				}
+				continue;
+			}
+			try {
+				levels[Category.valueOf(part.substring(0, eq).toUpperCase()).ordinal()] = level.ordinal();
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("ERROR - unknown log category '" + part.substring(0, eq) + "'");
+			}
+		}
+	}
+
+	public static boolean enabled(Category category, Level level) {
+		return level.ordinal() <= levels[category.ordinal()];
+	}
+
+	public static void error(Category category, Supplier<?> message) {
+		log(category, Level.ERROR, message);
+	}
+
+	public static void warn(Category category, Supplier<?> message) {
+		log(category, Level.WARN, message);
+	}
+
+	public static void info(Category category, Supplier<?> message) {
+		log(category, Level.INFO, message);
+	}
+
+	public static void debug(Category category, Supplier<?> message) {
+		log(category, Level.DEBUG, message);
+	}
+
+	public static void trace(Category category, Supplier<?> message) {
+		log(category, Level.TRACE, message);
+	}
+
+	/**
+	 * @param message - Built here, on the caller's thread, since what it refers to may not last
+	 */
+	public static void log(Category category, Level level, Supplier<?> message) {
+		if(level.ordinal() > levels[category.ordinal()]) return;
+		publish(category.name().toLowerCase() + " " + level.name().toLowerCase() + ": " + message.get());
+	}
+
+	private static void publish(String line) {
+		synchronized(ring) {
+			if(written - drained == CAPACITY) {
+				dropped++;
+				return;
+			}
+			ring[(int) (written++ & MASK)] = line;
+			if(writer == null) start();
+			ring.notifyAll();
+		}
+	}
+
+	private static void start() {
+		writer = new Thread(Log::drain, "msp430-log");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::flush));
+	}
+
+	/**
+	 * Background writer: takes whatever's in the ring in one go, writes it out, repeats.
+	 */
+	private static void drain() {
+		String[] batch = new String[CAPACITY];
+		while(true) {
+			int count;
+			long lost;
+			synchronized(ring) {
+				while(written == drained && dropped == 0) {
+					try {
+						ring.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				count = (int) (written - drained);
+				for(int n = 0; n < count; n++) {
+					int slot = (int) ((drained + n) & MASK);
+					batch[n] = ring[slot];
+					ring[slot] = null;
+				}
+				lost = dropped;
+				dropped = 0;
+			}
+			try {
+				for(int n = 0; n < count; n++) {
+					out.write(batch[n]);
+					out.write('\n');
+					batch[n] = null;
+				}
+				if(lost > 0) out.write("... " + lost + " log messages dropped\n");
+				out.flush();
+			} catch (IOException e) {
+				// Nowhere left to report it
+			}
+			synchronized(ring) {
+				drained += count;
+				ring.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits until everything logged so far has been written.
+	 */
+	public static void flush() {
+		synchronized(ring) {
+			long target = written;
+			while(writer != null && writer.isAlive() && drained < target) {
+				try {
+					ring.wait(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,344 @@
+package edu.ttu.drewmitchell;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A relocatable module (--relocatable), and its .rel file for Linker. RSEG name starts or carries on
+ * a section whose addresses count from 0, ORG still places code at a fixed address. Labels in a section
+ * are left out of the first pass's extension words, so they become fixups like forward references do,
+ * and whatever of those the second pass can't settle within the module (other sections, EXTERN symbols,
+ * absolute addresses of section labels) is written out as a relocation record instead of a word.
+ * PUBLIC names the symbols other modules can see.
+ *
+ * The .rel file is text, one record per line:
+ *   MODULE name
+ *   SECTION name size
+ *   DATA section|ABS address hex...
+ *   SYMBOL name section|ABS value [PUBLIC]
+ *   EXTERN name
+ *   RELOC section|ABS address kind addend expression
+ *   END
+ * Numbers are hex, addresses in a section count from its start.
+ */
+public class ModuleObject {
+	static final int ABS = -1; // Section index for anything at a fixed address
+	static final String LINKED = "...."; // Listing slot of a word the linker fills in
+	static final int DATA_BYTES = 32; // Per DATA line
+
+	/**
+	 * Bytes one segment put in a section, or at a fixed address.
+	 */
+	static class Chunk {
+		final int section, address;
+		final byte[] bytes;
+
+		Chunk(int section, int address, byte[] bytes) {
+			this.section = section;
+			this.address = address;
+			this.bytes = bytes;
+		}
+	}
+
+	static class Symbol {
+		final String name;
+		final int section, value;
+		final boolean exported;
+
+		Symbol(String name, int section, int value, boolean exported) {
+			this.name = name;
+			this.section = section;
+			this.value = value;
+			this.exported = exported;
+		}
+	}
+
+	/**
+	 * A word the linker fills in, resolved the same way the second pass resolves a Fixup.
+	 */
+	static class Relocation {
+		final int section, address; // Of the patched word, a jump's is the jump itself
+		final Fixup.Kind kind;
+		final int addend;
+		final String expression;
+
+		Relocation(int section, int address, Fixup.Kind kind, int addend, String expression) {
+			this.section = section;
+			this.address = address;
+			this.kind = kind;
+			this.addend = addend;
+			this.expression = expression;
+		}
+	}
+
+	String name;
+	final List<String> sections = new ArrayList<String>();
+	final List<Integer> sizes = new ArrayList<Integer>(); // Per section, while assembling it's how far each one's got
+	final List<Chunk> chunks = new ArrayList<Chunk>();
+	final List<Symbol> symbols = new ArrayList<Symbol>();
+	final Set<String> externs = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER); // Symbols are looked up ignoring case, same as SymbolTable
+	final List<Relocation> relocations = new ArrayList<Relocation>();
+
+	// BEGIN ASSEMBLING
+
+	int section = ABS; // Section being assembled into
+	private final Map<String, Integer> sectionOf = new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER); // Labels defined in a section
+	private final Set<String> publics = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+	private final List<Fixup> relocated = new ArrayList<Fixup>();
+
+	/**
+	 * RSEG, PUBLIC or EXTERN.
+	 * @param operand - What follows it, a section name or a list of symbols
+	 * @return "" once it's been dealt with, or an ERROR message
+	 */
+	String directive(AssemblerContext ctx, String directive, String operand) {
+		String[] names = operand.isEmpty() ? new String[0] : operand.split(",");
+		for(int n = 0; n < names.length; n++) {
+			names[n] = names[n].trim();
+			if(!isName(names[n])) return ctx.error("ERROR - " + directive + " needs names made of letters, digits and underscores");
+		}
+		if(names.length == 0) return ctx.error("ERROR - " + directive + " needs a name");
+		switch(directive) {
+		case "RSEG":
+			if(names.length > 1) return ctx.error("ERROR - RSEG takes one section name");
+			if(names[0].equals("ABS")) return ctx.error("ERROR - ABS is what the module file calls fixed addresses, it can't be a section");
+			leaveSection(ctx);
+			section = sections.indexOf(names[0]);
+			if(section < 0) {
+				section = sections.size();
+				sections.add(names[0]);
+				sizes.add(0);
+			}
+			ctx.addressCounter = sizes.get(section); // Carries on where it left off
+			ctx.image.org(ctx.addressCounter, section);
+			return "";
+		case "PUBLIC":
+			for(String name : names) {
+				publics.add(name);
+			}
+			return "";
+		default:
+			for(String name : names) {
+				externs.add(name);
+			}
+			return "";
+		}
+	}
+
+	private static boolean isName(String name) {
+		if(name.isEmpty() || !Lexer.isLetter(name.charAt(0))) return false;
+		for(int i = 0; i < name.length(); i++) {
+			if(!Lexer.isWordChar(name.charAt(i))) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * ORG leaves whatever section was being assembled, the code after it is at a fixed address.
+	 */
+	void org(AssemblerContext ctx) {
+		leaveSection(ctx);
+		section = ABS;
+	}
+
+	private void leaveSection(AssemblerContext ctx) {
+		if(section != ABS) sizes.set(section, ctx.addressCounter);
+	}
+
+	/**
+	 * @param symbol - A label that's just been defined at the address counter
+	 */
+	void defined(String symbol) {
+		if(section != ABS) sectionOf.put(symbol, section);
+		else sectionOf.remove(symbol);
+	}
+
+	/**
+	 * @param symbol - A constant EQU'd on a line inside a section, it doesn't move with it
+	 */
+	void constant(String symbol) {
+		sectionOf.remove(symbol);
+	}
+
+	/**
+	 * @param symbol - A defined symbol
+	 * @return Index of the section it's in, or ABS if it doesn't move at link time
+	 */
+	int sectionOf(String symbol) {
+		Integer s = sectionOf.get(symbol);
+		return s == null ? ABS : s;
+	}
+
+	/**
+	 * Decides whether the second pass can resolve a fixup here, or has to leave it to the linker. A jump or
+	 * symbolic operand to a label in its own section comes out the same wherever the section goes.
+	 * @param image - The module's object image
+	 * @param symbols - Everything the module defines
+	 * @return null to resolve it as usual, LINKED if it's been kept as a relocation, or an ERROR message
+	 */
+	String relocate(ObjectImage image, SymbolTable symbols, Fixup fixup) {
+		int own = image.segmentSection(image.segmentAt((int) fixup.objOffset));
+		String[] terms = fixup.getSymbol().split("\\+");
+		boolean relative = fixup.getKind() == Fixup.Kind.SYMBOLIC || fixup.getKind() == Fixup.Kind.JUMP;
+		boolean local = !relative || own == ABS || terms.length == 1;
+		for(String term : terms) {
+			if(symbols.lookup(term) < 0) {
+				if(!externs.contains(term)) return "ERROR - UNDEFINED LABEL '" + term + "'";
+				local = false;
+			}
+			else if(sectionOf(term) != (relative && terms.length == 1 ? own : ABS)) local = false;
+		}
+		if(local) return null;
+		relocated.add(fixup);
+		return LINKED;
+	}
+
+	/**
+	 * Reports PUBLIC symbols that were never defined and EXTERN ones that were.
+	 * @param trailer - End of the listing
+	 */
+	void check(AssemblerContext ctx, StringBuilder trailer) {
+		for(String name : publics) {
+			if(ctx.symbolTable.lookup(name) < 0) trailer.append("      ").append(ctx.error("ERROR - PUBLIC '" + name + "' is never defined")).append("\n");
+		}
+		for(String name : externs) {
+			if(ctx.symbolTable.lookup(name) >= 0) trailer.append("      ").append(ctx.error("ERROR - EXTERN '" + name + "' is defined here too")).append("\n");
+		}
+	}
+
+	/**
+	 * Gathers up what the module assembled to and writes it out.
+	 * @param name - Module name, usually the source's less its extension
+	 */
+	void write(AssemblerContext ctx, String name, File file) throws IOException {
+		this.name = name;
+		leaveSection(ctx);
+		ObjectImage image = ctx.image;
+		for(int n = 0; n < image.segmentCount(); n++) {
+			byte[] bytes = image.segmentBytes(n);
+			if(bytes.length > 0) chunks.add(new Chunk(image.segmentSection(n), image.segmentAddress(n), bytes));
+		}
+		for(int id : ctx.symbolTable.sorted()) {
+			String symbol = ctx.symbolTable.name(id);
+			symbols.add(new Symbol(symbol, sectionOf(symbol), ctx.symbolTable.value(id), publics.contains(symbol)));
+		}
+		for(Fixup fixup : relocated) {
+			int segment = image.segmentAt((int) fixup.objOffset);
+			relocations.add(new Relocation(image.segmentSection(segment), fixup.address, fixup.getKind(), fixup.getAddend(), fixup.getSymbol()));
+		}
+		try (Writer out = new BufferedWriter(new FileWriter(file, StandardCharsets.ISO_8859_1))) {
+			write(out);
+		}
+	}
+
+	// END ASSEMBLING
+
+	// BEGIN FILE FORMAT
+
+	private void write(Writer out) throws IOException {
+		out.write("MODULE " + name + "\n");
+		for(int s = 0; s < sections.size(); s++) {
+			out.write("SECTION " + sections.get(s) + " " + AssemblerPhase3.hexForm(sizes.get(s)) + "\n");
+		}
+		for(Chunk chunk : chunks) {
+			for(int i = 0; i < chunk.bytes.length; i += DATA_BYTES) {
+				StringBuilder line = new StringBuilder("DATA ").append(sectionName(chunk.section)).append(' ').append(AssemblerPhase3.hexForm(chunk.address + i)).append(' ');
+				for(int b = i; b < Math.min(i + DATA_BYTES, chunk.bytes.length); b++) {
+					line.append(String.format("%02X", chunk.bytes[b] & 0xFF));
+				}
+				out.write(line.append('\n').toString());
+			}
+		}
+		for(Symbol symbol : symbols) {
+			out.write("SYMBOL " + symbol.name + " " + sectionName(symbol.section) + " " + AssemblerPhase3.hexForm(symbol.value) + (symbol.exported ? " PUBLIC" : "") + "\n");
+		}
+		for(String extern : externs) {
+			out.write("EXTERN " + extern + "\n");
+		}
+		for(Relocation r : relocations) {
+			out.write("RELOC " + sectionName(r.section) + " " + AssemblerPhase3.hexForm(r.address) + " " + r.kind + " " + AssemblerPhase3.hexForm(r.addend & 0xFFFF)
+					+ " " + r.expression + "\n");
+		}
+		out.write("END\n");
+	}
+
+	private String sectionName(int section) {
+		return section == ABS ? "ABS" : sections.get(section);
+	}
+
+	/**
+	 * @param file - A .rel file
+	 * @return The module in it, with DATA lines that follow on from each other as one chunk
+	 */
+	static ModuleObject read(File file) throws IOException {
+		ModuleObject module = new ModuleObject();
+		int lineNum = 0;
+		try {
+			for(String line : Files.readAllLines(file.toPath(), StandardCharsets.ISO_8859_1)) {
+				lineNum++;
+				String[] f = line.trim().split("\\s+");
+				switch(f[0]) {
+				case "MODULE":
+					module.name = f[1];
+					break;
+				case "SECTION":
+					module.sections.add(f[1]);
+					module.sizes.add(Integer.parseInt(f[2], 16));
+					break;
+				case "DATA": {
+					int section = module.sectionIndex(f[1]), address = Integer.parseInt(f[2], 16);
+					byte[] bytes = new byte[f[3].length() / 2];
+					for(int b = 0; b < bytes.length; b++) {
+						bytes[b] = (byte) Integer.parseInt(f[3].substring(b * 2, b * 2 + 2), 16);
+					}
+					Chunk last = module.chunks.isEmpty() ? null : module.chunks.get(module.chunks.size() - 1);
+					if(last != null && last.section == section && last.address + last.bytes.length == address) { // Same chunk, split over lines
+						byte[] joined = new byte[last.bytes.length + bytes.length];
+						System.arraycopy(last.bytes, 0, joined, 0, last.bytes.length);
+						System.arraycopy(bytes, 0, joined, last.bytes.length, bytes.length);
+						module.chunks.set(module.chunks.size() - 1, new Chunk(section, last.address, joined));
+					}
+					else module.chunks.add(new Chunk(section, address, bytes));
+					break;
+				}
+				case "SYMBOL":
+					module.symbols.add(new Symbol(f[1], module.sectionIndex(f[2]), Integer.parseInt(f[3], 16), f.length > 4 && f[4].equals("PUBLIC")));
+					break;
+				case "EXTERN":
+					module.externs.add(f[1]);
+					break;
+				case "RELOC":
+					module.relocations.add(new Relocation(module.sectionIndex(f[1]), Integer.parseInt(f[2], 16), Fixup.Kind.valueOf(f[3]), (short) Integer.parseInt(f[4], 16), f[5]));
+					break;
+				case "END":
+					return module;
+				default:
+					throw new IllegalArgumentException("unknown record '" + f[0] + "'");
+				}
+			}
+		} catch (RuntimeException e) { // Short lines, bad numbers, sections never declared
+			throw new IOException("ERROR - " + file.getPath() + " line " + lineNum + " is not a valid module record (" + e.getMessage() + ")");
+		}
+		throw new IOException("ERROR - " + file.getPath() + " is not a complete module");
+	}
+
+	private int sectionIndex(String name) {
+		if(name.equals("ABS")) return ABS;
+		int s = sections.indexOf(name);
+		if(s < 0) throw new IllegalArgumentException("section '" + name + "' not declared");
+		return s;
+	}
+
+	// END FILE FORMAT
+}
@@ -0,0 +1,216 @@
+package edu.ttu.drewmitchell;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes an ObjectImage out in some object file format. Segments arrive in source order and
+ * go straight to the stream, checksums are kept up as the bytes pass through. New formats
+ * only need to subclass this and be added to forName.
+ */
+public abstract class ObjectEmitter {
+	static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+	protected final OutputStream out;
+
+	protected ObjectEmitter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Writes whatever the file opens with, if anything.
+	 */
+	public void begin() throws IOException {
+	}
+
+	/**
+	 * @param address - Address of the segment's first byte
+	 * @param data - Holds the segment's bytes
+	 * @param offset - Where they start in data
+	 * @param length - How many there are, may be 0
+	 * @param org - Whether an ORG started the segment, rather than it being the default one
+	 */
+	public abstract void segment(int address, byte[] data, int offset, int length, boolean org) throws IOException;
+
+	/**
+	 * Writes whatever closes off the file. The stream is left open.
+	 */
+	public abstract void end() throws IOException;
+
+	/**
+	 * @param format - faux, titxt, ihex or raw
+	 * @param out - Where the object file goes
+	 */
+	public static ObjectEmitter forName(String format, OutputStream out) {
+		switch(format) {
+		case "faux": return new Faux(out);
+		case "titxt": return new TiTxt(out);
+		case "ihex": return new IntelHex(out);
+		case "raw": return new Raw(out);
+		default: throw new IllegalArgumentException("ERROR - unknown object format '" + format + "'");
+		}
+	}
+
+	/**
+	 * @param format - One of the names forName takes
+	 * @return What goes on the end of the object file's name
+	 */
+	public static String extension(String format) {
+		switch(format) {
+		case "titxt": return ".ti.txt";
+		case "ihex": return ".hex";
+		case "raw": return ".bin";
+		default: return ".txt";
+		}
+	}
+
+	protected void hex(int value, int digits) throws IOException {
+		for(int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+			out.write(HEX[(value >> shift) & 0xF]);
+		}
+	}
+
+	protected void ascii(String s) throws IOException {
+		out.write(s.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	// BEGIN FORMATS
+
+	/**
+	 * The course's own format: a header, FF00AA55 + address for each ORG, a decimal byte count
+	 * ahead of each segment's data, then FFAA5500 and a 16 bit sum of every data byte.
+	 */
+	public static class Faux extends ObjectEmitter {
+		static final String addrSeg = "FF00AA55";
+		static final int MAX_COUNT = 9999;
+		private int checkSum = 0;
+
+		public Faux(OutputStream out) {
+			super(out);
+		}
+
+		public void begin() throws IOException {
+			ascii("CaseyMitchell00");
+		}
+
+		public void segment(int address, byte[] data, int offset, int length, boolean org) throws IOException {
+			if(org) ascii(addrSeg + String.format("%04X", address));
+			for(int done = 0; done < length; ) {
+				int n = Math.min(length - done, MAX_COUNT); // A fifth digit would run into the data, so longer segments go in pieces
+				ascii(String.format("%04d", n)); // Must be bytes that are encoded as BCD for some reason
+				for(int i = offset + done; i < offset + done + n; i++) {
+					hex(data[i], 2);
+					checkSum += data[i] & 0xFF;
+				}
+				done += n;
+			}
+		}
+
+		public void end() throws IOException {
+			ascii("FFAA5500"); // Terminator Sequence, I'll be back.
+			hex(checkSum, 4);
+		}
+	}
+
+	/**
+	 * TI-TXT as the MSP430 flashing tools take it: @address, then rows of 16 spaced hex bytes, then q.
+	 */
+	public static class TiTxt extends ObjectEmitter {
+		public TiTxt(OutputStream out) {
+			super(out);
+		}
+
+		public void segment(int address, byte[] data, int offset, int length, boolean org) throws IOException {
+			if(length == 0) return;
+			out.write('@');
+			hex(address, 4);
+			out.write('\n');
+			for(int i = 0; i < length; i++) {
+				hex(data[offset + i], 2);
+				out.write(i % 16 == 15 || i == length - 1 ? '\n' : ' ');
+			}
+		}
+
+		public void end() throws IOException {
+			ascii("q\n");
+		}
+	}
+
+	/**
+	 * Intel HEX, 16 data bytes to a record, each record closed off with its two's complement checksum.
+	 */
+	public static class IntelHex extends ObjectEmitter {
+		private int upper = 0; // Upper 16 address bits last given in an extended linear address record
+		private int checkSum;
+
+		public IntelHex(OutputStream out) {
+			super(out);
+		}
+
+		public void segment(int address, byte[] data, int offset, int length, boolean org) throws IOException {
+			for(int i = 0; i < length; ) {
+				int at = address + i;
+				if(at >>> 16 != upper) {
+					upper = at >>> 16;
+					record(4, 0, new byte[] {(byte) (upper >> 8), (byte) upper}, 0, 2);
+				}
+				int count = Math.min(Math.min(16, length - i), 0x10000 - (at & 0xFFFF)); // Records can't wrap past 64K
+				record(0, at & 0xFFFF, data, offset + i, count);
+				i += count;
+			}
+		}
+
+		public void end() throws IOException {
+			record(1, 0, null, 0, 0);
+		}
+
+		private void record(int type, int address, byte[] data, int offset, int count) throws IOException {
+			checkSum = 0;
+			out.write(':');
+			recordByte(count);
+			recordByte(address >> 8);
+			recordByte(address);
+			recordByte(type);
+			for(int i = offset; i < offset + count; i++) {
+				recordByte(data[i]);
+			}
+			hex(-checkSum, 2);
+			out.write('\n');
+		}
+
+		private void recordByte(int b) throws IOException {
+			hex(b, 2);
+			checkSum += b & 0xFF;
+		}
+	}
+
+	/**
+	 * Flat memory image from the lowest address written to the highest, gaps filled with FF like erased flash.
+	 */
+	public static class Raw extends ObjectEmitter {
+		private final byte[] memory = new byte[0x10000];
+		private int low = memory.length, high = 0;
+
+		public Raw(OutputStream out) {
+			super(out);
+			Arrays.fill(memory, (byte) 0xFF);
+		}
+
+		public void segment(int address, byte[] data, int offset, int length, boolean org) throws IOException {
+			for(int i = 0; i < length; i++) {
+				int at = (address + i) & 0xFFFF; // 16 bit address space
+				memory[at] = data[offset + i];
+				low = Math.min(low, at);
+				high = Math.max(high, at + 1);
+			}
+		}
+
+		public void end() throws IOException {
+			if(low < high) out.write(memory, low, high - low);
+		}
+	}
+
+	// END FORMATS
+}
@@ -0,0 +1,185 @@
+package edu.ttu.drewmitchell;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The assembled program as bytes, split into the segments ORG started. Fixups patch words in
+ * place once the second pass knows their values, then any ObjectEmitter can write it out in
+ * one sweep.
+ */
+public class ObjectImage {
+	private byte[] bytes = new byte[256];
+	private int length = 0;
+
+	// Segment n starts at address segAddress[n] and covers bytes [segStart[n], segStart[n + 1])
+	private int[] segAddress = new int[8], segStart = new int[8];
+	private boolean[] segOrg = new boolean[8]; // false only for the default segment before any ORG
+	private int[] segSection = new int[8]; // Relocatable section the segment belongs to, ModuleObject.ABS if it's at a fixed address
+	private int segments = 0;
+
+	/**
+	 * @param address - Where the program starts if the source never says
+	 */
+	public ObjectImage(int address) {
+		startSegment(address, false, ModuleObject.ABS);
+	}
+
+	/**
+	 * Starts a new segment, as ORG does.
+	 * @param address - Address of the segment's first byte
+	 */
+	public void org(int address) {
+		org(address, ModuleObject.ABS);
+	}
+
+	/**
+	 * Starts a new segment in a relocatable section, as RSEG does.
+	 * @param address - Address of the segment's first byte, from the start of the section
+	 * @param section - Index of the section, or ModuleObject.ABS
+	 */
+	public void org(int address, int section) {
+		if(!segOrg[segments - 1] && segStart[segments - 1] == length) segments--; // Default segment never got used
+		startSegment(address, true, section);
+	}
+
+	private void startSegment(int address, boolean org, int section) {
+		if(segments == segAddress.length) {
+			segAddress = Arrays.copyOf(segAddress, segments * 2);
+			segStart = Arrays.copyOf(segStart, segments * 2);
+			segOrg = Arrays.copyOf(segOrg, segments * 2);
+			segSection = Arrays.copyOf(segSection, segments * 2);
+		}
+		segAddress[segments] = address;
+		segStart[segments] = length;
+		segOrg[segments] = org;
+		segSection[segments] = section;
+		segments++;
+	}
+
+	public void put(int b) {
+		if(length == bytes.length) bytes = Arrays.copyOf(bytes, length * 2);
+		bytes[length++] = (byte) b;
+	}
+
+	/**
+	 * @param word - 16 bit word, stored low byte first
+	 */
+	public void putWord(int word) {
+		put(word);
+		put(word >> 8);
+	}
+
+	public void put(byte[] data) {
+		for(byte b : data) {
+			put(b);
+		}
+	}
+
+	/**
+	 * Adds another image's segments on the end of this one, as if its source had followed on.
+	 * @param other - Image whose first segment was started by an ORG
+	 * @return Where the other image's bytes start in this one
+	 */
+	public int append(ObjectImage other) {
+		if(other.segOrg[0] && !segOrg[segments - 1] && segStart[segments - 1] == length) segments--; // Same as org does
+		int base = length;
+		for(int n = 0; n < other.segments; n++) {
+			startSegment(other.segAddress[n], other.segOrg[n], other.segSection[n]);
+			segStart[segments - 1] = base + other.segStart[n];
+		}
+		if(base + other.length > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, base + other.length));
+		System.arraycopy(other.bytes, 0, bytes, base, other.length);
+		length = base + other.length;
+		return base;
+	}
+
+	/**
+	 * @param offset - Byte offset of the word within the image
+	 * @param word - Its final value
+	 */
+	public void patchWord(int offset, int word) {
+		bytes[offset] = (byte) word;
+		bytes[offset + 1] = (byte) (word >> 8);
+	}
+
+	/**
+	 * @return Bytes in the image so far
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @return Address the first segment starts at
+	 */
+	public int startAddress() {
+		return segAddress[0];
+	}
+
+	/**
+	 * Copies every segment to its address in a 64K memory, later segments win where they overlap.
+	 */
+	public void load(byte[] memory) {
+		for(int n = 0; n < segments; n++) {
+			int end = n + 1 < segments ? segStart[n + 1] : length;
+			for(int i = segStart[n]; i < end; i++) {
+				memory[segAddress[n] + i - segStart[n] & 0xFFFF] = bytes[i];
+			}
+		}
+	}
+
+	public int segmentCount() {
+		return segments;
+	}
+
+	public int segmentAddress(int n) {
+		return segAddress[n];
+	}
+
+	public int segmentSection(int n) {
+		return segSection[n];
+	}
+
+	/**
+	 * @return A copy of segment n's bytes
+	 */
+	public byte[] segmentBytes(int n) {
+		return Arrays.copyOfRange(bytes, segStart[n], n + 1 < segments ? segStart[n + 1] : length);
+	}
+
+	/**
+	 * @param offset - Byte offset within the image
+	 * @return Index of the segment it falls in
+	 */
+	public int segmentAt(int offset) {
+		int n = segments - 1;
+		while(n > 0 && segStart[n] > offset) n--;
+		return n;
+	}
+
+	/**
+	 * @param address - A memory address
+	 * @return Offset in the image of the byte that ends up there once loaded, or -1 if no segment covers it
+	 */
+	public int offsetAt(int address) {
+		for(int n = segments - 1; n >= 0; n--) { // Later segments win, same as load
+			int end = n + 1 < segments ? segStart[n + 1] : length;
+			int offset = segStart[n] + (address - segAddress[n] & 0xFFFF);
+			if(offset < end) return offset;
+		}
+		return -1;
+	}
+
+	/**
+	 * Hands every segment to the emitter in source order, with the file's opening and closing around them.
+	 */
+	public void emit(ObjectEmitter emitter) throws IOException {
+		emitter.begin();
+		for(int n = 0; n < segments; n++) {
+			int end = n + 1 < segments ? segStart[n + 1] : length;
+			emitter.segment(segAddress[n], bytes, segStart[n], end - segStart[n], segOrg[n]);
+		}
+		emitter.end();
+	}
+}
@@ -0,0 +1,69 @@
+package edu.ttu.drewmitchell;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers how operands decoded, so the same text (R15, &P1OUT, #WDTPW+WDTHOLD, 0(R4)) only
+ * goes through the addressing mode patterns once. Only the parts that don't depend on where the
+ * line is are kept: register and mode bits, a fixed extension word, or the terms of a symbol
+ * expression, which still get looked up every time. Least recently used entries are dropped once
+ * it's full. Hits and misses are counted in the file's AssemblerStats.
+ */
+public class OperandCache {
+	static final int CAPACITY = 512;
+	static final int NO_WORD = Integer.MIN_VALUE;
+
+	/**
+	 * What one operand decoded to.
+	 */
+	static class Operand {
+		final int bits; // register | mode << 4, or -1 if the operand doesn't fit an addressing mode
+		final int word; // Fixed extension word, or NO_WORD
+		final String[] terms; // Symbol expression the extension word comes from, split at +, or null
+		final Fixup.Kind kind; // How the expression lands in the extension word
+
+		Operand(int bits, int word, String[] terms, Fixup.Kind kind) {
+			this.bits = bits;
+			this.word = word;
+			this.terms = terms;
+			this.kind = kind;
+		}
+	}
+
+	private final Map<String, Operand> sources = lru(CAPACITY), destinations = lru(CAPACITY);
+	private final AssemblerStats stats;
+
+	/**
+	 * @param stats - Where hits and misses are counted
+	 */
+	public OperandCache(AssemblerStats stats) {
+		this.stats = stats;
+	}
+
+	/**
+	 * @param param - The operand as written
+	 * @param dest - Whether it's a destination, they're decoded under different rules
+	 * @return How it decoded last time, or null if it's not cached
+	 */
+	Operand get(String param, boolean dest) {
+		Operand operand = (dest ? destinations : sources).get(param);
+		if(operand == null) stats.operandMisses++;
+		else stats.operandHits++;
+		return operand;
+	}
+
+	void put(String param, boolean dest, Operand operand) {
+		(dest ? destinations : sources).put(param, operand);
+	}
+
+	private static Map<String, Operand> lru(int capacity) {
+		return new LinkedHashMap<String, Operand>(capacity * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Operand> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+}
@@ -0,0 +1,166 @@
+package edu.ttu.drewmitchell;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Throws adversarial lines at everything that parses one line at a time - parseLine with a macro
+ * defined, so the preprocessor gets its turn, and the device header patterns - and checks that
+ * none of them takes time out of proportion to the line. Each line is a repeated fragment (long
+ * runs of blanks, commas, digits, operators, half-finished operands, huge comments and the
+ * like) dropped into an otherwise sensible line, timed at a short and a long length. A parse
+ * that goes superlinear shows up as the long line costing far more than its share, one that
+ * hangs as the long line going over the bound outright. Short numbers that are nearly right
+ * (#1A, 0xG, 0x12345) go into every shape once as they are, padding never makes them.
+ *
+ * ParseFuzzer [-seed N] [-lines N] [-length N] [-bound ms]
+ */
+public class ParseFuzzer {
+	static int lines = 1000, length = 1 << 16; // Long line length, the short one is an eighth of it
+	static long boundNanos = 250_000_000L;    // Worst any one long line may take
+	static final double MAX_GROWTH = 32;      // 8 times the line may cost this many times the time, linear is 8
+	static final long NOISE_NANOS = 2_000_000L; // Below this the short line's time is too small to compare against
+	static volatile Object sink; // Keeps the JIT from throwing results away
+
+	// What goes around the padding, each %s is where it's repeated
+	static final String[] SHAPES = {
+		"%s", "\t%s", "L%s", "LABEL%s", "LABEL %s", "\tmov %s", "\tmov %s, R5", "\tmov R5, %s", "\tmov #%s, R5", "\tmov %s, %s",
+		"\tmov.b %s", "\tmov.%s", "\tjmp %s", "\tjmp L1%s", "\tpush %s", "\tcall #%s", "\tmov @R5%s, R6", "\tmov 2(R%s), R6",
+		"\tmov 2%s(R5), R6", "\tmov &%s, R5", "\tmov #A%s, R5", "LABEL EQU %s", "LABEL EQU 0x%s", "LABEL EQU %%%s", "LABEL EQU $ - %s",
+		"LABEL%sEQU 5", "LABEL EQU%s", "\tORG %s", "\tORG 0x%s", "LABEL DB \"%s\"", "LABEL DB %s", "LABEL DW %s", "LABEL DW -%s",
+		"LABEL DS %s", "\tMAC %s", "LABEL MAC %s, %s", "NEW MACRO %s", "\tIFDEF %s", "\tIF %s", "\tINCLUDE %s", "\tmov R5, R6 ;%s", ";%s", "end%s",
+		"#define NAME %s", "#define NAME (%s)", "#define NAME 0x1%s", "NAME = %s;", "NAME = 1%s", "NAME EQU 1%s", "NAME:%s.equ 1"
+	};
+	static final String[] FRAGMENTS = {
+		" ", "\t", " \t", ",", ", ", " ,", "+", "A+", "#", "@", "&", "(", ")", "(R", "R1", "R1+", "@R1+", "1", "0x", "F", "$", "$ -",
+		"-", ";", "\"", "'", ":", ".", ".b", "EQU ", " EQU", "A", "A1_", "MAC ", "mov ", "jmp ", "  ;", "/*", "//", "\u00E9", "%1"
+	};
+	// Malformed or out of range numbers, each goes in once
+	static final String[] NUMBERS = {
+		"1A", "9F", "0A", "08", "0xG", "0X1g", "0x", "0x12345", "99999", "65536", "-1A", "-0x8001", "1A+A", "A+1A", "1e3", "0b1", "%2", "%",
+		"$1A", "1_0", "300", "-129", "0x-1", "--1"
+	};
+
+	public static void main(String[] args) {
+		long seed = 430;
+		for(int a = 0; a < args.length; a++) {
+			if(args[a].equals("-seed") && a + 1 < args.length) seed = Long.parseLong(args[++a]);
+			else if(args[a].equals("-lines") && a + 1 < args.length) lines = Integer.parseInt(args[++a]);
+			else if(args[a].equals("-length") && a + 1 < args.length) length = Integer.parseInt(args[++a]);
+			else if(args[a].equals("-bound") && a + 1 < args.length) boundNanos = Long.parseLong(args[++a]) * 1_000_000L;
+		}
+		Log.configure("off");
+		Random random = new Random(seed);
+		int failed = 0;
+		for(int warm = 0; warm < 3; warm++) { // Every pairing once at a modest length, which also lets the JIT settle
+			for(String shape : SHAPES) {
+				for(String fragment : FRAGMENTS) {
+					try {
+						time(line(shape, fragment, 256));
+					} catch (RuntimeException e) { // Not a hang, but it would still stop the build
+						if(warm > 0) continue;
+						failed++;
+						System.out.println("ERROR - " + describe(shape, fragment) + " threw " + e);
+					}
+				}
+			}
+		}
+
+		for(String shape : SHAPES) {
+			for(String number : NUMBERS) {
+				try {
+					time(line(shape, number, 0));
+				} catch (RuntimeException e) {
+					failed++;
+					System.out.println("ERROR - " + describe(shape, number) + " threw " + e);
+				}
+			}
+		}
+
+		long worst = 0;
+		String worstLine = null;
+		for(int n = 0; n < lines; n++) {
+			String shape = SHAPES[random.nextInt(SHAPES.length)];
+			String fragment = FRAGMENTS[random.nextInt(FRAGMENTS.length)];
+			if(random.nextInt(4) == 0) fragment += FRAGMENTS[random.nextInt(FRAGMENTS.length)];
+			long small, large;
+			try {
+				small = time(line(shape, fragment, length / 8));
+				large = time(line(shape, fragment, length));
+			} catch (RuntimeException e) {
+				failed++;
+				System.out.println("ERROR - " + describe(shape, fragment) + " threw " + e);
+				continue;
+			}
+			if(large > worst) {
+				worst = large;
+				worstLine = describe(shape, fragment);
+			}
+			boolean slow = large > boundNanos, growing = small > NOISE_NANOS && large > small * MAX_GROWTH;
+			if(slow || growing) {
+				failed++;
+				System.out.println(String.format("ERROR - %s: %.1f ms at %d chars, %.1f ms at %d", describe(shape, fragment), large / 1e6, length,
+						small / 1e6, length / 8));
+			}
+		}
+		System.out.println(String.format("%d lines of up to %d chars, worst %.1f ms (%s), %d over the bound", lines, length, worst / 1e6, worstLine, failed));
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * @param shape - Line with %s where the padding goes
+	 * @param fragment - What the padding's made of
+	 * @param chars - Roughly how long the padding is, each %s gets an equal share of at least one fragment
+	 */
+	static String line(String shape, String fragment, int chars) {
+		int holes = shape.split("%s", -1).length - 1;
+		StringBuilder padding = new StringBuilder(chars + fragment.length());
+		while(padding.length() < Math.max(chars / Math.max(holes, 1), 1)) padding.append(fragment);
+		Object[] fill = new Object[holes];
+		for(int n = 0; n < holes; n++) {
+			fill[n] = padding;
+		}
+		return String.format(shape, fill);
+	}
+
+	private static String describe(String shape, String fragment) {
+		return "'" + shape.replace("\t", "\\t") + "' with '" + fragment.replace("\t", "\\t") + "'";
+	}
+
+	/**
+	 * @return Nanoseconds to run the line through everything that parses lines, the best of a few goes
+	 */
+	static long time(String line) {
+		long best = Long.MAX_VALUE;
+		for(int r = 0; r < 3; r++) {
+			AssemblerContext ctx = context();
+			long start = System.nanoTime();
+			sink = AssemblerPhase3.parseLine(ctx, line);
+			while(ctx.preprocessor.hasPending()) { // A macro call's expansion is part of its line
+				sink = AssemblerPhase3.parseLine(ctx, ctx.preprocessor.nextLine());
+			}
+			sink = DeviceRegisters.parseLine(line, new HashMap<String, Integer>());
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	/**
+	 * @return A context with a label, a constant and a two parameter macro already defined, so lines that use them get past the lookups
+	 */
+	static AssemblerContext context() {
+		AssemblerContext ctx = new AssemblerContext();
+		List<String> setup = new ArrayList<String>();
+		setup.add("L1\tnop");
+		setup.add("A EQU 5");
+		setup.add("MAC MACRO X, Y");
+		setup.add("\tmov X, Y");
+		setup.add("\tENDM");
+		for(String line : setup) {
+			AssemblerPhase3.parseLine(ctx, line);
+		}
+		return ctx;
+	}
+}
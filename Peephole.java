@@ -0,0 +1,150 @@
+package edu.ttu.drewmitchell;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional (--optimize) rewrites of instructions into cheaper ones that do the same thing. Each
+ * rule matches on the opcode word the encoder made and works on the Encoding in place, before the
+ * line's size is added to the address counter, so every label after it lands where the rewritten
+ * code puts it. The listing line shows what was actually emitted, with the rewrite noted on the end.
+ * Jumps to a jmp are threaded in the second pass instead, once every label is known, and noted
+ * after the listing.
+ *
+ * mov #0 and cmp #0 need no rule, the constant generator already makes them the same words clr
+ * and tst would.
+ */
+public class Peephole {
+	static final int JMP = 0x3C00;
+	static final int MAX_HOPS = 8; // Jumps followed from one jump, a loop of jmps never gets that far
+
+	/**
+	 * Rewrites an instruction whose opcode word matches, if it still applies once the rest is looked at.
+	 */
+	interface Rewrite {
+		/**
+		 * @param address - Where the instruction goes
+		 * @param assembled - The instruction, changed in place
+		 * @return false if it didn't apply after all, nothing was changed
+		 */
+		boolean apply(int address, Encoding assembled);
+	}
+
+	/**
+	 * One pattern: opcode words with (word & mask) == bits, and what's done to them.
+	 */
+	static class Rule {
+		final String note; // Listing note
+		final int mask, bits;
+		final Rewrite rewrite;
+
+		Rule(String note, int mask, int bits, Rewrite rewrite) {
+			this.note = note;
+			this.mask = mask;
+			this.bits = bits;
+			this.rewrite = rewrite;
+		}
+	}
+
+	static final Rule[] RULES = {
+		// mov Rn, Rn - word only, mov.b clears the high byte. Not PC or SR, and mov #0, R3 is nop
+		new Rule("register moved to itself, removed", 0xF0F0, 0x4000, (address, assembled) -> {
+			int word = assembled.word(0);
+			int reg = word & 0xF;
+			if((word >> 8 & 0xF) != reg || reg == 0 || reg == 2 || reg == 3) return false;
+			assembled.remove(0);
+			return true;
+		}),
+		// bis #0, Rn and bic #0, Rn - word only, the .b forms clear the high byte. Neither touches the flags
+		new Rule("no bits set, removed", 0xFFF0, 0xD300, Peephole::noBits),
+		new Rule("no bits cleared, removed", 0xFFF0, 0xC300, Peephole::noBits),
+		// br #label / mov #label, PC - the target's known and close enough for jmp, a word and a cycle less
+		new Rule("branch in reach, now jmp", 0xFFFF, 0x4030, (address, assembled) -> {
+			if(assembled.length() != 2 || assembled.fixupCount() != 0 || (assembled.word(1) & 1) != 0) return false;
+			int jump = Fixup.encodeJump(JMP, address, assembled.word(1));
+			if(jump < 0) return false;
+			assembled.set(0, jump);
+			assembled.remove(1);
+			return true;
+		}),
+		// op.b #n, dst - only the low byte of the immediate counts, so 0xFF (and 0x100 and up) may be one the constant
+		// generator makes after all
+		new Rule("byte immediate from the constant generator", 0x0F70, 0x0070, (address, assembled) -> {
+			int word = assembled.word(0);
+			if(word >> 12 < 4 || (assembled.fixupCount() > 0 && assembled.fixup(0).slot == 1)) return false;
+			int value = assembled.word(1) & 0xFF;
+			int generated = InstructionFactory.constantGenerator(value == 0xFF ? 0xFFFF : value);
+			if(generated < 0) return false;
+			assembled.set(0, word & ~0x0F30 | (generated & 0xF) << 8 | (generated >> 4 & 3) << 4);
+			assembled.remove(1);
+			boolean symbolic = (word & 0x80) != 0 && (word & 0xF) == 0;
+			if(symbolic && assembled.length() == 2 && assembled.fixupCount() == 0) { // PC relative, and the word's 2 closer to its target now
+				assembled.set(1, assembled.word(1) + 2);
+			}
+			return true;
+		}),
+	};
+
+	private static boolean noBits(int address, Encoding assembled) {
+		int reg = assembled.word(0) & 0xF;
+		if(reg == 0 || reg == 2 || reg == 3) return false;
+		assembled.remove(0);
+		return true;
+	}
+
+	/**
+	 * Runs the rules over one instruction, each one that matches gets its turn.
+	 * @param address - Where the instruction goes
+	 * @param assembled - The encoder's output, changed in place
+	 * @return What was done for the listing, or null if nothing was
+	 */
+	static String optimize(int address, Encoding assembled) {
+		String notes = null;
+		for(Rule rule : RULES) {
+			if(assembled.length() == 0) break;
+			if((assembled.word(0) & rule.mask) != rule.bits || !rule.rewrite.apply(address, assembled)) continue;
+			notes = notes == null ? rule.note : notes + ", " + rule.note;
+		}
+		return notes;
+	}
+
+	/**
+	 * Points every jump whose target is a jmp at where that jmp goes, as long as it's still in reach. Only jmps
+	 * that are still in memory once later ORGs have laid over them count.
+	 * @param fixups - The whole file's fixups, jumps among them
+	 * @param symbols - The whole file's symbols
+	 * @param image - What the file assembled to
+	 */
+	static void threadJumps(List<Fixup> fixups, SymbolTable symbols, ObjectImage image) {
+		Map<Integer, Fixup> jumps = new HashMap<Integer, Fixup>(); // jmps by address
+		for(Fixup fixup : fixups) {
+			fixup.threaded = null; // Incremental runs replay the same fixups
+			if(fixup.getKind() != Fixup.Kind.JUMP || (fixup.getAddend() & 0xFC00) != JMP) continue;
+			if(image.offsetAt(fixup.address) == fixup.objOffset && image.offsetAt(fixup.address + 1) == fixup.objOffset + 1) jumps.put(fixup.address, fixup);
+		}
+		for(Fixup fixup : fixups) {
+			if(fixup.getKind() != Fixup.Kind.JUMP) continue;
+			String label = fixup.getSymbol();
+			int id = symbols.lookup(label);
+			Fixup next = id < 0 ? null : jumps.get(symbols.value(id));
+			for(int hops = 0; next != null && next != fixup && hops < MAX_HOPS; hops++) {
+				id = symbols.lookup(next.getSymbol());
+				if(id < 0 || Fixup.encodeJump(fixup.getAddend(), fixup.address, symbols.value(id)) < 0) break;
+				label = next.getSymbol();
+				next = jumps.get(symbols.value(id));
+			}
+			if(!label.equals(fixup.getSymbol())) fixup.threaded = label;
+		}
+	}
+
+	/**
+	 * @param fixup - A resolved fixup
+	 * @return Its line for the end of the listing if threadJumps retargeted it, otherwise null
+	 */
+	static String report(Fixup fixup) {
+		if(fixup.threaded == null) return null;
+		return String.format("%4d", fixup.line) + "  PEEPHOLE - jump to '" + fixup.getSymbol() + "' goes straight to '" + fixup.threaded + "', "
+				+ Encoding.hexWord(fixup.getValue()) + "\n";
+	}
+}
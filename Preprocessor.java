@@ -0,0 +1,301 @@
+package edu.ttu.drewmitchell;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * INCLUDE, MACRO/ENDM and conditional assembly (IF, IFDEF, IFNDEF, ELSE, ENDIF). parseLine hands
+ * over directive lines, and every line while a macro is being defined or a condition is false.
+ * Lines these produce, an included file or a macro's expansion, wait here and the first pass
+ * takes them before reading on in the source. Macros keep their body as written, it's only
+ * substituted a line at a time as an expansion is assembled. A module's RSEG, PUBLIC and EXTERN
+ * come through here too, and go on to ModuleObject.
+ */
+public class Preprocessor {
+	static final int MAX_DEPTH = 16; // Includes and expansions inside each other, stops a file including itself forever
+
+	/**
+	 * A macro as defined.
+	 */
+	static class Macro {
+		final String name;
+		final String[] params;
+		final String[] body;
+
+		Macro(String name, String[] params, String[] body) {
+			this.name = name;
+			this.params = params;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * Lines waiting to be assembled: an include's tokens, or a macro body with the arguments it was given.
+	 */
+	private static class Frame {
+		final Lexer.Token[] tokens;
+		final Macro macro;
+		final String[] args;
+		int next = 0;
+
+		Frame(Lexer.Token[] tokens, Macro macro, String[] args) {
+			this.tokens = tokens;
+			this.macro = macro;
+			this.args = args;
+		}
+
+		int length() {
+			return tokens != null ? tokens.length : macro.body.length;
+		}
+	}
+
+	File dir = new File("."); // Where INCLUDE looks
+	private Map<String, Macro> macros; // By upper case name, null until the first one is defined
+	private final ArrayDeque<Frame> frames = new ArrayDeque<Frame>();
+	private Lexer.Token token; // Already lexed form of the line nextLine last gave out
+
+	// Macro being defined
+	private String defining;
+	private String[] definingParams;
+	private List<String> body;
+	private int nested; // MACROs inside the one being defined
+
+	// Conditionals, one level per open IF
+	private boolean[] active = new boolean[8]; // Whether lines at this level get assembled
+	private boolean[] met = new boolean[8];    // Whether this level's condition was true
+	private int depth = 0;
+
+	/**
+	 * @return Whether there are included or expanded lines still to go
+	 */
+	public boolean hasPending() {
+		while(!frames.isEmpty() && frames.peek().next == frames.peek().length()) frames.pop();
+		return !frames.isEmpty();
+	}
+
+	/**
+	 * @return The next included or expanded line, call hasPending first
+	 */
+	public CharSequence nextLine() {
+		Frame frame = frames.peek();
+		int n = frame.next++;
+		if(frame.tokens != null) {
+			token = frame.tokens[n];
+			return token.line;
+		}
+		token = null;
+		return substitute(frame.macro.body[n], frame.macro.params, frame.args);
+	}
+
+	/**
+	 * @return The lexed form of the line just handed out, if it came from an include, otherwise null. Only given once.
+	 */
+	Lexer.Token takeToken() {
+		Lexer.Token t = token;
+		token = null;
+		return t;
+	}
+
+	/**
+	 * @return Whether parseLine has to hand every line over, not just directives
+	 */
+	public boolean isHolding() {
+		return defining != null || (depth > 0 && !active[depth - 1]);
+	}
+
+	public boolean hasMacros() {
+		return macros != null;
+	}
+
+	/**
+	 * Deals with a directive, or a line inside a macro definition or a false condition.
+	 * @param ctx - Context of the file being assembled, its lexer holds the line
+	 * @return null if the line is for parseLine to assemble, "" if it's been dealt with, or an ERROR message
+	 */
+	String process(AssemblerContext ctx, CharSequence line) {
+		Lexer lexer = ctx.lexer;
+		String directive = lexer.getKind() == Lexer.Kind.DIRECTIVE ? lexer.mnemonic() : null;
+		if(defining != null) { // Everything up to the matching ENDM is the body
+			if("MACRO".equals(directive)) nested++;
+			if("ENDM".equals(directive) && nested-- == 0) {
+				if(macros == null) macros = new HashMap<String, Macro>();
+				macros.put(defining.toUpperCase(), new Macro(defining, definingParams, body.toArray(new String[0])));
+				defining = null;
+				return "";
+			}
+			body.add(line.toString());
+			return "";
+		}
+		if(directive == null) return ""; // Inside a false condition
+		if(isHolding() && !directive.startsWith("IF") && !directive.equals("ELSE") && !directive.equals("ENDIF")) return "";
+
+		String operand = lexer.value();
+		switch(directive) {
+		case "INCLUDE": {
+			if(operand.isEmpty()) return ctx.error("ERROR - INCLUDE needs a file name");
+			if(frames.size() >= MAX_DEPTH) return ctx.error("ERROR - INCLUDEs and macros nested too deeply");
+			String name = operand.startsWith("\"") && operand.endsWith("\"") && operand.length() > 1 ? operand.substring(1, operand.length() - 1) : operand;
+			File file = new File(name);
+			if(!file.isAbsolute()) file = new File(dir, name);
+			try {
+				frames.push(new Frame(IncludeCache.get(file).tokens, null, null));
+			} catch (IOException | InvalidPathException e) {
+				return ctx.error("ERROR - couldn't read include '" + name + "'");
+			}
+			return "";
+		}
+		case "MACRO": {
+			String name = lexer.label() == null ? "" : lexer.label().trim();
+			if(name.isEmpty()) return ctx.error("ERROR - MACRO needs a name in front of it");
+			if(InstructionFactory.getInstruction(name) != null) return ctx.error("ERROR - '" + name + "' is already an instruction");
+			defining = name;
+			definingParams = operand.isEmpty() ? new String[0] : operand.split("\\s*,\\s*");
+			body = new ArrayList<String>();
+			nested = 0;
+			return "";
+		}
+		case "ENDM":
+			return ctx.error("ERROR - ENDM without a MACRO");
+		case "IF":
+		case "IFDEF":
+		case "IFNDEF": {
+			boolean outer = depth == 0 || active[depth - 1];
+			boolean condition = false;
+			if(outer) { // Conditions inside a false one aren't evaluated
+				if(operand.isEmpty()) return ctx.error("ERROR - " + directive + " needs a condition");
+				if(directive.equals("IF")) {
+					int value;
+					int id = ctx.lookup(operand);
+					if(id >= 0) value = ctx.symbolTable.value(id);
+					else {
+						try {
+							value = Integer.decode(operand);
+						} catch (NumberFormatException e) {
+							return ctx.error("ERROR - '" + operand + "' must be a number or be defined before the IF");
+						}
+					}
+					condition = value != 0;
+				}
+				else condition = (ctx.lookup(operand) >= 0) == directive.equals("IFDEF");
+			}
+			if(depth == active.length) {
+				active = Arrays.copyOf(active, depth * 2);
+				met = Arrays.copyOf(met, depth * 2);
+			}
+			active[depth] = outer && condition;
+			met[depth] = condition;
+			depth++;
+			return "";
+		}
+		case "ELSE":
+			if(depth == 0) return ctx.error("ERROR - ELSE without an IF");
+			active[depth - 1] = (depth == 1 || active[depth - 2]) && !met[depth - 1];
+			return "";
+		case "ENDIF":
+			if(depth == 0) return ctx.error("ERROR - ENDIF without an IF");
+			depth--;
+			return "";
+		case "RSEG":
+		case "PUBLIC":
+		case "EXTERN":
+			if(ctx.module == null) return ctx.error("ERROR - " + directive + " only means something in a module, see --relocatable");
+			return ctx.module.directive(ctx, directive, operand);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Starts expanding a macro, if the line uses one.
+	 * @param ctx - Context of the file being assembled
+	 * @param line - The line, which the lexer didn't make an instruction of
+	 * @return null if the line doesn't use a macro, "" once the expansion is queued, or an ERROR message
+	 */
+	String expand(AssemblerContext ctx, CharSequence line) {
+		int end = line.length();
+		for(int i = 0; i < end; i++) {
+			if(line.charAt(i) == ';') end = i;
+		}
+		int p = 0;
+		while(p < end && Lexer.isSpace(line.charAt(p))) p++;
+		int tokenEnd = p;
+		while(tokenEnd < end && !Lexer.isSpace(line.charAt(tokenEnd))) tokenEnd++;
+		String label = null, name = line.subSequence(p, tokenEnd).toString();
+		Macro macro = macros.get(name.toUpperCase());
+		if(macro == null && p == 0) { // Label in column 1, the macro comes after it
+			label = name.endsWith(":") ? name.substring(0, name.length() - 1) : name;
+			p = tokenEnd;
+			while(p < end && Lexer.isSpace(line.charAt(p))) p++;
+			tokenEnd = p;
+			while(tokenEnd < end && !Lexer.isSpace(line.charAt(tokenEnd))) tokenEnd++;
+			name = line.subSequence(p, tokenEnd).toString();
+			macro = macros.get(name.toUpperCase());
+		}
+		if(macro == null) return null;
+
+		String rest = line.subSequence(tokenEnd, end).toString().trim();
+		String[] args = rest.isEmpty() ? new String[0] : rest.split("\\s*,\\s*");
+		if(args.length > macro.params.length) return ctx.error("ERROR - too many arguments for macro '" + macro.name + "'");
+		if(frames.size() >= MAX_DEPTH) return ctx.error("ERROR - INCLUDEs and macros nested too deeply");
+		if(label != null) {
+			String invalid = AssemblerPhase3.checkValidLabelCase(ctx, label, ctx.addressCounter);
+			if(invalid != null) return invalid;
+		}
+		frames.push(new Frame(null, macro, args));
+		return "";
+	}
+
+	/**
+	 * @return An ERROR message if the source ended inside a macro definition or a condition, otherwise null
+	 */
+	String finish(AssemblerContext ctx) {
+		if(defining != null) return ctx.error("ERROR - MACRO '" + defining + "' has no ENDM");
+		if(depth > 0) return ctx.error("ERROR - IF without an ENDIF");
+		return null;
+	}
+
+	/**
+	 * @return The body line with every whole-word use of a parameter replaced by its argument, missing arguments are empty
+	 */
+	static String substitute(String text, String[] params, String[] args) {
+		if(params.length == 0) return text;
+		StringBuilder out = new StringBuilder(text.length() + 16);
+		int i = 0;
+		while(i < text.length()) {
+			char c = text.charAt(i);
+			if(!Lexer.isWordChar(c)) {
+				out.append(c);
+				i++;
+				continue;
+			}
+			int start = i;
+			while(i < text.length() && Lexer.isWordChar(text.charAt(i))) i++;
+			String word = text.substring(start, i);
+			int param = -1;
+			for(int n = 0; n < params.length && param < 0; n++) {
+				if(params[n].equals(word)) param = n;
+			}
+			out.append(param < 0 ? word : param < args.length ? args[param] : "");
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Cheap check for whether a line could be a directive, so sources that don't use any aren't lexed for them.
+	 */
+	static boolean mayBeDirective(CharSequence line) {
+		for(int i = 0; i + 1 < line.length(); i++) {
+			char c = line.charAt(i);
+			if(c == 'I' && (line.charAt(i + 1) == 'F' || line.charAt(i + 1) == 'N')) return true;
+			if(c == 'M' && line.charAt(i + 1) == 'A') return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,38 @@
+package edu.ttu.drewmitchell;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks that --parallel-org only sends back the segments it has to. Constants EQU'd before the
+ * first ORG, as generated corpora have them, mustn't send the segments that use them back to be
+ * assembled in order, or --parallel-org does none of its work in parallel. Only a constant the
+ * constant generator makes changes an instruction's size, so only that segment should go back.
+ *
+ * SegmentCheck
+ */
+public class SegmentCheck {
+	public static void main(String[] args) throws IOException {
+		Log.configure("off");
+		File dir = Files.createTempDirectory("s43seg").toFile();
+		File source = new File(dir, "constants.s43");
+		Files.write(source.toPath(), Arrays.asList("K0 EQU 0x1234", "K1 EQU 0x0004", "      ORG 0xC000", "A0        mov #K0, R5",
+				"      ORG 0xC100", "A1        add #K0+K0, R6", "      ORG 0xC200", "A2        mov #K1, R7", "      end"));
+		ExecutorService pool = Executors.newWorkStealingPool();
+		AssemblerStats stats = SegmentedAssembler.outputList(source, pool).stats;
+		pool.shutdown();
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+
+		boolean passed = stats.segments == 4 && stats.reassembled == 1;
+		if(!passed) System.out.println("ERROR - " + stats.reassembled + " of " + stats.segments + " segments assembled again, only the one using #K1 should have been");
+		System.out.println(String.format("%d segments, %d assembled again, %s", stats.segments, stats.reassembled, passed ? "passed" : "failed"));
+		System.exit(passed ? 0 : 1);
+	}
+}
@@ -0,0 +1,259 @@
+package edu.ttu.drewmitchell;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Assembles one source a segment at a time in parallel, splitting it at every ORG. ORG gives an
+ * absolute address, so each segment can be sized, encoded and have its labels valued on its own,
+ * with its own symbols. The segments are then checked in order against everything defined before
+ * them. An operand naming an earlier label just became a fixup, which resolves the same, but a
+ * segment that redefined an earlier name, used one in $ -, jumped out of range to one or used one
+ * the constant generator makes as an immediate would have come out differently in one sequential
+ * run, so it's assembled again against the real table. Fixups are resolved per segment in parallel,
+ * and it's all stitched into one listing and object image that match what AssemblerPhase3.outputList
+ * writes.
+ */
+public class SegmentedAssembler {
+	/**
+	 * One ORG's worth of source, and what assembling it gave.
+	 */
+	static class Segment {
+		final int start, end; // Byte range in the source
+		final int firstLine;
+		AssemblerContext ctx;
+		byte[] listing;
+		StringBuilder trailer = new StringBuilder(); // Its unresolved fixups
+
+		Segment(int start, int end, int firstLine) {
+			this.start = start;
+			this.end = end;
+			this.firstLine = firstLine;
+		}
+	}
+
+	/**
+	 * @param source - .s43 file to assemble
+	 * @param pool - Where the segments are assembled, may be the pool the file itself is running in
+	 * @return The context for the whole file
+	 */
+	public static AssemblerContext outputList(File source, ExecutorService pool) throws IOException {
+		try (SourceReader input = SourceReader.open(source)) {
+			return outputList(input, source.getAbsoluteFile().getParentFile(), source.getName().substring(0, source.getName().lastIndexOf(".")), pool);
+		}
+	}
+
+	/**
+	 * @param input - Source to assemble, read to its end
+	 * @param dir - Where the listing and object file go
+	 * @param name - What they're called, less the extension
+	 * @param pool - Where the segments are assembled
+	 * @return The context for the whole file
+	 */
+	public static AssemblerContext outputList(SourceReader input, File dir, String name, ExecutorService pool) throws IOException {
+		if(AssemblerPhase3.optimize || AssemblerPhase3.relocatable) return AssemblerPhase3.outputList(input, dir, name); // Threading jumps needs every jmp in one place, a module's sections span ORGs
+		AssemblerContext file = new AssemblerContext();
+		file.stats.file = name;
+
+		// BEGIN FIRST PASS
+		AssemblerStats.PhaseEvent phase = file.stats.beginPhase();
+		List<Segment> segments = split(input);
+		file.stats.segments += segments.size();
+		run(pool, segments, segment -> {
+			segment.ctx = new AssemblerContext();
+			segment.ctx.preprocessor.dir = dir;
+			segment.ctx.misses = new HashSet<String>();
+			segment.ctx.immediates = new HashSet<String>();
+			assemble(input, segment);
+			return null;
+		});
+
+		SymbolTable symbols = file.symbolTable; // Everything defined so far, in source order
+		for(int k = 0; k < segments.size(); k++) {
+			Segment segment = segments.get(k);
+			if(dependsOn(segment.ctx, symbols)) {
+				Log.debug(Log.Category.SYMBOLS, () -> name + ": line " + segment.firstLine + " segment uses earlier symbols, assembling it again");
+				file.stats.reassembled++;
+				segment.ctx = new AssemblerContext();
+				segment.ctx.preprocessor.dir = dir;
+				segment.ctx.symbolTable = symbols; // Exactly what a sequential run would have at this point
+				assemble(input, segment);
+			}
+			else symbols.defineAll(segment.ctx.symbolTable);
+			if(k > 0) fixOrgLine(segment, segments.get(k - 1).ctx.addressCounter);
+		}
+		List<Fixup> fixups = new ArrayList<Fixup>();
+		Set<String> literals = new HashSet<String>();
+		for(Segment segment : segments) {
+			fixups.addAll(segment.ctx.fixups);
+			literals.addAll(segment.ctx.literals);
+		}
+		if(AssemblerPhase3.constantsAhead(fixups, symbols, literals) != null) { // Shorter immediates move every address after them, segments and all
+			Log.debug(Log.Category.SYMBOLS, () -> name + ": constants used before they were defined fit the constant generator, assembling it in one piece");
+			return AssemblerPhase3.outputList(input.slice(0, input.position()), dir, name);
+		}
+		file.stats.endPhase(phase, AssemblerStats.PASS1);
+		// END FIRST PASS
+
+		// BEGIN SECOND PASS
+		phase = file.stats.beginPhase();
+		run(pool, segments, segment -> {
+			for(Fixup fixup : segment.ctx.fixups) {
+				byte[] resolved = AssemblerPhase3.secondPass(segment.ctx, symbols, fixup, segment.trailer).getBytes(StandardCharsets.ISO_8859_1);
+				System.arraycopy(resolved, 0, segment.listing, (int) fixup.listOffset, resolved.length);
+			}
+			return null;
+		});
+
+		StringBuilder trailer = new StringBuilder();
+		long offset = 0;
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(dir, name + ".lst")))) {
+			for(Segment segment : segments) {
+				int base = file.image.append(segment.ctx.image);
+				for(Fixup fixup : segment.ctx.fixups) {
+					fixup.listOffset += offset;
+					fixup.objOffset += base;
+					file.fixups.add(fixup);
+				}
+				file.addressCounter = segment.ctx.addressCounter;
+				file.errorOccurred |= segment.ctx.errorOccurred;
+				file.stats.add(segment.ctx.stats);
+				if(file.budget != null) file.budget.add(segment.ctx.budget);
+				trailer.append(segment.trailer);
+				out.write(segment.listing);
+				offset += segment.listing.length;
+			}
+			AssemblerPhase3.appendSymbolTable(file, trailer);
+			if(file.budget != null) file.budget.appendTo(trailer);
+			out.write(trailer.toString().getBytes(StandardCharsets.ISO_8859_1));
+		}
+		file.stats.endPhase(phase, AssemblerStats.PASS2);
+		// END SECOND PASS
+
+		if(!file.errorOccurred) {
+			phase = file.stats.beginPhase();
+			AssemblerPhase3.writeObj(file, dir, name);
+			file.stats.endPhase(phase, AssemblerStats.OBJECT);
+		}
+		file.stats.commit();
+		return file;
+	}
+
+	/**
+	 * @return The source's segments, a new one starting at each ORG line. Just the one segment if the source
+	 * uses INCLUDE, macros or conditionals, since those carry state across ORGs.
+	 */
+	static List<Segment> split(SourceReader input) {
+		List<Segment> segments = new ArrayList<Segment>();
+		Lexer lexer = new Lexer();
+		int start = 0, firstLine = 1, lineNum = 1;
+		boolean preprocessed = false;
+		for(; input.hasNextLine(); lineNum++) {
+			int at = input.position();
+			CharSequence line = input.nextLine();
+			if(!mentionsOrg(line) && !Preprocessor.mayBeDirective(line)) continue;
+			Lexer.Kind kind = lexer.lex(line);
+			if(kind == Lexer.Kind.DIRECTIVE) preprocessed = true;
+			if(kind == Lexer.Kind.ORG && at > start) {
+				segments.add(new Segment(start, at, firstLine));
+				start = at;
+				firstLine = lineNum;
+			}
+		}
+		if(preprocessed) segments.clear();
+		segments.add(new Segment(preprocessed ? 0 : start, input.position(), preprocessed ? 1 : firstLine));
+		return segments;
+	}
+
+	/**
+	 * Cheap check so only the odd line has to go through the lexer while splitting.
+	 */
+	private static boolean mentionsOrg(CharSequence line) {
+		for(int i = 0; i + 2 < line.length(); i++) {
+			if(line.charAt(i) == 'O' && line.charAt(i + 1) == 'R' && line.charAt(i + 2) == 'G') return true;
+		}
+		return false;
+	}
+
+	private static void assemble(SourceReader input, Segment segment) throws IOException {
+		ByteArrayOutputStream listing = new ByteArrayOutputStream();
+		AssemblerPhase3.firstPass(segment.ctx, input.slice(segment.start, segment.end), segment.firstLine, listing);
+		segment.listing = listing.toByteArray();
+	}
+
+	/**
+	 * @param symbols - Everything the segments before this one defined
+	 * @return Whether knowing them would have changed how the segment assembled
+	 */
+	private static boolean dependsOn(AssemblerContext ctx, SymbolTable symbols) {
+		if(symbols.size() == 0) return false;
+		for(String symbol : ctx.misses) { // Definitions are always looked up first, to catch duplicates
+			if(symbols.lookup(symbol) >= 0) return true;
+		}
+		for(String symbol : ctx.immediates) { // Any other value still takes the extension word the segment gave it, and resolves the same
+			int id = symbols.lookup(symbol);
+			if(id >= 0 && InstructionFactory.constantGenerator(symbols.value(id)) >= 0) return true;
+		}
+		for(Fixup fixup : ctx.fixups) { // A backward jump that's out of range is an error on its own line, not in the trailer
+			if(fixup.getKind() == Fixup.Kind.JUMP && symbols.lookup(fixup.getSymbol()) >= 0 && fixup.resolve(symbols) != null) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The ORG line lists the address the previous segment left off at, which the segment couldn't know.
+	 * @param previousEnd - Address counter at the end of the segment before
+	 */
+	private static void fixOrgLine(Segment segment, int previousEnd) {
+		String assumed = AssemblerPhase3.hexForm(new AssemblerContext().addressCounter), actual = AssemblerPhase3.hexForm(previousEnd);
+		if(assumed.equals(actual)) return;
+		int prefix = String.format("%4d", segment.firstLine).length() + 2;
+		byte[] fixed = new byte[segment.listing.length - assumed.length() + actual.length()];
+		System.arraycopy(segment.listing, 0, fixed, 0, prefix);
+		System.arraycopy(actual.getBytes(StandardCharsets.ISO_8859_1), 0, fixed, prefix, actual.length());
+		System.arraycopy(segment.listing, prefix + assumed.length(), fixed, prefix + actual.length(), segment.listing.length - prefix - assumed.length());
+		for(Fixup fixup : segment.ctx.fixups) {
+			fixup.listOffset += actual.length() - assumed.length();
+		}
+		segment.listing = fixed;
+	}
+
+	interface Task {
+		Void run(Segment segment) throws IOException;
+	}
+
+	/**
+	 * Runs the task on every segment at once and waits for them all.
+	 */
+	private static void run(ExecutorService pool, List<Segment> segments, Task task) throws IOException {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(Segment segment : segments) {
+			tasks.add(() -> task.run(segment));
+		}
+		try {
+			for(Future<Void> done : pool.invokeAll(tasks)) { // invokeAll lets a pool thread help out rather than block
+				done.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("ERROR - interrupted", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+}
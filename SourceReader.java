@@ -0,0 +1,124 @@
+package edu.ttu.drewmitchell;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a whole source at once and hands it out a line at a time. Sources are ASCII, so lines
+ * are split straight off the bytes, and each one is a view into the buffer rather than a new
+ * String. The view is reused, it's only good until the next call to nextLine.
+ */
+public class SourceReader implements Closeable {
+	static final int MAP_THRESHOLD = 1 << 16; // Smaller files are cheaper to just read than to map
+
+	private final ByteBuffer buffer;
+	private final LineView line = new LineView();
+	private int position;
+
+	private SourceReader(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * @param source - File to read, memory mapped if it's large
+	 */
+	public static SourceReader open(File source) throws IOException {
+		try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE) throw new IOException("ERROR - " + source.getName() + " is too large to assemble");
+			if(size >= MAP_THRESHOLD) {
+				return new SourceReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, size)); // Mapping outlives the channel
+			}
+			ByteBuffer bytes = ByteBuffer.allocate((int) size);
+			while(bytes.hasRemaining() && channel.read(bytes) >= 0);
+			bytes.flip();
+			return new SourceReader(bytes);
+		}
+	}
+
+	/**
+	 * @param in - Stream to read to its end, e.g. System.in
+	 */
+	public static SourceReader read(InputStream in) throws IOException {
+		return new SourceReader(ByteBuffer.wrap(in.readAllBytes()));
+	}
+
+	public boolean hasNextLine() {
+		return position < buffer.limit();
+	}
+
+	/**
+	 * @return The next line without its terminator (\n, \r\n or \r), valid until the next call
+	 */
+	public CharSequence nextLine() {
+		int start = position, end = start, limit = buffer.limit();
+		while(end < limit) {
+			byte b = buffer.get(end);
+			if(b == '\n' || b == '\r') break;
+			end++;
+		}
+		position = end;
+		if(position < limit && buffer.get(position) == '\r') position++;
+		if(position < limit && buffer.get(position) == '\n') position++;
+		line.start = start;
+		line.length = end - start;
+		return line;
+	}
+
+	/**
+	 * @return Byte offset of the next line
+	 */
+	public int position() {
+		return position;
+	}
+
+	/**
+	 * @param start - Byte offset of the first line, as position gave it
+	 * @param end - Byte offset just past the last line
+	 * @return A reader over just those lines, sharing this one's buffer
+	 */
+	public SourceReader slice(int start, int end) {
+		return new SourceReader(buffer.slice(start, end - start));
+	}
+
+	public void close() {
+		position = buffer.limit();
+	}
+
+	/**
+	 * A window on the buffer, one char per byte.
+	 */
+	private class LineView implements CharSequence {
+		int start, length;
+
+		public int length() {
+			return length;
+		}
+
+		public char charAt(int index) {
+			return (char) (buffer.get(start + index) & 0xFF);
+		}
+
+		public CharSequence subSequence(int from, int to) {
+			return text(start + from, to - from);
+		}
+
+		public String toString() {
+			return text(start, length);
+		}
+
+		private String text(int offset, int count) {
+			byte[] bytes = new byte[count];
+			for(int i = 0; i < count; i++) {
+				bytes[i] = buffer.get(offset + i);
+			}
+			return new String(bytes, StandardCharsets.ISO_8859_1);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package edu.ttu.drewmitchell;
+
+import java.util.Arrays;
+
+/**
+ * Labels and constants, case-insensitive. Every name is interned once to an int ID, the first
+ * time it's looked up or defined, and everything known about it lives in parallel arrays under
+ * that ID. Lookups are one probe of an open-addressing hash on the case-folded name, nothing
+ * gets boxed. Sorting only happens when the listing asks for the symbol dump.
+ */
+public class SymbolTable {
+	private String[] names = new String[64];
+	private int[] hashes = new int[64];
+	private int[] values = new int[64];
+	private int[] lines = new int[64]; // Source line of the definition
+	private boolean[] defined = new boolean[64];
+	private int count = 0, definedCount = 0;
+
+	private int[] slots = new int[128]; // ID + 1, 0 for an empty slot; never more than half full
+	private int mask = slots.length - 1;
+
+	/**
+	 * @param name - Label or constant name, any case
+	 * @return Its ID, or -1 if it's never been seen
+	 */
+	public int find(CharSequence name) {
+		int hash = hash(name);
+		for(int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+			int id = slots[slot] - 1;
+			if(hashes[id] == hash && sameName(names[id], name)) return id;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param name - Label or constant name, any case
+	 * @return Its ID, added as undefined if it's new
+	 */
+	public int intern(CharSequence name) {
+		int hash = hash(name);
+		int slot = hash & mask;
+		for(; slots[slot] != 0; slot = (slot + 1) & mask) {
+			int id = slots[slot] - 1;
+			if(hashes[id] == hash && sameName(names[id], name)) return id;
+		}
+		if(count == names.length) {
+			names = Arrays.copyOf(names, count * 2);
+			hashes = Arrays.copyOf(hashes, count * 2);
+			values = Arrays.copyOf(values, count * 2);
+			lines = Arrays.copyOf(lines, count * 2);
+			defined = Arrays.copyOf(defined, count * 2);
+		}
+		int id = count++;
+		names[id] = name.toString();
+		hashes[id] = hash;
+		slots[slot] = id + 1;
+		if(count * 2 > slots.length) rehash();
+		return id;
+	}
+
+	/**
+	 * @param name - Label or constant name, any case
+	 * @return Its ID if it's defined, otherwise -1
+	 */
+	public int lookup(CharSequence name) {
+		int id = find(name);
+		return id >= 0 && defined[id] ? id : -1;
+	}
+
+	/**
+	 * Defines or redefines a symbol, a first definition also fixes how its name is spelled in the listing.
+	 * @param name - Label or constant name, any case
+	 * @param value - Address or value it stands for
+	 * @param line - Source line it's defined on
+	 * @return Its ID
+	 */
+	public int define(CharSequence name, int value, int line) {
+		int id = intern(name);
+		if(!defined[id]) {
+			names[id] = name.toString();
+			defined[id] = true;
+			definedCount++;
+		}
+		values[id] = value;
+		lines[id] = line;
+		return id;
+	}
+
+	/**
+	 * Defines everything the other table defines here too, as if its source had come after this one's.
+	 */
+	public void defineAll(SymbolTable other) {
+		for(int id = 0; id < other.count; id++) {
+			if(other.defined[id]) define(other.names[id], other.values[id], other.lines[id]);
+		}
+	}
+
+	public boolean isDefined(int id) {
+		return defined[id];
+	}
+
+	public int value(int id) {
+		return values[id];
+	}
+
+	public int line(int id) {
+		return lines[id];
+	}
+
+	public String name(int id) {
+		return names[id];
+	}
+
+	/**
+	 * @return How many symbols are defined
+	 */
+	public int size() {
+		return definedCount;
+	}
+
+	/**
+	 * @return IDs of the defined symbols, in case-insensitive name order
+	 */
+	public int[] sorted() {
+		Integer[] ids = new Integer[definedCount];
+		for(int id = 0, n = 0; id < count; id++) {
+			if(defined[id]) ids[n++] = id;
+		}
+		Arrays.sort(ids, (a, b) -> String.CASE_INSENSITIVE_ORDER.compare(names[a], names[b]));
+		int[] order = new int[ids.length];
+		for(int n = 0; n < ids.length; n++) {
+			order[n] = ids[n];
+		}
+		return order;
+	}
+
+	private void rehash() {
+		slots = new int[slots.length * 2];
+		mask = slots.length - 1;
+		for(int id = 0; id < count; id++) {
+			int slot = hashes[id] & mask;
+			while(slots[slot] != 0) slot = (slot + 1) & mask;
+			slots[slot] = id + 1;
+		}
+	}
+
+	/**
+	 * FNV-1a over the case-folded name, so ABC and abc land together
+	 */
+	private static int hash(CharSequence name) {
+		int h = 0x811C9DC5;
+		for(int i = 0; i < name.length(); i++) {
+			h = (h ^ fold(name.charAt(i))) * 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean sameName(String a, CharSequence b) {
+		if(a.length() != b.length()) return false;
+		for(int i = 0; i < a.length(); i++) {
+			if(fold(a.charAt(i)) != fold(b.charAt(i))) return false;
+		}
+		return true;
+	}
+
+	private static char fold(char c) {
+		return c >= 'A' && c <= 'Z' ? (char) (c | 0x20) : c;
+	}
+}